@@ -150,6 +150,7 @@ public class CountServer extends AMP {
 
     @Override public void connectionLost(Throwable reason) {
 	System.out.println("connection lost 1:" + reason);
+	super.connectionLost(reason);
     }
 
     public static void main(String[] args) throws Throwable {
@@ -159,6 +159,7 @@ public class CountServerSSL extends AMP {
 
     @Override public void connectionLost(Throwable reason) {
 	System.out.println("connection lost 1:" + reason);
+	super.connectionLost(reason);
     }
 
     /** This context validates the server certificate, which is GOOD. */
@@ -0,0 +1,166 @@
+import java.util.List;
+import java.util.Random;
+
+import com.twistedmatrix.amp.*;
+import com.twistedmatrix.internet.*;
+
+/** Measures how fast received bytes are split into frames, and frames into
+ * AMP boxes, with no network in the way.  A stream of small boxes, like
+ * the commands and answers of a busy server, is fed to a receiver either
+ * in large reads or fragmented into small reads of random sizes.
+ *
+ * To run: ant runbench -Dbench=FramingBench -Dbenchargs="mode read seconds"
+ *  mode is frames, to split frames only, boxes, to parse whole boxes, or
+ *  commands, to dispatch them to an AMP responder and write its answers;
+ *  read is the size of each read in bytes, or 0 for random sizes up to
+ *  64 bytes.
+ */
+public class FramingBench {
+    /** Counts frames without looking at them. */
+    static class FrameCounter extends Int16StringReceiver {
+	long frames = 0;
+	public void stringReceived(byte[] hunk) { frames++; }
+	public void stringReceived(byte[] buffer, int offset, int length) {
+	    frames++;
+	}
+    }
+
+    /** Counts boxes, and the frames in them. */
+    static class BoxCounter extends AMPParser {
+	long frames = 0, boxes = 0;
+	public void ampBoxReceived(AMPBox box) {
+	    boxes++;
+	    frames += 2 * box.size() + 1;
+	}
+	protected boolean keepsBoxes() { return false; }
+    }
+
+    /** Answers the Sum commands of the stream. */
+    public static class Summer extends AMP {
+	long answered = 0;
+
+	public class SumCommand extends LocalCommand {
+	    public int a, b;
+	    public SumCommand() { super("sum", new String[] {"a", "b"}); }
+	}
+
+	public class Total {
+	    public int total;
+	}
+
+	public Summer() {
+	    localCommand("Sum", new SumCommand());
+	}
+
+	public Total sum(int a, int b) {
+	    answered++;
+	    Total t = new Total();
+	    t.total = a + b;
+	    return t;
+	}
+    }
+
+    /** Throws away what is written to it, counting the writes. */
+    static class NullTransport implements ITransport {
+	long writes = 0;
+	public void write(byte[] data) { writes++; }
+	public void writeSequence(List<byte[]> data) { writes++; }
+	public void registerProducer(IPushProducer producer) { }
+	public void unregisterProducer() { }
+	public void setWriteBufferWaterMarks(int low, int high) { }
+	public int getBufferedAmount() { return 0; }
+	public void pauseProducing() { }
+	public void resumeProducing() { }
+	public void stopProducing() { }
+	public void connectionLost(Throwable reason) { }
+	public void loseConnection(Throwable reason) { }
+	public void abortConnection(Throwable reason) { }
+	public void setIdleTimeouts(double read, double write) { }
+    }
+
+    /* About 64k of boxes of the size of a typical small command. */
+    static byte[] stream() {
+	AMPBox box = new AMPBox();
+	box.put("_command", "Sum");
+	box.put("_ask", "1f");
+	box.put("a", "12345");
+	box.put("b", "67890");
+	box.put("label", "some short unicode text");
+	byte[] one = box.encode();
+	int count = 65536 / one.length;
+	byte[] all = new byte[count * one.length];
+	for (int i = 0; i < count; i++) {
+	    System.arraycopy(one, 0, all, i * one.length, one.length);
+	}
+	return all;
+    }
+
+    /* The stream cut into reads of the given size, or of random sizes. */
+    static byte[][] reads(byte[] stream, int size) {
+	Random r = new Random(42);
+	java.util.ArrayList<byte[]> reads = new java.util.ArrayList<byte[]>();
+	int at = 0;
+	while (at < stream.length) {
+	    int n = size > 0 ? size : 1 + r.nextInt(64);
+	    n = Math.min(n, stream.length - at);
+	    byte[] read = new byte[n];
+	    System.arraycopy(stream, at, read, 0, n);
+	    reads.add(read);
+	    at += n;
+	}
+	return reads.toArray(new byte[0][]);
+    }
+
+    public static void main(String[] args) throws Throwable {
+	String mode = args.length > 0 ? args[0] : "boxes";
+	int size = args.length > 1 ? Integer.parseInt(args[1]) : 65536;
+	double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+	byte[][] reads = reads(stream(), size);
+
+	for (int round = 0; round < 2; round++) {
+	    // The first round warms up the JIT.
+	    double runFor = round == 0 ? Math.min(seconds, 2) : seconds;
+	    FrameCounter fc = new FrameCounter();
+	    BoxCounter bc = new BoxCounter();
+	    Summer summer = new Summer();
+	    NullTransport nt = new NullTransport();
+	    summer.makeConnection(nt);
+	    long start = System.nanoTime();
+	    long end = start + (long) (runFor * 1e9);
+	    long bytes = 0;
+	    while (System.nanoTime() < end) {
+		for (byte[] read: reads) {
+		    if ("frames".equals(mode)) {
+			fc.dataReceived(read);
+		    } else if ("commands".equals(mode)) {
+			summer.dataReceived(read);
+		    } else {
+			bc.dataReceived(read);
+		    }
+		    bytes += read.length;
+		}
+	    }
+	    double took = (System.nanoTime() - start) / 1e9;
+	    if (round == 0) {
+		continue;
+	    }
+	    if ("commands".equals(mode)) {
+		// Each command of the stream is a box of five keys.
+		bc.boxes = summer.answered;
+		bc.frames = summer.answered * 11;
+	    }
+	    long frames = "frames".equals(mode) ? fc.frames : bc.frames;
+	    System.out.printf("%s, %s reads: %.2f M frames/s, %.0f MB/s",
+			      mode, size > 0 ? size + " byte" : "random",
+			      frames / took / 1e6, bytes / took / 1e6);
+	    if (!"frames".equals(mode)) {
+		System.out.printf(", %.2f M boxes/s", bc.boxes / took / 1e6);
+	    }
+	    if ("commands".equals(mode)) {
+		System.out.printf(", %.2f boxes/write",
+				  summer.answered / (double) nt.writes);
+	    }
+	    System.out.println();
+	}
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.twistedmatrix.amp.*;
+import com.twistedmatrix.internet.*;
+
+/** Compares the reactors on a CountServer/CountClient style workload:
+ * every client connection sends a command, waits for the answer, and
+ * sends the next, until it has made its share of the calls.  The server's
+ * responder may sleep to stand in for a database call.  In loopback mode
+ * the clients and the server share one reactor and talk without sockets.
+ *
+ * To run: ant runbench -Dbench=ReactorBench
+ *	     -Dbenchargs="[selector|group|blocking|loopback|all] clients calls workMillis"
+ */
+public class ReactorBench {
+    static int		  _calls;
+    static int		  _work;
+    static CountDownLatch _done;
+
+    /** Answers Sum commands, blocking for a while first if asked to. */
+    public static class SumServer extends AMP {
+	public SumServer() {
+	    localCommand("Sum", new SumCommand());
+	}
+
+	public class SumCommand extends LocalCommand {
+	    public int a;
+	    public int b;
+	    public SumCommand() { super("sum", new String[] {"a", "b"}); }
+	}
+
+	public class SumResp {
+	    public int total = 0;
+	}
+
+	public SumResp sum(int a, int b) {
+	    if (_work > 0) {
+		try {
+		    Thread.sleep(_work);
+		} catch (InterruptedException ie) { }
+	    }
+	    SumResp resp = new SumResp();
+	    resp.total = a + b;
+	    return resp;
+	}
+    }
+
+    /** Sends one Sum command after another. */
+    public static class SumClient extends AMP {
+	int _sent = 0;
+
+	public class SumParams {
+	    public int a;
+	    public int b;
+	    public SumParams(int a, int b) { this.a = a; this.b = b; }
+	}
+
+	public class SumResp {
+	    public int total = 0;
+	}
+
+	class Next implements Deferred.Callback<SumResp> {
+	    public Object callback(SumResp resp) {
+		if (resp.total != 2 * _sent - 1) {
+		    throw new Error("Bad total: " + resp.total);
+		}
+		if (_sent < _calls) {
+		    send();
+		} else {
+		    transport().loseConnection(new Throwable("Done"));
+		    _done.countDown();
+		}
+		return null;
+	    }
+	}
+
+	class Fail implements Deferred.Callback<Deferred.Failure> {
+	    public Object callback(Deferred.Failure err) {
+		err.get().printStackTrace();
+		System.exit(1);
+		return null;
+	    }
+	}
+
+	void send() {
+	    _sent++;
+	    RemoteCommand<SumResp> remote = new RemoteCommand<SumResp>(
+		"Sum", new SumParams(_sent, _sent - 1), new SumResp());
+	    Deferred dfd = remote.callRemote();
+	    dfd.addCallback(new Next());
+	    dfd.addErrback(new Fail());
+	}
+
+	@Override public void connectionMade() {
+	    send();
+	}
+    }
+
+    static Reactor makeServer(String mode) throws Throwable {
+	if (mode.equals("blocking")) {
+	    return new BlockingReactor();
+	} else if (mode.equals("group")) {
+	    return new Reactor(Runtime.getRuntime().availableProcessors());
+	}
+	return new Reactor();
+    }
+
+    static void runInThread(final Reactor reactor, String name) {
+	Thread t = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			reactor.run();
+		    } catch (Throwable t) {
+			t.printStackTrace();
+		    }
+		}
+	    }, name);
+	t.setDaemon(true);
+	t.start();
+    }
+
+    /** Returns the number of calls per second. */
+    static double bench(String mode, int port, int clients, int calls)
+	throws Throwable {
+	_calls = calls;
+	_done = new CountDownLatch(clients);
+
+	ServerFactory sf = new ServerFactory() {
+		public IProtocol buildProtocol(Object addr) {
+		    return new SumServer();
+		}
+		@Override public void startedListening(IListeningPort p) { }
+		@Override public void connectionLost(IListeningPort p,
+						     Throwable reason) { }
+	    };
+	ClientFactory cf = new ClientFactory() {
+		public IProtocol buildProtocol(Object addr) {
+		    return new SumClient();
+		}
+		public void clientConnectionFailed(IConnector c,
+						   Throwable reason) {
+		    reason.printStackTrace();
+		    System.exit(1);
+		}
+	    };
+
+	if (mode.equals("loopback")) {
+	    Reactor reactor = new Reactor();
+	    for (int i = 0; i < clients; i++) {
+		reactor.connectLoopback(sf, cf);
+	    }
+	    long start = System.nanoTime();
+	    runInThread(reactor, "bench-loopback");
+	    _done.await();
+	    double seconds = (System.nanoTime() - start) / 1e9;
+	    reactor.stop();
+	    return clients * (double) calls / seconds;
+	}
+
+	Reactor server = makeServer(mode);
+	IListeningPort lp = server.listenTCP(port, sf);
+
+	Reactor client = new Reactor();
+	for (int i = 0; i < clients; i++) {
+	    client.connectTCP("127.0.0.1", port, cf);
+	}
+
+	long start = System.nanoTime();
+	runInThread(server, "bench-server");
+	runInThread(client, "bench-client");
+	_done.await();
+	double seconds = (System.nanoTime() - start) / 1e9;
+
+	lp.loseConnection(new Throwable("Done"));
+	server.stop();
+	client.stop();
+	return clients * (double) calls / seconds;
+    }
+
+    public static void main(String[] args) throws Throwable {
+	String mode  = args.length > 0 ? args[0] : "all";
+	int clients  = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+	int calls    = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+	_work	     = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+	String[] modes = mode.equals("all")
+	    ? new String[] {"selector", "group", "blocking", "loopback"}
+	    : new String[] {mode};
+	int port = 7200;
+
+	System.out.println("clients=" + clients + " calls=" + calls +
+			   " work=" + _work + "ms virtual threads=" +
+			   BlockingReactor.hasVirtualThreads());
+	for (String m: modes) {
+	    bench(m, port++, clients, Math.max(1, calls / 10)); // warm up
+	    double rate = bench(m, port++, clients, calls);
+	    System.out.println(m + ": " + Math.round(rate) + " calls/s");
+	}
+	System.exit(0);
+    }
+}
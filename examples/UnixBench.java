@@ -0,0 +1,153 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import com.twistedmatrix.amp.*;
+import com.twistedmatrix.internet.*;
+
+/** Compares the round trip latency of AMP calls over a unix socket with
+ * the same calls over tcp on the loopback interface.  One client makes
+ * one call at a time, so every call is a full round trip.
+ *
+ * To run: ant runbench -Dbench=UnixBench -Dbenchargs="calls"
+ */
+public class UnixBench {
+    static int		  _calls;
+    static long[]	  _rtts;
+    static CountDownLatch _done;
+
+    /** Sends one Sum command after another, timing each. */
+    public static class TimingClient extends AMP {
+	int  _sent = 0;
+	long _start;
+
+	public class SumParams {
+	    public int a;
+	    public int b;
+	    public SumParams(int a, int b) { this.a = a; this.b = b; }
+	}
+
+	public class SumResp {
+	    public int total = 0;
+	}
+
+	class Next implements Deferred.Callback<SumResp> {
+	    public Object callback(SumResp resp) {
+		_rtts[_sent - 1] = System.nanoTime() - _start;
+		if (_sent < _calls) {
+		    send();
+		} else {
+		    transport().loseConnection(new Throwable("Done"));
+		    _done.countDown();
+		}
+		return null;
+	    }
+	}
+
+	class Fail implements Deferred.Callback<Deferred.Failure> {
+	    public Object callback(Deferred.Failure err) {
+		err.get().printStackTrace();
+		System.exit(1);
+		return null;
+	    }
+	}
+
+	void send() {
+	    _sent++;
+	    RemoteCommand<SumResp> remote = new RemoteCommand<SumResp>(
+		"Sum", new SumParams(_sent, 1), new SumResp());
+	    _start = System.nanoTime();
+	    Deferred dfd = remote.callRemote();
+	    dfd.addCallback(new Next());
+	    dfd.addErrback(new Fail());
+	}
+
+	@Override public void connectionMade() {
+	    send();
+	}
+    }
+
+    static ServerFactory serverFactory() {
+	return new ServerFactory() {
+	    public IProtocol buildProtocol(Object addr) {
+		return new ReactorBench.SumServer();
+	    }
+	    @Override public void startedListening(IListeningPort p) { }
+	    @Override public void connectionLost(IListeningPort p,
+						 Throwable reason) { }
+	};
+    }
+
+    static ClientFactory clientFactory() {
+	return new ClientFactory() {
+	    public IProtocol buildProtocol(Object addr) {
+		return new TimingClient();
+	    }
+	    public void clientConnectionFailed(IConnector c,
+					       Throwable reason) {
+		reason.printStackTrace();
+		System.exit(1);
+	    }
+	};
+    }
+
+    /** Returns the sorted round trip times, in nanoseconds. */
+    static long[] bench(boolean unix, int port, Path path, int calls)
+	throws Throwable {
+	_calls = calls;
+	_rtts = new long[calls];
+	_done = new CountDownLatch(1);
+
+	Reactor server = new Reactor();
+	Reactor client = new Reactor();
+	IListeningPort lp;
+	if (unix) {
+	    lp = server.listenUNIX(path, serverFactory());
+	    client.connectUNIX(path, clientFactory());
+	} else {
+	    lp = server.listenTCP(port, serverFactory());
+	    client.connectTCP("127.0.0.1", port, clientFactory());
+	}
+
+	ReactorBench.runInThread(server, "bench-server");
+	ReactorBench.runInThread(client, "bench-client");
+	_done.await();
+
+	lp.loseConnection(new Throwable("Done"));
+	server.stop();
+	client.stop();
+	long[] rtts = _rtts.clone();
+	Arrays.sort(rtts);
+	return rtts;
+    }
+
+    static String micros(long nanos) {
+	return String.format("%.1fus", nanos / 1e3);
+    }
+
+    public static void main(String[] args) throws Throwable {
+	int calls = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+	ReactorBench._work = 0;
+	Path dir = Files.createTempDirectory("unixbench");
+	int port = 7250;
+
+	System.out.println("calls=" + calls);
+	for (boolean unix: new boolean[] {false, true}) {
+	    String name = unix ? "unix" : "tcp";
+	    // warm up
+	    bench(unix, port++, dir.resolve(name + "-warm"),
+		  Math.max(1, calls / 10));
+	    long[] rtts = bench(unix, port++, dir.resolve(name), calls);
+	    long total = 0;
+	    for (long r: rtts) {
+		total += r;
+	    }
+	    System.out.println(name + ": mean " + micros(total / rtts.length) +
+			       " p50 " + micros(rtts[rtts.length / 2]) +
+			       " p99 " + micros(rtts[rtts.length * 99 / 100]));
+	}
+	Files.delete(dir);
+	System.exit(0);
+    }
+}
@@ -6,7 +6,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.ArrayList;
+import java.util.Set;
 
 import com.twistedmatrix.internet.*;
 import com.twistedmatrix.internet.Deferred.Failure;
@@ -32,20 +35,288 @@ import com.twistedmatrix.internet.Deferred.Failure;
  *<LI>Java Calendar only supports up to millisecond accuracy.</LI>
  *<LI>Classes that extend AmpItem must not be nested in other classes.</LI>
  *<LI>Classes sent or received must only contain data types listed above.</LI>
+ *<LI>Remote commands still waiting when the connection is lost, or called
+ * after it, fail with {@link ConnectionLost}, whether or not subclasses
+ * overriding connectionLost call the super method.</LI>
  *</UL>*/
 
 public class AMP extends AMPParser {
+    /** The command {@link #ping} sends.  Every AMP answers it without a
+     * responder being registered. */
+    public static final String PING = "_ping";
+
+    /** The error code a command which failed is answered with. */
+    public static final String UNHANDLED_ERROR_CODE = "UNHANDLED";
+
     private int _counter;
+    private boolean _writable;
+    private int _inFlight;
+    private int _maxInFlight;
+    private boolean _readPaused;
+    private LatencyTracker _latency;
     private Map<String, LocalCommand> _locals;
     private Map<String, RemoteCommand> _remotes;
+    private Map<String, RemoteCommand> _abandoned;
+    private Set<String> _idempotent;
+    private boolean _keepIdempotent;
+    private List<RemoteCommand> _kept;
+    private boolean _keptGone;
+    private boolean _lost;
+    private Throwable _lostReason;
+    private double _pingInterval, _pingTimeout;
+    private boolean _pinging;
+    private long _rtt;
+    private List<byte[]> _batchOut;
+    private long _batchTime;
+    private Map<String, Handler> _handlers;
     private enum Forbidden { _answer, _command, _ask, _error, _name,
-			     _error_code, _error_description, _params };
+			     _error_code, _error_description, _params, _ping };
 
     public AMP() {
 	_locals = new HashMap<String, LocalCommand>();
-	_remotes = new HashMap<String, RemoteCommand>();
+	_handlers = new HashMap<String, Handler>();
+	_remotes = new LinkedHashMap<String, RemoteCommand>();
+	_abandoned = new HashMap<String, RemoteCommand>();
+	_idempotent = new HashSet<String>();
+	_kept = new ArrayList<RemoteCommand>();
+	_writable = true;
+	_inFlight = 0;
+	_maxInFlight = 0;
+	_readPaused = false;
+	_rtt = -1;
+    }
+
+    /** Follows the transport's buffered output across its watermarks,
+     * without taking the producer slot the application may want. */
+    @Override protected final void transportWritable(boolean writable) {
+	_writable = writable;
+	this.writabilityChanged(writable);
+    }
+
+    /** Make a connection to a transport, with the keepalive if one was
+     * asked for before. */
+    @Override public void makeConnection(ITransport transport) {
+	if (_pingInterval > 0) {
+	    transport.setIdleTimeouts(_pingInterval, 0);
+	}
+	super.makeConnection(transport);
+    }
+
+    /**
+     * Ping the peer whenever nothing has been read from it for a while,
+     * and abort the connection if nothing at all comes back in time.  This
+     * notices peers which went away without closing their end, such as a
+     * client which crashed or lost its network, so that their connections
+     * and calls are not kept forever.  The pings also keep
+     * {@link #getRoundTripTime} up to date.  This takes over the read idle
+     * timeout of the transport, and turns off its write timeout.
+     * @param interval Seconds of silence before a ping, or zero to stop.
+     * @param timeout Seconds to wait for the answer, or for anything else
+     *	 from the peer.
+     */
+    public void setKeepAlive(double interval, double timeout) {
+	_pingInterval = interval;
+	_pingTimeout = timeout;
+	_pinging = false;
+	ITransport t = this.transport();
+	if (t != null) {
+	    t.setIdleTimeouts(interval, 0);
+	}
     }
 
+    /** Returns the smoothed round trip time of the pings answered so far,
+     * in nanoseconds, or -1 before the first answer. */
+    public long getRoundTripTime() { return _rtt; }
+
+    /**
+     * Measure the round trip time to the peer.  A peer which does not know
+     * the ping command answers with an error, which times the round trip
+     * just as well.
+     * @return A {@link Deferred} which fires with the round trip time, in
+     *	 nanoseconds, as a Long.
+     */
+    public Deferred ping() {
+	final long sent = System.nanoTime();
+	final Deferred result = new Deferred();
+	Deferred.Callback<Object> answered = new Deferred.Callback<Object>() {
+	    public Object callback(Object answer) {
+		if (answer instanceof Failure &&
+		    ((Failure) answer).get() instanceof ConnectionLost) {
+		    result.errback((Failure) answer);
+		    return null;
+		}
+		long rtt = System.nanoTime() - sent;
+		// Smoothed as TCP does, so that one late answer counts little.
+		_rtt = _rtt < 0 ? rtt : _rtt + (rtt - _rtt) / 8;
+		result.callback(rtt);
+		return null;
+	    }
+	};
+	this.callRemote(PING, new Object(), new Object())
+	    .addCallbacks(answered, answered);
+	return result;
+    }
+
+    /** With a keepalive set, a connection on which nothing has been read is
+     * pinged, and aborted if still nothing is read; otherwise idleness is
+     * handled as by {@link Protocol}. */
+    @Override public void connectionIdle(boolean reading) {
+	if (!reading || _pingInterval <= 0) {
+	    super.connectionIdle(reading);
+	    return;
+	}
+	if (_pinging) {
+	    this.transport().abortConnection(
+		new IdleTimeout("No answer to ping in " + _pingTimeout + "s"));
+	    return;
+	}
+	_pinging = true;
+	this.transport().setIdleTimeouts(_pingTimeout, 0);
+	this.ping().addCallbacks(new Deferred.Callback() {
+		public Object callback(Object rtt) {
+		    if (_pinging && _pingInterval > 0) {
+			_pinging = false;
+			transport().setIdleTimeouts(_pingInterval, 0);
+		    }
+		    return null;
+		}
+	    }, new Deferred.Callback<Failure>() {
+		public Object callback(Failure lost) {
+		    return null;
+		}
+	    });
+    }
+
+    /** Returns false while the transport holds more unsent data than its
+     * high watermark.  Senders of bulk data should check this before
+     * callRemote and wait for {@link #writabilityChanged} otherwise. */
+    public boolean isWritable() { return _writable; }
+
+    /** Limit the number of local commands which may be running at once.
+     * Once the limit is reached the transport stops reading, so the peer is
+     * slowed down by TCP flow control until commands (typically ones which
+     * returned a {@link Deferred}) complete.
+     * @param limit The maximum number of commands in flight, or zero for no
+     *	 limit, which is the default.
+     */
+    public void setMaxInFlightCommands(int limit) {
+	_maxInFlight = limit;
+	updateReading();
+    }
+
+    /** Returns the number of local commands which have not answered yet. */
+    public int getInFlightCommands() { return _inFlight; }
+
+    /** Returns the number of remote commands still waiting for an answer. */
+    public int getOutstandingCalls() { return _remotes.size(); }
+
+    /** Record how long every answered remote command took, by command
+     * name.  Connections of a pool may share one tracker.
+     * @param tracker The tracker, or null to stop recording.
+     */
+    public void setLatencyTracker(LatencyTracker tracker) {
+	_latency = tracker;
+    }
+
+    /** Returns the latency tracker, or null if none is set. */
+    public LatencyTracker getLatencyTracker() { return _latency; }
+
+    /** Declare whether a command may safely run twice.  Calls of it are
+     * marked idempotent as they are made; see
+     * {@link RemoteCommand#setIdempotent}. */
+    public void setIdempotent(String command, boolean idempotent) {
+	if (idempotent) {
+	    _idempotent.add(command);
+	} else {
+	    _idempotent.remove(command);
+	}
+    }
+
+    /** When the connection is lost, keep the idempotent calls still
+     * waiting for an answer, instead of failing them, so that another
+     * connection may {@link #takeOver} them.  Off by default. */
+    public void setKeepIdempotent(boolean keep) { _keepIdempotent = keep; }
+
+    /** Returns the number of calls kept from the lost connection. */
+    public int getKeptCalls() { return _kept.size(); }
+
+    /**
+     * Ask again, on this connection, the calls kept by a lost one, in the
+     * order they were first asked.  Their Deferreds fire with the answers
+     * given here.  Calls made on the lost connection afterwards fail at
+     * once, as nothing would ask them again.
+     * @return The number of calls asked again.
+     */
+    @SuppressWarnings("unchecked")
+    public int takeOver(AMP lost) {
+	List<RemoteCommand> kept = lost._kept;
+	lost._kept = new ArrayList<RemoteCommand>();
+	lost._keptGone = true;
+	for (RemoteCommand rc: kept) {
+	    new RemoteCommand(rc).send();
+	}
+	return kept.size();
+    }
+
+    /** Fail the calls kept when the connection was lost, and any made on
+     * it afterwards, with {@link ConnectionLost}. */
+    public void failKeptCalls() {
+	List<RemoteCommand> kept = _kept;
+	_kept = new ArrayList<RemoteCommand>();
+	_keptGone = true;
+	for (RemoteCommand rc: kept) {
+	    rc.getDeferred().errback(
+		new Failure(new ConnectionLost(_lostReason)));
+	}
+    }
+
+    /** Fails every remote command still waiting for an answer, or keeps the
+     * idempotent ones if asked to.  The transport calls this before
+     * connectionLost, which subclasses are free to override. */
+    @Override protected final void transportLost(Throwable reason) {
+	_lost = true;
+	_writable = false;
+	_lostReason = reason;
+	Map<String, RemoteCommand> waiting = _remotes;
+	_remotes = new LinkedHashMap<String, RemoteCommand>();
+	_abandoned.clear();
+	for (RemoteCommand rc: waiting.values()) {
+	    rc.lost();
+	}
+    }
+
+    /* Pause or resume the transport to keep commands under the limit. */
+    private void updateReading() {
+	ITransport t = this.transport();
+	if (null == t) {
+	    return;
+	}
+	boolean full = _maxInFlight > 0 && _inFlight >= _maxInFlight;
+	if (full && !_readPaused) {
+	    _readPaused = true;
+	    t.pauseProducing();
+	} else if (!full && _readPaused) {
+	    _readPaused = false;
+	    t.resumeProducing();
+	}
+    }
+
+    private void commandStarted() {
+	_inFlight++;
+	updateReading();
+    }
+
+    private void commandFinished() {
+	_inFlight--;
+	updateReading();
+    }
+
+    /** Called when the transport's buffered output crosses a watermark.
+     * Override this to throttle senders; by default it does nothing.
+     * @param writable The new value of {@link #isWritable}.
+     */
+    public void writabilityChanged(boolean writable) { }
+
     /**
      * Return a string unique for this connection, to uniquely identify
      * subsequent requests.
@@ -59,10 +330,13 @@ public class AMP extends AMPParser {
      * For both the remote parameters and local response objects, the public
      * variables must consist of the types supported by {@link AMP}. */
     public class RemoteCommand<R> {
+	private String   _name;
 	private String   _asktag   = "";
 	private R	_response = null;
 	private Deferred _deferred = null;
 	private AMPBox   _box      = null;
+	private long	 _sent;
+	private boolean  _idempotent;
 
 	/** The heavy lifting for invoking a remote command happens here.
 	 *  @param name The name of the remote command to invoke.
@@ -73,27 +347,149 @@ public class AMP extends AMPParser {
 	 */
 	public RemoteCommand(String name, Object params, R response) {
 	    _box = new AMPBox();
+	    _name = name;
 	    _asktag = AMP.this.nextTag();
 	    _response = response;
 
+	    _idempotent = AMP.this._idempotent.contains(name);
+
 	    _box.putAndEncode("_command", name);
 	    _box.putAndEncode("_ask", _asktag);
 	    _box.extractFrom(params);
 	}
 
+	/* The same call, asked again here after its connection was lost. */
+	private RemoteCommand(RemoteCommand<R> lost) {
+	    _box = new AMPBox();
+	    _name = lost._name;
+	    _asktag = AMP.this.nextTag();
+	    _response = lost._response;
+	    _deferred = lost._deferred;
+	    _idempotent = true;
+
+	    for (Map.Entry<byte[], byte[]> e: lost._box.entrySet()) {
+		if ("_ask".equals(AMPBox.asString(e.getKey()))) {
+		    _box.putAndEncode("_ask", _asktag);
+		} else {
+		    _box.put(e.getKey(), e.getValue());
+		}
+	    }
+	}
+
 	private R getResponse() { return _response; }
 	private Deferred getDeferred() { return _deferred; }
 
+	/** Returns the name of the remote command. */
+	public String getName() { return _name; }
+
+	/** Declare that running this command twice does no harm, so that it
+	 * may be sent again elsewhere, as {@link ConnectionPool} and
+	 * {@link ClusterClient} do to hedge slow answers. */
+	public void setIdempotent(boolean idempotent) {
+	    _idempotent = idempotent;
+	}
+
+	public boolean isIdempotent() { return _idempotent; }
+
+	/** Stop waiting for the answer, which will be ignored; the Deferred
+	 * never fires.
+	 * @return false if the command had been answered already.
+	 */
+	public boolean cancel() {
+	    return AMP.this._remotes.remove(_asktag) != null;
+	}
+
+	/* Cancel, but still time the answer when it comes, so that the
+	 * latency of an ask which lost a hedge is recorded all the same. */
+	boolean abandon() {
+	    if (!this.cancel()) {
+		return false;
+	    }
+	    if (_latency != null) {
+		AMP.this._abandoned.put(_asktag, RemoteCommand.this);
+	    }
+	    return true;
+	}
+
 	/** Actually invoke the remote command.
 	 * @return A {@link Deferred}, to which you use addCallback and
 	 * addErrback to add handlers for success and failure respectively.
 	 */
 	public Deferred callRemote() {
-	    AMP.this.sendBox(_box);
-	    AMP.this._remotes.put(_asktag, RemoteCommand.this);
 	    _deferred = new Deferred();
+	    this.send();
 	    return _deferred;
 	}
+
+	/* Fail for want of a connection, or wait for the next one. */
+	private void lost() {
+	    if (_keepIdempotent && this.isIdempotent() && !_keptGone) {
+		_kept.add(this);
+	    } else {
+		_deferred.errback(new Failure(new ConnectionLost(_lostReason)));
+	    }
+	}
+
+	private void send() {
+	    if (_lost) {
+		this.lost();
+		return;
+	    }
+	    // Ready for the answer before it can possibly arrive.
+	    _sent = System.nanoTime();
+	    AMP.this._remotes.put(_asktag, RemoteCommand.this);
+	    AMP.this.sendBox(_box);
+	}
+    }
+
+    /** Invoke a remote command; shorthand for building a
+     * {@link RemoteCommand} and calling it.
+     * @return A {@link Deferred} which fires with the populated response.
+     */
+    public <R> Deferred callRemote(String name, Object params, R response) {
+	return new RemoteCommand<R>(name, params, response).callRemote();
+    }
+
+    /** Every box of a read is handled in one pass, so that the answers
+     * they lead to go out in one write. */
+    @Override protected boolean batchesBoxes() {
+	return true;
+    }
+
+    /**
+     * The boxes of one read were received from the network.  Each is
+     * dispatched as by {@link #ampBoxReceived}, but the boxes sent while
+     * handling them are written together once all are handled, and the
+     * round trips of the answers among them are timed from one clock
+     * reading.
+     *  @param boxes The AMPBoxes received.
+     */
+    @Override public void ampBoxesReceived(List<AMPBox> boxes) {
+	if (_batchOut != null) {
+	    super.ampBoxesReceived(boxes);
+	    return;
+	}
+	_batchOut = new ArrayList<byte[]>(boxes.size());
+	_batchTime = System.nanoTime();
+	try {
+	    super.ampBoxesReceived(boxes);
+	} finally {
+	    List<byte[]> out = _batchOut;
+	    _batchOut = null;
+	    ITransport t = this.transport();
+	    if (t != null && out.size() == 1) {
+		t.write(out.get(0));
+	    } else if (t != null && !out.isEmpty()) {
+		t.writeSequence(out);
+	    }
+	}
+    }
+
+    /** Boxes are done with by the time ampBoxReceived returns, so they are
+     * never copied out of the receive buffer in full.  A subclass which
+     * keeps them must return true. */
+    @Override protected boolean keepsBoxes() {
+	return false;
     }
 
     /**
@@ -106,12 +502,13 @@ public class AMP extends AMPParser {
 	String msgtype = null;
 	String cmdprop = null;
 
-	for(String k : new String[] {"_answer", "_error", "_command"}) {
-	    cmdprop = (String) box.getAndDecode(k, String.class);
-	    if (cmdprop != null) {
-		msgtype = k;
-		break;
-	    }
+	// The box noted these keys as it was read, so no search is needed.
+	if (null != (cmdprop = box.getHeaderString(AMPBox.ANSWER))) {
+	    msgtype = "_answer";
+	} else if (null != (cmdprop = box.getHeaderString(AMPBox.ERROR))) {
+	    msgtype = "_error";
+	} else if (null != (cmdprop = box.getHeaderString(AMPBox.COMMAND))) {
+	    msgtype = "_command";
 	}
 
 	if (null == msgtype) {
@@ -120,52 +517,57 @@ public class AMP extends AMPParser {
 	}
 
 	if ("_answer".equals(msgtype)) {
-	    RemoteCommand rc = this._remotes.get(cmdprop);
+	    RemoteCommand rc = this._remotes.remove(cmdprop);
+	    RemoteCommand abandoned = this._abandoned.remove(cmdprop);
+	    if (null == rc && null == abandoned) {
+		return; // Not one of ours, answered already, or cancelled.
+	    }
+	    if (_latency != null) {
+		RemoteCommand timed = rc != null ? rc : abandoned;
+		long now = _batchOut != null ? _batchTime : System.nanoTime();
+		_latency.record(timed.getName(), now - timed._sent);
+	    }
+	    if (null == rc) {
+		return;
+	    }
 	    box.fillOut(rc.getResponse());
 	    rc.getDeferred().callback(rc.getResponse());
 	} else if ("_error".equals(msgtype)) {
-	    RemoteCommand rc = this._remotes.get(cmdprop);
+	    RemoteCommand rc = this._remotes.remove(cmdprop);
+	    this._abandoned.remove(cmdprop);
+	    if (null == rc) {
+		return;
+	    }
 	    rc.getDeferred().errback(new Failure(box.fillError()));
+	} else if (PING.equals(cmdprop)) {
+	    AMPBox answer = new AMPBox();
+	    answer.put("_answer", box.getHeader(AMPBox.ASK));
+	    this.sendBox(answer);
 	} else if ("_command".equals(msgtype)) {
 	    Method m = null;
 	    Object[] mparams = null;
 
-	    for (String cmd: _locals.keySet())
-		if (cmd.equals(cmdprop))
-		    for (Method p: this.getClass().getMethods()) {
-			if (p.getName().equals(_locals.get(cmd).getName())) {
-			    // The remote command name matches a local one.
-			    LocalCommand local = _locals.get(cmd);
-			    Class[] ptypes = p.getParameterTypes();
-			    mparams = new Object[ptypes.length];
-			    String[] pparams = local.getParams();
-			    if (ptypes.length == pparams.length) {
-				// The parameters match too, we have a winner!
-				m = p;
-				Field[] mtypes = new Field[ptypes.length];
-				Field[] fields = local.getClass().getFields();
-
-				for (int i = 0; i < ptypes.length; i++)
-				    for (Field f: fields)
-					if (f.getName().equals(pparams[i]))
-					    mtypes[i] = f;
-
-				for (int i = 0; i < ptypes.length; i++)
-				    mparams[i] = box.getAndDecode(mtypes[i]);
-			    }
-			}
-		    }
+	    Handler h = this.handler(cmdprop);
+	    if (h != null) {
+		m = h.method;
+		mparams = new Object[h.fields.length];
+		for (int i = 0; i < mparams.length; i++)
+		    mparams[i] = box.getAndDecode(h.fields[i]);
+	    }
 
 	    if (null == m) {
 		throw new Error ("No method defined to handle command '" +
 				 cmdprop + "'!");
 	    } else {
 		// We have method and an array of parameters, time to call it.
+		boolean pending = false;
+		commandStarted();
 		try {
 		    Object result = m.invoke(this, mparams);
 		    if (result == null) {
 			AMPBox emptyResponse = new AMPBox();
-			emptyResponse.put("_answer", box.get("_ask"));
+			emptyResponse.put("_answer",
+					  box.getHeader(AMPBox.ASK));
 			this.sendBox(emptyResponse);
 		    } else if (result instanceof Deferred) {
 			Deferred d = (Deferred) result;
@@ -175,6 +577,7 @@ public class AMP extends AMPParser {
 				this.tag = tag;
 			    }
 			    public Object callback(Object retval) {
+				AMP.this.commandFinished();
 				AMPBox response = new AMPBox();
 				response.extractFrom(retval);
 				response.put("_answer", this.tag);
@@ -182,11 +585,25 @@ public class AMP extends AMPParser {
 				return null;
 			    }
 			}
-			// XXX TODO: addErrback
-			d.addCallback(new SuccessHandler(box.get("_ask")));
+			class FailureHandler
+			    implements Deferred.Callback<Failure> {
+			    byte[] tag;
+			    public FailureHandler(byte[] tag) {
+				this.tag = tag;
+			    }
+			    public Object callback(Failure failure) {
+				AMP.this.commandFinished();
+				AMP.this.sendError(this.tag, failure.get());
+				return null;
+			    }
+			}
+			pending = true;
+			byte[] tag = box.getHeader(AMPBox.ASK);
+			d.addCallbacks(new SuccessHandler(tag),
+				       new FailureHandler(tag));
 		    } else {
 			AMPBox resultBox = new AMPBox();
-			resultBox.put("_answer", box.get("_ask"));
+			resultBox.put("_answer", box.getHeader(AMPBox.ASK));
 			resultBox.extractFrom(result);
 			this.sendBox(resultBox);
 		    }
@@ -194,11 +611,68 @@ public class AMP extends AMPParser {
 		    System.out.println("Name and parameters matched, but got " +
 				       "an exception invoking " + m.getName());
 		    t.printStackTrace();
+		    this.sendError(box.getHeader(AMPBox.ASK), null);
+		} finally {
+		    if (!pending)
+			commandFinished();
 		}
 	    }
 	}
     }
 
+    /* Answer a command which failed with an _error box.  As in Twisted,
+     * the peer only learns that it was not handled; the details stay
+     * here. */
+    private void sendError(byte[] tag, Throwable reason) {
+	if (reason != null) {
+	    reason.printStackTrace();
+	}
+	AMPBox error = new AMPBox();
+	error.put("_error", tag);
+	error.put("_error_code", UNHANDLED_ERROR_CODE);
+	error.put("_error_description", "Unknown Error");
+	this.sendBox(error);
+    }
+
+    /* A local method, and the fields its arguments are decoded as. */
+    private static class Handler {
+	Method	method;
+	Field[] fields;
+    }
+
+    /* Find the method handling a command the first time it is received,
+     * rather than searching for it in every box. */
+    private Handler handler(String cmd) {
+	Handler h = _handlers.get(cmd);
+	LocalCommand local = _locals.get(cmd);
+	if (h != null || null == local) {
+	    return h;
+	}
+	for (Method p: this.getClass().getMethods()) {
+	    if (p.getName().equals(local.getName())) {
+		// The remote command name matches a local one.
+		Class[] ptypes = p.getParameterTypes();
+		String[] pparams = local.getParams();
+		if (ptypes.length == pparams.length) {
+		    // The parameters match too, we have a winner!
+		    h = new Handler();
+		    h.method = p;
+		    h.fields = new Field[ptypes.length];
+		    Field[] fields = local.getClass().getFields();
+
+		    for (int i = 0; i < ptypes.length; i++)
+			for (Field f: fields)
+			    if (f.getName().equals(pparams[i]))
+				h.fields[i] = f;
+		}
+	    }
+	}
+	if (h != null) {
+	    _handlers.put(cmd, h);
+	}
+	return h;
+    }
+
     /** Associate an incoming command with a local method and its arguments.
      * This is the main way to handle messaged received from the network.
      * @param name The name of the command to be invoked remotely.
@@ -206,6 +680,7 @@ public class AMP extends AMPParser {
      */
     public void localCommand(String name, LocalCommand command) {
 	_locals.put(name, command);
+	_handlers.remove(name);
 
 	for (Forbidden f: Forbidden.values())
 	    if (name.equals(f.name()))
@@ -234,6 +709,10 @@ public class AMP extends AMPParser {
 	if (null == t) {
 	    return;
 	}
-	t.write(box.encode());
+	if (_batchOut != null) {
+	    _batchOut.add(box.encode());
+	} else {
+	    t.write(box.encode());
+	}
     }
 }
@@ -12,6 +12,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.Collection;
 import java.util.Date;
@@ -27,13 +28,191 @@ import java.util.HashSet;
  * Small ordered key =&gt; value mapping where the keys and values are both byte
  * arrays. This class is used to decode and encode AMP messages coming from and
  * going to the network. This class is rarely, if ever, used directly.
+ * Pairs are kept in the order they were put, which is the order they are
+ * encoded in; keys are found by hash, through an index once a box is big.
  */
 
 public class AMPBox implements Map<byte[], byte[]> {
+    /* The keys AMP routes on, which are noted as pairs are added. */
+    static final int COMMAND = 0, ASK = 1, ANSWER = 2, ERROR = 3;
+    private static final byte[][] HEADERS = {
+	asBytes("_command"), asBytes("_ask"), asBytes("_answer"),
+	asBytes("_error") };
+
+    /* Above this many pairs, keys are found through the index rather
+     * than by comparing hashes one pair at a time. */
+    private static final int SCAN_LIMIT = 8;
+
+    /* The bytes and hashes of keys named by strings: field names and
+     * AMP's own keys.  They are shared by every box, so never modified;
+     * only so many are kept, in case of boxes with made up keys. */
+    private static final int MAX_CACHED_KEYS = 4096;
+    private static final ConcurrentHashMap<String, Key> KEYS =
+	new ConcurrentHashMap<String, Key>();
+
+    private static class Key {
+	final byte[] bytes;
+	final int    hash;
+
+	Key(String name) {
+	    bytes = asBytes(name);
+	    hash = hash(bytes, 0, bytes.length);
+	}
+    }
+
     private ArrayList<Pair> pairs;
+    private Pair[] headers;
+    private boolean view;	// some pairs still look into a receive buffer
+
+    /* Open addressed, by key hash: each slot holds the position of a pair
+     * plus one, or 0 if empty.  Built on the first lookup in a big box,
+     * and dropped when a pair is removed. */
+    private int[] index;
 
     public AMPBox() {
 	pairs = new ArrayList<Pair>();
+	headers = new Pair[HEADERS.length];
+    }
+
+    /* A box whose keys and values are left where they were received, in
+     * an encoded box ending with its empty key, and only copied out when
+     * they are asked for. */
+    AMPBox(byte[] buf, int off, int len) {
+	this();
+	int end = off + len - 2;
+	while (off < end) {
+	    int keyLen = chunkLength(buf, off);
+	    int valueOff = off + 2 + keyLen;
+	    int valueLen = chunkLength(buf, valueOff);
+	    add(new Pair(buf, off + 2, keyLen, valueOff + 2, valueLen));
+	    off = valueOff + 2 + valueLen;
+	}
+	view = true;
+    }
+
+    static int chunkLength(byte[] buf, int off) {
+	return ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+    }
+
+    /* The same hash as Arrays.hashCode, of part of an array. */
+    private static int hash(byte[] b, int off, int len) {
+	int h = 1;
+	for (int i = off; i < off + len; i++) {
+	    h = 31 * h + b[i];
+	}
+	return h;
+    }
+
+    private static Key key(String name) {
+	Key k = KEYS.get(name);
+	if (null == k) {
+	    k = new Key(name);
+	    if (KEYS.size() < MAX_CACHED_KEYS) {
+		KEYS.putIfAbsent(name, k);
+	    }
+	}
+	return k;
+    }
+
+    /* Returns the position of the first pair with the given key, or -1. */
+    private int find(byte[] key, int hash) {
+	int n = pairs.size();
+	if (n <= SCAN_LIMIT) {
+	    for (int i = 0; i < n; i++) {
+		Pair p = pairs.get(i);
+		if (p.keyHash() == hash && p.keyEquals(key)) {
+		    return i;
+		}
+	    }
+	    return -1;
+	}
+	if (null == index) {
+	    buildIndex();
+	}
+	int mask = index.length - 1;
+	for (int i = spread(hash) & mask; index[i] != 0; i = (i + 1) & mask) {
+	    Pair p = pairs.get(index[i] - 1);
+	    if (p.keyHash() == hash && p.keyEquals(key)) {
+		return index[i] - 1;
+	    }
+	}
+	return -1;
+    }
+
+    private static int spread(int h) {
+	return h ^ (h >>> 16);
+    }
+
+    /* Index every pair in a table at most half full. */
+    private void buildIndex() {
+	int size = 16;
+	while (size < 2 * pairs.size()) {
+	    size <<= 1;
+	}
+	index = new int[size];
+	for (int i = 0; i < pairs.size(); i++) {
+	    insert(i);
+	}
+    }
+
+    /* Index the pair at a position, unless an earlier pair has its key. */
+    private void insert(int position) {
+	Pair p = pairs.get(position);
+	int mask = index.length - 1;
+	int i = spread(p.keyHash()) & mask;
+	while (index[i] != 0) {
+	    if (pairs.get(index[i] - 1).sameKey(p)) {
+		return;
+	    }
+	    i = (i + 1) & mask;
+	}
+	index[i] = position + 1;
+    }
+
+    private void add(Pair p) {
+	pairs.add(p);
+	if (index != null) {
+	    if (2 * pairs.size() > index.length) {
+		index = null;	// rebuilt bigger when next needed
+	    } else {
+		insert(pairs.size() - 1);
+	    }
+	}
+	// Only keys starting with an underscore can be one of these.
+	if (p.keyLength() > 3 && p.keyByte(0) == '_') {
+	    for (int i = 0; i < HEADERS.length; i++) {
+		if (null == headers[i] && p.keyEquals(HEADERS[i])) {
+		    headers[i] = p;
+		    break;
+		}
+	    }
+	}
+    }
+
+    /* Returns the value of one of the keys AMP routes on, without
+     * searching for it, or null. */
+    byte[] getHeader(int which) {
+	Pair p = headers[which];
+	return null == p ? null : p.value();
+    }
+
+    /* The same, decoded as for a String field. */
+    String getHeaderString(int which) {
+	byte[] value = getHeader(which);
+	return null == value ? null : asString(value, "UTF-8");
+    }
+
+    /* Stop looking into the receive buffer, which is about to be reused.
+     * A box which is kept first copies whatever it has not yet; one which
+     * is not may no longer be read. */
+    void detach(boolean keep) {
+	if (!view) {
+	    return;
+	}
+	for (Pair p: pairs) {
+	    p.detach(keep);
+	}
+	view = false;
     }
 
     /** Convert a byte array into a string. */
@@ -55,7 +234,7 @@ public class AMPBox implements Map<byte[], byte[]> {
     public boolean containsValue(Object v) {
 	byte[] value = (byte[]) v;
 	for (Pair p: pairs) {
-	    if (Arrays.equals(p.value, value)) {
+	    if (Arrays.equals(p.value(), value)) {
 		return true;
 	    }
 	}
@@ -72,19 +251,34 @@ public class AMPBox implements Map<byte[], byte[]> {
 	return hs;
     }
 
-    /** Encodes the mapped data to a byte array. */
+    /** Returns the number of bytes {@link #encode} will produce. */
+    public int encodedLength() {
+	int len = 2;
+	for (Pair p: pairs) {
+	    len += 4 + p.keyLength() + p.valueLength();
+	}
+	return len;
+    }
+
+    /** Encodes the mapped data to a byte array. The array is sized exactly
+     * up front, so no intermediate buffer is grown or copied. */
     public byte[] encode() {
-	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	byte[] out = new byte[encodedLength()];
+	int off = 0;
 	for (Pair p: pairs) {
-	    for (byte[] bp : new byte[][] {p.key, p.value}) {
-		baos.write(bp.length / 0x100); // DIV
-		baos.write(bp.length % 0x100); // MOD
-		baos.write(bp, 0, bp.length);
-	    }
+	    off = encodeChunk(p.key(), out, off);
+	    off = encodeChunk(p.value(), out, off);
 	}
-	baos.write(0);
-	baos.write(0);
-	return baos.toByteArray();
+	out[off++] = 0;
+	out[off++] = 0;
+	return out;
+    }
+
+    private static int encodeChunk(byte[] bp, byte[] out, int off) {
+	out[off++] = (byte) (bp.length / 0x100); // DIV
+	out[off++] = (byte) (bp.length % 0x100); // MOD
+	System.arraycopy(bp, 0, out, off, bp.length);
+	return off + bp.length;
     }
 
     /** Compares the specified object with this map for equality. */
@@ -95,7 +289,7 @@ public class AMPBox implements Map<byte[], byte[]> {
 	AMPBox other = (AMPBox) o;
 
 	for (Pair p: pairs) {
-	    if (!Arrays.equals(other.get(p.key), p.value)) {
+	    if (!Arrays.equals(other.get(p.key()), p.value())) {
 		return false;
 	    }
 	}
@@ -133,7 +327,6 @@ public class AMPBox implements Map<byte[], byte[]> {
 
 	try {
 	    for (Field f: fields) {
-		byte[] toDecode = get(f.getName());
 		Object decoded = getAndDecode(f);
 		if (null != decoded) {
 		    f.set(o, decoded);
@@ -151,18 +344,17 @@ public class AMPBox implements Map<byte[], byte[]> {
     /** Returns the value to which the specified key is mapped, or null
      * if this map contains no mapping for the key. */
     public byte[] get(byte[] key) {
-	for(Pair p: pairs) {
-	    if (Arrays.equals(key, p.key)) {
-		return p.value;
-	    }
-	}
-	return null;
+	int i = find(key, hash(key, 0, key.length));
+	return i < 0 ? null : pairs.get(i).value();
     }
 
     /** Returns the value to which the specified key is mapped, or null
-     * if this map contains no mapping for the key. */
+     * if this map contains no mapping for the key.  The key is encoded
+     * as ISO-8859-1, as by {@link #put(String, byte[])}. */
     public byte[] get(String key) {
-	return get(key.getBytes());
+	Key k = key(key);
+	int i = find(k.bytes, k.hash);
+	return i < 0 ? null : pairs.get(i).value();
     }
 
     /** Returns the value to which the specified key is mapped, or null
@@ -178,7 +370,6 @@ public class AMPBox implements Map<byte[], byte[]> {
 
     /** Decode incoming data. */
     public Object getAndDecode(Field fld) {
-	List<Class> listVals = getListTypes(fld);
 	return decodeObject(this.get(fld.getName()), fld.getType(),
 			    getListTypes(fld));
     }
@@ -197,25 +388,26 @@ public class AMPBox implements Map<byte[], byte[]> {
     @Override public Set<byte[]> keySet() {
 	HashSet<byte[]> hs = new HashSet<byte[]>();
 	for (Pair p: pairs) {
-	    hs.add(p.key);
+	    hs.add(p.key());
 	}
 	return hs;
     }
 
     /** Associates the specified value with the specified key in this map. */
     @Override public byte[] put(byte[] key, byte[] value) {
-	pairs.add(new Pair(key, value));
+	add(new Pair(key, value));
 	return null;
     }
 
     /** Associates the specified value with the specified key in this map. */
     public void put(String key, String value) {
-	put(asBytes(key), asBytes(value));
+	put(key, asBytes(value));
     }
 
     /** Associates the specified value with the specified key in this map. */
     public void put(String key, byte[] value) {
-	put(asBytes(key), value);
+	Key k = key(key);
+	add(new Pair(k.bytes, k.hash, value));
     }
 
     /** Copies all of the mappings from the specified map to this map. */
@@ -232,7 +424,7 @@ public class AMPBox implements Map<byte[], byte[]> {
 	    byte[] value = encodeObject(fld.getType(), fld.get(o),
 					getListTypes(fld));
 	    if (null != value) {
-		put(asBytes(fld.getName()), value);
+		put(fld.getName(), value);
 	    }
 	} catch (IllegalAccessException iae) {
 	    iae.printStackTrace();
@@ -247,21 +439,31 @@ public class AMPBox implements Map<byte[], byte[]> {
     public void putAndEncode(String key, Object o) {
 	byte[] value = encodeObject(o.getClass(), o, null);
 	if (null != value) {
-	    put(asBytes(key), value);
+	    put(key, value);
 	}
     }
 
     /** Removes the mapping for a key from this map if it is present. */
     @Override public byte[] remove(Object k) {
 	byte[] key = (byte[]) k;
-	for (int i = 0; i < pairs.size(); i++) {
-	    Pair p = pairs.get(i);
-	    if (Arrays.equals(p.key, key)) {
-		pairs.remove(i);
-		return p.value;
+	int i = find(key, hash(key, 0, key.length));
+	if (i < 0) {
+	    return null;
+	}
+	Pair p = pairs.remove(i);
+	index = null;	// the positions after it have moved
+	for (int h = 0; h < HEADERS.length; h++) {
+	    if (headers[h] == p) {
+		headers[h] = null;
+		for (Pair q: pairs) {
+		    if (q.keyEquals(HEADERS[h])) {
+			headers[h] = q;
+			break;
+		    }
+		}
 	    }
 	}
-	return null;
+	return p.value();
     }
 
     /** Returns the number of key-value mappings in this map. */
@@ -273,30 +475,120 @@ public class AMPBox implements Map<byte[], byte[]> {
     @Override public Collection<byte[]> values() {
 	ArrayList<byte[]> v = new ArrayList<byte[]>();
 	for (Pair p: pairs) {
-	    v.add(p.value);
+	    v.add(p.value());
 	}
 	return v;
     }
 
-    private class Pair implements Map.Entry<byte[], byte[]> {
+    /* A key and its value, either arrays of their own or, for a box which
+     * was just received, places in the receive buffer which are copied
+     * out the first time they are asked for. */
+    private static class Pair implements Map.Entry<byte[], byte[]> {
+	byte[] key;
+	byte[] value;
+	byte[] buf;
+	int    keyOff, keyLen, valueOff, valueLen;
+	int    hash;	// of the key, once hashed is true
+	boolean hashed;
+
 	Pair(byte[] k, byte[] v) {
+	    this(k, hash(k, 0, k.length), v);
+	}
+
+	Pair(byte[] k, int hash, byte[] v) {
 	    this.key = k;
+	    this.hash = hash;
+	    this.hashed = true;
 	    this.value = v;
 	}
-	byte[] key;
-	byte[] value;
+
+	Pair(byte[] buf, int keyOff, int keyLen, int valueOff, int valueLen) {
+	    this.buf = buf;
+	    this.keyOff = keyOff;
+	    this.keyLen = keyLen;
+	    this.valueOff = valueOff;
+	    this.valueLen = valueLen;
+	}
+
+	/* Received keys are only hashed once something is looked up. */
+	int keyHash() {
+	    if (!hashed) {
+		hash = null == buf ? hash(key(), 0, keyLength())
+		    : hash(buf, keyOff, keyLen);
+		hashed = true;
+	    }
+	    return hash;
+	}
+
+	byte[] key() {
+	    if (null == key) {
+		key = copy(keyOff, keyLen);
+	    }
+	    return key;
+	}
+
+	byte[] value() {
+	    if (null == value) {
+		value = copy(valueOff, valueLen);
+	    }
+	    return value;
+	}
+
+	int keyLength() { return null == key ? keyLen : key.length; }
+	int valueLength() { return null == value ? valueLen : value.length; }
+
+	byte keyByte(int i) {
+	    return null == key ? buf[keyOff + i] : key[i];
+	}
+
+	boolean keyEquals(byte[] k) {
+	    if (key != null || null == buf) {
+		return Arrays.equals(key(), k);
+	    }
+	    return Arrays.equals(buf, keyOff, keyOff + keyLen, k, 0, k.length);
+	}
+
+	boolean sameKey(Pair other) {
+	    if (other.keyHash() != keyHash() ||
+		other.keyLength() != keyLength()) {
+		return false;
+	    }
+	    for (int i = 0; i < keyLength(); i++) {
+		if (other.keyByte(i) != keyByte(i)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	private byte[] copy(int off, int len) {
+	    if (null == buf) {
+		throw new IllegalStateException(
+		    "Box read after the receive buffer was reused; keep " +
+		    "boxes only from a parser whose keepsBoxes is true");
+	    }
+	    return Arrays.copyOfRange(buf, off, off + len);
+	}
+
+	void detach(boolean keep) {
+	    if (keep) {
+		key();
+		value();
+	    }
+	    buf = null;
+	}
 
 	public boolean equals(Object o) {
 	    if (o instanceof Pair) {
 		Pair other = (Pair) o;
-		return (Arrays.equals(other.key, this.key) &&
-			Arrays.equals(other.value, this.value));
+		return (Arrays.equals(other.key(), this.key()) &&
+			Arrays.equals(other.value(), this.value()));
 	    }
 	    return false;
 	}
 
-	public byte[] getKey() { return key; }
-	public byte[] getValue() { return value; }
+	public byte[] getKey() { return key(); }
+	public byte[] getValue() { return value(); }
 
 	public byte[] setValue(byte[] value)
 	    throws UnsupportedOperationException {
@@ -1,20 +1,22 @@
 package com.twistedmatrix.amp;
 
-import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 
+import com.twistedmatrix.internet.ProtocolLimits;
+
 /** This class buffers incoming data until a complete message has been received. */
 public abstract class AMPParser extends Int16StringReceiver {
 
-    private enum State { KEY, VALUE, INIT };
-
-    private State state = State.INIT;
+    /* The whole frames of the next box found so far, how many keys they
+     * hold, and whether the next frame is a key. */
+    private int scanned = 0;
+    private int scannedKeys = 0;
+    private boolean scanningKey = true;
 
-    private byte[] workingKey;
-
-    private AMPBox workingBox;
+    /* Boxes read but not yet delivered, when they are delivered in
+     * batches. */
+    private ArrayList<AMPBox> batch;
 
     private static class ParseGatherer extends AMPParser {
         ArrayList<AMPBox> alhm;
@@ -26,50 +28,127 @@ public abstract class AMPParser extends Int16StringReceiver {
         }
     }
 
-    /** Deliver a complete message. */
+    /** Deliver a complete message.  The box is read straight out of the
+     * receive buffer, its keys and values only copied as they are asked
+     * for; see {@link #keepsBoxes}. */
     public abstract void ampBoxReceived(AMPBox hm);
+
+    /** Deliver every box parsed from one read at once.  Called instead
+     * of ampBoxReceived when {@link #batchesBoxes} is true; by default it
+     * hands them to ampBoxReceived one by one.  The boxes are views of
+     * the receive buffer, as for ampBoxReceived, and the list is reused
+     * once this returns. */
+    public void ampBoxesReceived(List<AMPBox> boxes) {
+        for (AMPBox box: boxes) {
+            try {
+                this.ampBoxReceived(box);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Returns whether to deliver boxes with ampBoxesReceived, every box
+     * of a read at once.  The default is false. */
+    protected boolean batchesBoxes() {
+        return false;
+    }
+
+    /** Returns whether boxes may be kept after ampBoxReceived returns, in
+     * which case whatever was not yet copied out of the receive buffer is
+     * copied then.  If not, a box may only be read until it returns.  The
+     * default is true. */
+    protected boolean keepsBoxes() {
+        return true;
+    }
     
-    /** Parse arbitrary data into a set of messages. Used for testing.*/
+    /** Parse arbitrary data into a set of messages, ignoring a partial
+     * box at the end. Used for testing.*/
     public static List<AMPBox> parseData(byte[] data) {
         ParseGatherer pg = new ParseGatherer();
         pg.dataReceived(data);
-        if (pg.recvd.length != 0) {
-            System.out.println("UNPARSED: " + pg.getCurrent());
-            for (byte b: pg.recvd) {
-                System.out.print(Int16StringReceiver.toInt(b));
-                System.out.print(", ");
-            }
-            System.out.println();
-        }
         return pg.alhm;
     }
     
-    /** Add a chunk to the message. */
-    public void stringReceived(byte[] hunk) {
-        switch(this.state) {
-        case INIT:
-            this.workingBox = new AMPBox();
-        case KEY:
-            if (hunk.length == 0) {
-                if (this.workingBox.size() == 0) {
-                    System.out.println("empty box, you lose");
+    /* A message is a whole box: pairs of key and value frames up to the
+     * empty key which ends it.  How far a box has been scanned is kept
+     * between reads, so one arriving in many pieces is scanned once.  The
+     * limits are checked as each frame's length arrives, so a box which
+     * will be too big is refused before the rest of it is buffered. */
+    int messageLength(byte[] buffer, int offset, int length) {
+        ProtocolLimits limits = getLimits();
+        int at = this.scanned;
+        int keys = this.scannedKeys;
+        boolean key = this.scanningKey;
+        while (length - at >= 2) {
+            int reqlen = frameLength(buffer, offset + at);
+            if (limits != null) {
+                if (at + 2 + reqlen > limits.getMaxBoxBytes()) {
+                    return refuse(ProtocolLimits.Limit.BOX_BYTES,
+                                  "Box of over " + (at + 2 + reqlen) +
+                                  " bytes");
+                }
+                if (key && reqlen != 0 && keys >= limits.getMaxKeys()) {
+                    return refuse(ProtocolLimits.Limit.KEYS,
+                                  "Box of over " + keys + " keys");
+                }
+            }
+            if (at + 2 + reqlen > length) {
+                break;
+            }
+            at += 2 + reqlen;
+            if (key) {
+                if (reqlen == 0) {
+                    this.scanned = 0;
+                    this.scannedKeys = 0;
+                    this.scanningKey = true;
+                    return at;
                 }
-                this.ampBoxReceived(this.workingBox);
-                this.workingBox = null;
-                this.state = State.INIT;
-            } else {
-                this.workingKey = hunk;
-                this.state = State.VALUE;
+                keys++;
             }
-            break;
-        case VALUE:
-            this.workingBox.put(workingKey, hunk);
-            this.state = State.KEY;
-            this.workingKey = null;
-            break;
+            key = !key;
         }
+        this.scanned = at;
+        this.scannedKeys = keys;
+        this.scanningKey = key;
+        return 0;
+    }
+
+    void messageReceived(byte[] buffer, int offset, int length) {
+        AMPBox box = new AMPBox(buffer, offset, length);
+        if (box.size() == 0) {
+            System.out.println("empty box, you lose");
+        }
+        if (this.batchesBoxes()) {
+            if (null == this.batch) {
+                this.batch = new ArrayList<AMPBox>();
+            }
+            this.batch.add(box);
+            return;
+        }
+        try {
+            this.ampBoxReceived(box);
+        } finally {
+            box.detach(this.keepsBoxes());
+        }
+    }
+
+    boolean messagesDelivered() {
+        if (null == this.batch || this.batch.isEmpty()) {
+            return false;
+        }
+        try {
+            if (!this.refused) {
+                this.ampBoxesReceived(this.batch);
+            }
+        } finally {
+            boolean keep = this.keepsBoxes();
+            for (AMPBox box: this.batch) {
+                box.detach(keep);
+            }
+            this.batch.clear();
+            releaseRetired();
+        }
+        return true;
     }
-    
-    /** Get the current chunk being processed. */
-    public String getCurrent() { return new String(workingKey); }
 }
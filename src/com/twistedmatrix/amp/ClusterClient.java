@@ -0,0 +1,272 @@
+package com.twistedmatrix.amp;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.twistedmatrix.internet.*;
+import com.twistedmatrix.internet.Deferred.Failure;
+
+/**
+ * A client of a cluster of AMP servers which share their state between
+ * them.  One connection is kept to every node, and each call is sent to
+ * the node chosen by a consistent hash of one field of its parameters, so
+ * that calls about the same thing always reach the same node.  Only
+ * connected nodes are on the ring: while a node is down its share of the
+ * keys goes to its neighbours, and it is connected again a little later.
+ * Calls of commands declared idempotent are hedged: if one is slower than
+ * most recent calls of its command, it is asked again of the next node
+ * round the ring and the first answer wins.  Like a connection, the
+ * client must only be used from the thread running its reactor.
+ */
+public class ClusterClient {
+    /** Points on the ring per node. */
+    public static final int	DEFAULT_REPLICAS = 160;
+
+    /** Seconds to wait before reconnecting a node which went away. */
+    public static final double	RETRY_DELAY = 1.0;
+
+    private Reactor	       _reactor;
+    private IFactory	       _factory;
+    private String	       _keyField;
+    private HashRing<Node>     _ring;
+    private Map<String, Node>  _nodes;
+    private Map<Class, Field>  _fields;
+    private Set<String>	       _idempotent;
+    private LatencyTracker     _latency;
+    private double	       _hedgeAt;
+    private long	       _hedged;
+
+    /** One member of the cluster. */
+    private class Node extends ClientFactory {
+	String	   name;
+	String	   host;
+	int	   port;
+	IConnector connector;
+	AMP	   amp;
+	boolean	   connecting, up, removed;
+
+	Node(String host, int port) {
+	    this.name = host + ":" + port;
+	    this.host = host;
+	    this.port = port;
+	}
+
+	void connect() {
+	    this.connecting = true;
+	    try {
+		this.connector = _reactor.connectTCP(host, port, this);
+	    } catch (Throwable t) {
+		this.connecting = false;
+		this.retryLater();
+	    }
+	}
+
+	void disconnect() {
+	    if (this.up) {
+		this.connector.loseConnection(new Throwable("Node removed"));
+	    } else if (this.connecting && this.connector != null) {
+		this.connector.stopConnecting();
+	    }
+	    this.up = this.connecting = false;
+	}
+
+	void retryLater() {
+	    _reactor.callLater(RETRY_DELAY, new Runnable() {
+		    public void run() {
+			if (!removed) {
+			    connect();
+			}
+		    }
+		});
+	}
+
+	public IProtocol buildProtocol(Object addr) {
+	    this.amp = (AMP) _factory.buildProtocol(addr);
+	    this.amp.setLatencyTracker(_latency);
+	    return this.amp;
+	}
+
+	@Override public void clientConnectionMade(IConnector connector,
+						   IProtocol protocol) {
+	    this.connecting = false;
+	    if (this.removed) {
+		connector.loseConnection(new Throwable("Node removed"));
+	    } else {
+		this.up = true;
+		_ring.add(this.name, this);
+	    }
+	}
+
+	@Override public void clientConnectionLost(IConnector connector,
+						   Throwable reason) {
+	    this.up = false;
+	    // The node may have been removed and added again meanwhile.
+	    _ring.remove(this.name, this);
+	    if (!this.removed) {
+		this.retryLater();
+	    }
+	}
+
+	public void clientConnectionFailed(IConnector connector,
+					   Throwable reason) {
+	    this.connecting = false;
+	    if (!this.removed) {
+		this.retryLater();
+	    }
+	}
+    }
+
+    /**
+     * @param factory Builds the {@link AMP} protocol of each connection.
+     * @param keyField The public field of every params object whose value
+     *	 picks the node.
+     */
+    public ClusterClient(Reactor reactor, IFactory factory, String keyField) {
+	this(reactor, factory, keyField, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * @param factory Builds the {@link AMP} protocol of each connection.
+     * @param keyField The public field of every params object whose value
+     *	 picks the node.
+     * @param replicas The number of points on the ring per node; more
+     *	 spread the keys more evenly.
+     */
+    public ClusterClient(Reactor reactor, IFactory factory, String keyField,
+			 int replicas) {
+	_reactor = reactor;
+	_factory = factory;
+	_keyField = keyField;
+	_ring = new HashRing<Node>(replicas);
+	_nodes = new HashMap<String, Node>();
+	_fields = new HashMap<Class, Field>();
+	_idempotent = new HashSet<String>();
+	_latency = new LatencyTracker();
+	_hedgeAt = HedgedCall.DEFAULT_PERCENTILE;
+    }
+
+    /** Declare whether a command may safely run twice, and so be hedged. */
+    public void setIdempotent(String command, boolean idempotent) {
+	if (idempotent) {
+	    _idempotent.add(command);
+	} else {
+	    _idempotent.remove(command);
+	}
+    }
+
+    /** Hedge idempotent calls which have taken longer than this fraction
+     * of recent calls of the same command; the default is 0.95. */
+    public void setHedgePercentile(double p) { _hedgeAt = p; }
+
+    /** Returns the tracker of the round trip times of every node. */
+    public LatencyTracker getLatencyTracker() { return _latency; }
+
+    /** Returns the number of calls which were asked a second time. */
+    public long getHedgedCalls() { return _hedged; }
+
+    /** Start connecting to another node; it takes calls once connected. */
+    public void addNode(String host, int port) {
+	Node node = new Node(host, port);
+	if (_nodes.containsKey(node.name)) {
+	    return;
+	}
+	_nodes.put(node.name, node);
+	node.connect();
+    }
+
+    /** Take a node off the ring and disconnect from it. */
+    public void removeNode(String host, int port) {
+	Node node = _nodes.remove(host + ":" + port);
+	if (null == node) {
+	    return;
+	}
+	node.removed = true;
+	_ring.remove(node.name, node);
+	node.disconnect();
+    }
+
+    /** Disconnect from every node. */
+    public void stop() {
+	for (Node node: _nodes.values().toArray(new Node[0])) {
+	    this.removeNode(node.host, node.port);
+	}
+    }
+
+    /** Returns the number of nodes which are connected and on the ring. */
+    public int getNodeCount() { return _ring.size(); }
+
+    /** Returns the connection of the node a key belongs to, or null if no
+     * node is connected. */
+    public AMP route(Object key) {
+	Node node = _ring.get(keyBytes(key));
+	return null == node ? null : node.amp;
+    }
+
+    /**
+     * Invoke a remote command on the node which the key field of the
+     * parameters hashes to.  Fails right away if no node is connected.
+     * @see AMP#callRemote
+     */
+    public <R> Deferred callRemote(String name, Object params, R response) {
+	final byte[] key;
+	try {
+	    key = keyBytes(this.keyOf(params));
+	} catch (Exception e) {
+	    return failed(e);
+	}
+	final Node node = _ring.get(key);
+	if (null == node) {
+	    return failed(new IllegalStateException("No node connected"));
+	}
+	if (_idempotent.contains(name)) {
+	    HedgedCall.Backup backup = new HedgedCall.Backup() {
+		    public AMP choose(AMP primary) {
+			Node next = _ring.get(key, node);
+			if (null == next) {
+			    return null;
+			}
+			_hedged++;
+			return next.amp;
+		    }
+		};
+	    return new HedgedCall<R>(name, params, response)
+		.start(_reactor, node.amp, _latency, _hedgeAt, backup);
+	}
+	return node.amp.callRemote(name, params, response);
+    }
+
+    private Object keyOf(Object params) throws Exception {
+	Class c = params.getClass();
+	Field f = _fields.get(c);
+	if (null == f) {
+	    f = c.getField(_keyField);
+	    _fields.put(c, f);
+	}
+	return f.get(params);
+    }
+
+    /* The key as the same bytes whatever its type, so that an int and
+     * the string of its digits land on the same node. */
+    private static byte[] keyBytes(Object key) {
+	if (key instanceof byte[]) {
+	    return (byte[]) key;
+	} else if (key instanceof ByteBuffer) {
+	    ByteBuffer b = ((ByteBuffer) key).duplicate();
+	    byte[] bytes = new byte[b.remaining()];
+	    b.get(bytes);
+	    return bytes;
+	}
+	return String.valueOf(key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Deferred failed(Throwable t) {
+	Deferred d = new Deferred();
+	d.errback(new Failure(t));
+	return d;
+    }
+}
@@ -0,0 +1,300 @@
+package com.twistedmatrix.amp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.twistedmatrix.internet.*;
+import com.twistedmatrix.internet.Deferred.Failure;
+
+/**
+ * A pool of AMP connections to one server, through which commands are sent
+ * as if over a single connection.  Each call goes to the connection with
+ * the fewest calls waiting for an answer, so a large or slow answer only
+ * holds up the calls behind it on its own connection.  The pool opens its
+ * minimum number of connections when started, and opens more, up to its
+ * maximum, while every connection is busy.  A connection which is lost is
+ * replaced, and one which fails to connect is tried again a little later.
+ * Calls made while no connection is up wait for the first one.  Calls of
+ * commands declared idempotent are hedged: if one is slower than most
+ * recent calls of its command, it is asked again on another connection
+ * and the first answer wins.  Like a connection, the pool must only be
+ * used from the thread running its reactor.
+ */
+public class ConnectionPool {
+    /** Seconds to wait before trying again after a failed connection. */
+    public static final double RETRY_DELAY = 1.0;
+
+    private Reactor		    _reactor;
+    private String		    _host;
+    private int			    _port;
+    private IFactory		    _factory;
+    private int			    _min, _max;
+    private int			    _growAt;
+    private int			    _connecting;
+    private int			    _next;
+    private boolean		    _stopped;
+    private List<AMP>		    _connections;
+    private ArrayDeque<PendingCall> _waiting;
+    private Set<String>		    _idempotent;
+    private LatencyTracker	    _latency;
+    private double		    _hedgeAt;
+    private long		    _hedged;
+    private HedgedCall.Backup	    _backup;
+
+    /* A call made while no connection was up. */
+    private static class PendingCall {
+	String	 name;
+	Object	 params;
+	Object	 response;
+	Deferred deferred;
+
+	PendingCall(String name, Object params, Object response) {
+	    this.name = name;
+	    this.params = params;
+	    this.response = response;
+	    this.deferred = new Deferred();
+	}
+    }
+
+    /**
+     * A pool of a fixed number of connections.
+     * @param factory Builds the {@link AMP} protocol of each connection.
+     */
+    public ConnectionPool(Reactor reactor, String host, int port,
+			  IFactory factory, int size) {
+	this(reactor, host, port, factory, size, size);
+    }
+
+    /**
+     * A pool which grows from min to max connections under load.
+     * @param factory Builds the {@link AMP} protocol of each connection.
+     */
+    public ConnectionPool(Reactor reactor, String host, int port,
+			  IFactory factory, int min, int max) {
+	if (min < 0 || max < 1 || max < min) {
+	    throw new IllegalArgumentException("Bad pool size: " + min +
+					       ", " + max);
+	}
+	_reactor = reactor;
+	_host = host;
+	_port = port;
+	_factory = factory;
+	_min = min;
+	_max = max;
+	_growAt = 1;
+	_connections = new ArrayList<AMP>();
+	_waiting = new ArrayDeque<PendingCall>();
+	_idempotent = new HashSet<String>();
+	_latency = new LatencyTracker();
+	_hedgeAt = HedgedCall.DEFAULT_PERCENTILE;
+	_backup = new HedgedCall.Backup() {
+		public AMP choose(AMP primary) {
+		    AMP other = leastBusy(primary);
+		    if (other != null) {
+			_hedged++;
+		    }
+		    return other;
+		}
+	    };
+    }
+
+    /** Open another connection, if there is room for one, once the least
+     * busy connection has this many calls waiting.  The default is 1. */
+    public void setGrowThreshold(int calls) { _growAt = calls; }
+
+    /** Declare whether a command may safely run twice, and so be hedged. */
+    public void setIdempotent(String command, boolean idempotent) {
+	if (idempotent) {
+	    _idempotent.add(command);
+	} else {
+	    _idempotent.remove(command);
+	}
+    }
+
+    /** Hedge idempotent calls which have taken longer than this fraction
+     * of recent calls of the same command; the default is 0.95. */
+    public void setHedgePercentile(double p) { _hedgeAt = p; }
+
+    /** Returns the tracker of the round trip times of every connection. */
+    public LatencyTracker getLatencyTracker() { return _latency; }
+
+    /** Returns the number of calls which were asked a second time. */
+    public long getHedgedCalls() { return _hedged; }
+
+    /** Open the minimum number of connections. */
+    public void start() {
+	_stopped = false;
+	this.replenish();
+    }
+
+    /** Close every connection.  Calls which were waiting for a connection
+     * fail; calls already sent are left to their connections. */
+    public void stop() {
+	_stopped = true;
+	for (AMP conn: new ArrayList<AMP>(_connections)) {
+	    conn.transport().loseConnection(new Throwable("Pool stopped"));
+	}
+	_connections.clear();
+	while (!_waiting.isEmpty()) {
+	    _waiting.poll().deferred.errback(
+		new Failure(new IllegalStateException("Pool stopped")));
+	}
+    }
+
+    /** Returns the number of connections which are up. */
+    public int getConnectionCount() { return _connections.size(); }
+
+    /** Returns the number of calls waiting for an answer or for a
+     * connection. */
+    public int getOutstandingCalls() {
+	int total = _waiting.size();
+	for (AMP conn: _connections) {
+	    total += conn.getOutstandingCalls();
+	}
+	return total;
+    }
+
+    /**
+     * Invoke a remote command on the least busy connection.
+     * @see AMP#callRemote
+     */
+    public <R> Deferred callRemote(String name, Object params, R response) {
+	if (_stopped) {
+	    Deferred d = new Deferred();
+	    d.errback(new Failure(new IllegalStateException("Pool stopped")));
+	    return d;
+	}
+	AMP conn = this.leastBusy(null);
+	if (null == conn) {
+	    PendingCall call = new PendingCall(name, params, response);
+	    _waiting.add(call);
+	    this.replenish();
+	    return call.deferred;
+	}
+	if (conn.getOutstandingCalls() >= _growAt) {
+	    this.grow();
+	}
+	if (_idempotent.contains(name)) {
+	    return new HedgedCall<R>(name, params, response)
+		.start(_reactor, conn, _latency, _hedgeAt, _backup);
+	}
+	return conn.callRemote(name, params, response);
+    }
+
+    /* Returns the connection with the fewest calls waiting for an answer,
+     * taking turns among equally busy ones, or null if none is up. */
+    private AMP leastBusy(AMP skip) {
+	int n = _connections.size();
+	AMP best = null;
+	for (int i = 0; i < n; i++) {
+	    AMP conn = _connections.get((_next + i) % n);
+	    if (conn == skip) {
+		continue;
+	    }
+	    if (null == best ||
+		conn.getOutstandingCalls() < best.getOutstandingCalls()) {
+		best = conn;
+	    }
+	}
+	// Kept in range, or it would turn negative after 2^31 picks.
+	if (n > 0) {
+	    _next = (_next + 1) % n;
+	}
+	return best;
+    }
+
+    /* Open one more connection if the pool may have it. */
+    private void grow() {
+	if (!_stopped && _connections.size() + _connecting < _max) {
+	    this.connect();
+	}
+    }
+
+    /* Open connections until there are as many as the minimum, or one if
+     * calls are waiting. */
+    private void replenish() {
+	int wanted = Math.max(_min, _waiting.isEmpty() ? 0 : 1);
+	while (!_stopped && _connections.size() + _connecting < wanted) {
+	    if (!this.connect()) {
+		break;
+	    }
+	}
+    }
+
+    private boolean connect() {
+	_connecting++;
+	try {
+	    _reactor.connectTCP(_host, _port, new Member());
+	    return true;
+	} catch (Throwable t) {
+	    _connecting--;
+	    this.retryLater();
+	    return false;
+	}
+    }
+
+    private void retryLater() {
+	_reactor.callLater(RETRY_DELAY, new Runnable() {
+		public void run() {
+		    replenish();
+		}
+	    });
+    }
+
+    /* Send the calls which were waiting for a connection. */
+    private void dispatchWaiting() {
+	while (!_waiting.isEmpty() && !_connections.isEmpty()) {
+	    final PendingCall call = _waiting.poll();
+	    this.leastBusy(null).callRemote(call.name, call.params, call.response)
+		.addCallbacks(new Deferred.Callback() {
+			public Object callback(Object response) {
+			    call.deferred.callback(response);
+			    return null;
+			}
+		    }, new Deferred.Callback<Failure>() {
+			public Object callback(Failure failure) {
+			    call.deferred.errback(failure);
+			    return null;
+			}
+		    });
+	}
+    }
+
+    /* The factory of one connection of the pool. */
+    private class Member extends ClientFactory {
+	private AMP _amp;
+
+	public IProtocol buildProtocol(Object addr) {
+	    _amp = (AMP) _factory.buildProtocol(addr);
+	    _amp.setLatencyTracker(_latency);
+	    return _amp;
+	}
+
+	@Override public void clientConnectionMade(IConnector connector,
+						   IProtocol protocol) {
+	    _connecting--;
+	    if (_stopped) {
+		connector.loseConnection(new Throwable("Pool stopped"));
+		return;
+	    }
+	    _connections.add(_amp);
+	    dispatchWaiting();
+	}
+
+	@Override public void clientConnectionLost(IConnector connector,
+						   Throwable reason) {
+	    if (_connections.remove(_amp)) {
+		replenish();
+	    }
+	}
+
+	public void clientConnectionFailed(IConnector connector,
+					   Throwable reason) {
+	    _connecting--;
+	    retryLater();
+	}
+    }
+}
@@ -0,0 +1,107 @@
+package com.twistedmatrix.amp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring.  Every node is placed on the ring at a number
+ * of points derived from its name, and a key belongs to the node at the
+ * first point at or after the key's own hash.  Adding or removing a node
+ * only moves the keys between its points and their neighbours, and the
+ * many points per node spread the keys evenly.
+ */
+class HashRing<T> {
+    private int		       _replicas;
+    private TreeMap<Long, T>   _points;
+    private Map<String, T>     _nodes;
+
+    /** @param replicas The number of points per node. */
+    HashRing(int replicas) {
+	_replicas = replicas;
+	_points = new TreeMap<Long, T>();
+	_nodes = new HashMap<String, T>();
+    }
+
+    void add(String name, T node) {
+	this.remove(name);
+	_nodes.put(name, node);
+	for (int i = 0; i < _replicas; i++) {
+	    _points.put(hash(pointName(name, i)), node);
+	}
+    }
+
+    void remove(String name) {
+	T node = _nodes.remove(name);
+	if (null == node) {
+	    return;
+	}
+	for (int i = 0; i < _replicas; i++) {
+	    Long point = hash(pointName(name, i));
+	    if (_points.get(point) == node) {
+		_points.remove(point);
+	    }
+	}
+    }
+
+    /** Removes a node only if its name still maps to it, and not to a
+     * node added under the same name since. */
+    void remove(String name, T node) {
+	if (_nodes.get(name) == node) {
+	    this.remove(name);
+	}
+    }
+
+    /** Returns the node a key belongs to, or null if the ring is empty. */
+    T get(byte[] key) {
+	if (_points.isEmpty()) {
+	    return null;
+	}
+	Map.Entry<Long, T> point = _points.ceilingEntry(hash(key));
+	if (null == point) {
+	    point = _points.firstEntry(); // around the ring
+	}
+	return point.getValue();
+    }
+
+    /** Returns the next node round the ring from a key which is not the
+     * given one, or null if there is no other node. */
+    T get(byte[] key, T skip) {
+	long h = hash(key);
+	for (T node: _points.tailMap(h).values()) {
+	    if (node != skip) {
+		return node;
+	    }
+	}
+	for (T node: _points.headMap(h).values()) {
+	    if (node != skip) {
+		return node;
+	    }
+	}
+	return null;
+    }
+
+    boolean contains(String name) { return _nodes.containsKey(name); }
+
+    int size() { return _nodes.size(); }
+
+    private static byte[] pointName(String name, int i) {
+	return (name + "#" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* 64 bit FNV-1a, with the murmur3 finalizer to spread similar keys. */
+    static long hash(byte[] key) {
+	long h = 0xcbf29ce484222325L;
+	for (byte b: key) {
+	    h ^= b & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+}
@@ -0,0 +1,117 @@
+package com.twistedmatrix.amp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.twistedmatrix.internet.Deferred;
+import com.twistedmatrix.internet.Deferred.Failure;
+import com.twistedmatrix.internet.IDelayedCall;
+import com.twistedmatrix.internet.Reactor;
+
+/**
+ * One call of an idempotent command which is asked again, on another
+ * connection, if the first connection has not answered by the time most
+ * calls of the command have.  Whichever ask answers first wins and the
+ * answer of the other is ignored, though its latency is still recorded.  A failure only wins if
+ * no other ask is still waiting.
+ */
+class HedgedCall<R> {
+    /** Hedge calls slower than this fraction of recent calls. */
+    static final double DEFAULT_PERCENTILE = 0.95;
+
+    /** Chooses the connection for the second ask. */
+    interface Backup {
+	/** Returns a connection other than primary, or null if there is
+	 * none to hedge with. */
+	AMP choose(AMP primary);
+    }
+
+    private String			_name;
+    private Object			_params;
+    private R				_response;
+    private Deferred			_result;
+    private List<AMP.RemoteCommand<R>>	_asks;
+    private IDelayedCall		_timer;
+    private int				_waiting;
+    private boolean			_done;
+
+    HedgedCall(String name, Object params, R response) {
+	_name = name;
+	_params = params;
+	_response = response;
+	_result = new Deferred();
+	_asks = new ArrayList<AMP.RemoteCommand<R>>(2);
+    }
+
+    /**
+     * Ask the primary connection, and arrange to ask a backup once the
+     * call has taken longer than the given percentile of recent calls.
+     * Nothing is hedged until the tracker knows the command.
+     */
+    Deferred start(Reactor reactor, final AMP primary, LatencyTracker tracker,
+		   double percentile, final Backup backup) {
+	this.ask(primary);
+	long delay = tracker.percentile(_name, percentile);
+	if (delay >= 0 && !_done) {
+	    _timer = reactor.callLater(delay / 1e9, new Runnable() {
+		    public void run() {
+			_timer = null;
+			if (_done) {
+			    return;
+			}
+			AMP other = backup.choose(primary);
+			if (other != null) {
+			    ask(other);
+			}
+		    }
+		});
+	}
+	return _result;
+    }
+
+    private void ask(AMP conn) {
+	final AMP.RemoteCommand<R> rc =
+	    conn.new RemoteCommand<R>(_name, _params, _response);
+	rc.setIdempotent(true);
+	_asks.add(rc);
+	_waiting++;
+	rc.callRemote().addCallbacks(new Deferred.Callback() {
+		public Object callback(Object response) {
+		    answered(rc, response);
+		    return null;
+		}
+	    }, new Deferred.Callback<Failure>() {
+		public Object callback(Failure failure) {
+		    answered(rc, failure);
+		    return null;
+		}
+	    });
+    }
+
+    private void answered(AMP.RemoteCommand<R> winner, Object result) {
+	_waiting--;
+	if (_done) {
+	    return;
+	}
+	if (result instanceof Failure && _waiting > 0) {
+	    return; // The other ask may yet succeed.
+	}
+	_done = true;
+	if (_timer != null) {
+	    _timer.cancel();
+	    _timer = null;
+	}
+	// The losers' answers are ignored but still timed, or the tracker
+	// would only see the faster asks and hedge ever sooner.
+	for (AMP.RemoteCommand<R> rc: _asks) {
+	    if (rc != winner) {
+		rc.abandon();
+	    }
+	}
+	if (result instanceof Failure) {
+	    _result.errback((Failure) result);
+	} else {
+	    _result.callback(result);
+	}
+    }
+}
@@ -1,11 +1,31 @@
 package com.twistedmatrix.amp;
 
+import java.nio.ByteBuffer;
+
+import com.twistedmatrix.internet.BufferPool;
+import com.twistedmatrix.internet.ITransport;
+import com.twistedmatrix.internet.LimitExceeded;
 import com.twistedmatrix.internet.Protocol;
+import com.twistedmatrix.internet.ProtocolLimits;
 
 /** This class buffers incoming data and does some initial processing. */
 public abstract class Int16StringReceiver extends Protocol {
 
-    byte[] recvd;
+    /* Unparsed data, borrowed from the pool of the connection's reactor
+     * only while there is some.  Between calls the buffer is kept ready
+     * for reading: position is the next undelivered byte and limit the
+     * end of the received data. */
+    ByteBuffer recvd;
+
+    /* True while messages are being delivered. */
+    private boolean delivering;
+
+    /* A buffer outgrown while a frame in it was being delivered, kept
+     * from the pool until the delivery is over. */
+    private ByteBuffer retired;
+
+    /* True once the peer went over a limit; nothing more is read. */
+    boolean refused;
 
     static void cpy(byte[] a, byte[] b, int offt) {
         System.arraycopy(a, 0, b, offt, a.length);
@@ -15,25 +35,123 @@ public abstract class Int16StringReceiver extends Protocol {
     }
 
     public Int16StringReceiver() {
-        recvd = new byte[0];
+        recvd = null;
+        delivering = false;
     }
 
-    /** Deliver the data. */
-    public abstract void stringReceived(byte[] hunk);
+    /** Deliver the data.  Receivers which read a frame at a time
+     * override this, or the view form below; receivers which read larger
+     * messages, such as {@link AMPParser}, need neither, and by default
+     * the frame is ignored. */
+    public void stringReceived(byte[] hunk) { }
+
+    /** Deliver a frame as a view of the receive buffer, which is only
+     * valid until this returns.  Override this to look at frames without
+     * copying them; by default it copies the frame for
+     * {@link #stringReceived(byte[])}. */
+    public void stringReceived(byte[] buffer, int offset, int length) {
+        byte[] hunk = new byte[length];
+        System.arraycopy(buffer, offset, hunk, 0, length);
+        stringReceived(hunk);
+    }
 
-    /** Handle incoming data. */
+    /** Handle incoming data.  Data arriving while a frame is being
+     * delivered, such as from a transport that reads as part of a write, is
+     * only buffered; the outer call delivers it.  Data which would take
+     * more than the limits allow to buffer drops the connection before
+     * it is added. */
     public void dataReceived(byte[] data) {
-        byte[] old = recvd;
-        recvd = new byte[old.length + data.length];
+        if (refused) {
+            return;
+        }
+        ProtocolLimits limits = getLimits();
+        if (limits != null &&
+            buffered() + data.length > limits.getMaxBuffered()) {
+            refuse(ProtocolLimits.Limit.BUFFERED,
+                   (buffered() + data.length) + " bytes unparsed");
+            if (!delivering) {
+                release();
+            }
+            return;
+        }
+        append(data);
+        if (delivering) {
+            return;
+        }
 
-        cpy(old, recvd);
-        cpy(data, recvd, old.length);
+        delivering = true;
+        try {
+            do {
+                while (tryToDeliverData()) {
+                    /* nothing to do */
+                }
+            } while (messagesDelivered());
+        } finally {
+            delivering = false;
+        }
+        if (refused || !recvd.hasRemaining()) {
+            release();
+        }
+    }
 
-        while (tryToDeliverData()) {
-            /* nothing to do */
+    private void release() {
+        if (recvd != null) {
+            getBufferPool().release(recvd);
+            recvd = null;
         }
     }
 
+    /* Count going over a limit and drop the connection; returns -1 for
+     * messageLength to return. */
+    int refuse(ProtocolLimits.Limit limit, String why) {
+        getLimits().violated(limit);
+        refused = true;
+        ITransport transport = transport();
+        if (transport != null) {
+            transport.abortConnection(new LimitExceeded(why));
+        }
+        return -1;
+    }
+
+    /* Add data after the undelivered bytes, moving them to the front of
+     * the buffer or into a bigger one from the pool when out of room.
+     * The bytes are only moved when the end of the buffer is reached, so
+     * each byte is copied about once however it is split into reads.  A
+     * frame being delivered is never moved from under its view. */
+    private void append(byte[] data) {
+        BufferPool pool = getBufferPool();
+        if (recvd == null) {
+            recvd = pool.allocate(data.length);
+            recvd.limit(0);
+        }
+        if (recvd.capacity() - recvd.limit() < data.length) {
+            if (!delivering &&
+                recvd.capacity() - recvd.remaining() >= data.length) {
+                recvd.compact();
+                recvd.flip();
+            } else {
+                ByteBuffer old = recvd;
+                recvd = pool.allocate(old.remaining() + data.length);
+                recvd.put(old);
+                recvd.flip();
+                if (delivering && retired == null) {
+                    retired = old;
+                } else {
+                    pool.release(old);
+                }
+            }
+        }
+        int end = recvd.limit();
+        System.arraycopy(data, 0, recvd.array(), recvd.arrayOffset() + end,
+                         data.length);
+        recvd.limit(end + data.length);
+    }
+
+    /** Returns how many bytes are buffered but not yet delivered. */
+    int buffered() {
+        return (recvd == null) ? 0 : recvd.remaining();
+    }
+
     /** Convert a byte to an unsigned integer. */
     public static int toInt(byte b) {
         // why doesn't java have unsigned bytes again?
@@ -46,32 +164,72 @@ public abstract class Int16StringReceiver extends Protocol {
         return i;
     }
 
+    /* Returns the length, framing included, of the next message at the
+     * start of the given bytes, 0 if it has not all arrived, or -1 if it
+     * is over the limits.  A message is one frame, unless a subclass
+     * delivers several at once. */
+    int messageLength(byte[] buffer, int offset, int length) {
+        if (length < 2) {
+            return 0;
+        }
+        int reqlen = frameLength(buffer, offset);
+        ProtocolLimits limits = getLimits();
+        if (limits != null && 2 + reqlen > limits.getMaxBoxBytes()) {
+            return refuse(ProtocolLimits.Limit.BOX_BYTES,
+                          "Frame of " + reqlen + " bytes");
+        }
+        return length < 2 + reqlen ? 0 : 2 + reqlen;
+    }
+
+    /* Deliver a whole message, framing included, as a view of the receive
+     * buffer which is only valid until this returns. */
+    void messageReceived(byte[] buffer, int offset, int length) {
+        stringReceived(buffer, offset + 2, length - 2);
+    }
+
+    /* Called once every whole message received so far has been handed to
+     * messageReceived, still with their views valid, for a subclass which
+     * gathers messages to deliver them together.  Returns true if it
+     * delivered any, as more data may have arrived meanwhile. */
+    boolean messagesDelivered() {
+        return false;
+    }
+
+    /* Give back a buffer outgrown during a delivery which is now over. */
+    void releaseRetired() {
+        if (retired != null) {
+            getBufferPool().release(retired);
+            retired = null;
+        }
+    }
+
+    /* Unpack the 16-bit length of the frame at offset. */
+    static int frameLength(byte[] buffer, int offset) {
+        return (toInt(buffer[offset]) * 256) + toInt(buffer[offset + 1]);
+    }
+
     /**
      * Attempt to drain some data from our buffer into somewhere else.
      */
     private boolean tryToDeliverData() {
-        if (recvd.length < 2) {
+        if (refused) {
             return false;
         }
-
-        /* unpack the 16-bit length */
-        int reqlen = (toInt(recvd[0]) * 256) + toInt(recvd[1]);
-
-        if (recvd.length < (2+reqlen)) {
+        int start = recvd.position();
+        byte[] buffer = recvd.array();
+        int offset = recvd.arrayOffset() + start;
+        int length = messageLength(buffer, offset, recvd.remaining());
+        if (length <= 0) {
             return false;
         }
 
-        byte[] hunk = new byte[reqlen];
-        System.arraycopy(recvd, 2, hunk, 0, reqlen);
-        byte[] oldbuf = recvd;
-        int newlen = oldbuf.length - reqlen - 2;
-        recvd = new byte[newlen];
-        System.arraycopy(oldbuf, reqlen + 2, recvd, 0, newlen);
+        recvd.position(start + length);
         try {
-            stringReceived(hunk);
+            messageReceived(buffer, offset, length);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        releaseRetired();
         return true;
     }
 }
@@ -0,0 +1,82 @@
+package com.twistedmatrix.amp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recent round trip times of each remote command, so that
+ * percentiles of its latency can be looked up cheaply.  The samples of a
+ * command are only sorted again once a sixteenth of them are new.
+ */
+public class LatencyTracker {
+    /** Default number of recent samples kept per command. */
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /** Fewer samples than this are not enough to tell a percentile. */
+    public static final int MIN_SAMPLES	   = 20;
+
+    private int			 _window;
+    private Map<String, Samples> _commands;
+
+    private static class Samples {
+	long[] ring;
+	int    next, count;
+	long[] sorted;
+	int    unsorted;
+
+	Samples(int window) {
+	    ring = new long[window];
+	}
+    }
+
+    public LatencyTracker() {
+	this(DEFAULT_WINDOW);
+    }
+
+    /** @param window The number of recent samples kept per command. */
+    public LatencyTracker(int window) {
+	_window = window;
+	_commands = new HashMap<String, Samples>();
+    }
+
+    /** Add a round trip time, in nanoseconds. */
+    public synchronized void record(String command, long nanos) {
+	Samples s = _commands.get(command);
+	if (null == s) {
+	    s = new Samples(_window);
+	    _commands.put(command, s);
+	}
+	s.ring[s.next] = nanos;
+	s.next = (s.next + 1) % _window;
+	if (s.count < _window) {
+	    s.count++;
+	}
+	s.unsorted++;
+    }
+
+    /**
+     * Returns the given percentile of the recent round trip times of a
+     * command, in nanoseconds, or -1 if there are too few samples.
+     * @param p The percentile as a fraction, such as 0.99.
+     */
+    public synchronized long percentile(String command, double p) {
+	Samples s = _commands.get(command);
+	if (null == s || s.count < MIN_SAMPLES) {
+	    return -1;
+	}
+	if (null == s.sorted || s.unsorted > s.count / 16) {
+	    s.sorted = Arrays.copyOf(s.ring, s.count);
+	    Arrays.sort(s.sorted);
+	    s.unsorted = 0;
+	}
+	int i = (int) Math.ceil(p * s.sorted.length) - 1;
+	return s.sorted[Math.max(0, Math.min(i, s.sorted.length - 1))];
+    }
+
+    /** Returns the number of samples kept for a command. */
+    public synchronized int getSampleCount(String command) {
+	Samples s = _commands.get(command);
+	return null == s ? 0 : s.count;
+    }
+}
@@ -0,0 +1,78 @@
+package com.twistedmatrix.amp;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.twistedmatrix.internet.*;
+
+/**
+ * Keeps one AMP connection up, connecting again with backoff whenever it
+ * is lost.  Calls waiting for an answer when the connection goes fail
+ * with {@link ConnectionLost}, except those of commands declared
+ * idempotent, which are asked again once the next connection is made;
+ * they fail only if the factory gives up.  Like a connection, the factory
+ * must only be used from the thread running its reactor.
+ */
+public class ReconnectingAMPFactory extends ReconnectingClientFactory {
+    private IFactory	_factory;
+    private Set<String> _idempotent;
+    private AMP		_amp, _lost;
+    private boolean	_up;
+    private long	_retried;
+
+    /** @param factory Builds the {@link AMP} protocol of each connection. */
+    public ReconnectingAMPFactory(Reactor reactor, IFactory factory) {
+	super(reactor);
+	_factory = factory;
+	_idempotent = new HashSet<String>();
+    }
+
+    /** Declare whether a command may safely run twice, and so be asked
+     * again on the next connection if its answer was lost. */
+    public void setIdempotent(String command, boolean idempotent) {
+	if (idempotent) {
+	    _idempotent.add(command);
+	} else {
+	    _idempotent.remove(command);
+	}
+    }
+
+    /** Returns the protocol of the connection, or null while it is down. */
+    public AMP getProtocol() { return _up ? _amp : null; }
+
+    /** Returns the number of calls asked again on a new connection. */
+    public long getRetriedCalls() { return _retried; }
+
+    public IProtocol buildProtocol(Object addr) {
+	_amp = (AMP) _factory.buildProtocol(addr);
+	for (String command: _idempotent) {
+	    _amp.setIdempotent(command, true);
+	}
+	_amp.setKeepIdempotent(true);
+	return _amp;
+    }
+
+    @Override public void clientConnectionMade(IConnector connector,
+					       IProtocol protocol) {
+	super.clientConnectionMade(connector, protocol);
+	_up = true;
+	if (_lost != null) {
+	    _retried += _amp.takeOver(_lost);
+	    _lost = null;
+	}
+    }
+
+    @Override public void clientConnectionLost(IConnector connector,
+					       Throwable reason) {
+	_up = false;
+	_lost = _amp;
+	super.clientConnectionLost(connector, reason);
+    }
+
+    @Override protected void gaveUp(Throwable reason) {
+	if (_lost != null) {
+	    _lost.failKeptCalls();
+	    _lost = null;
+	}
+    }
+}
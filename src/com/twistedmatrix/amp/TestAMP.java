@@ -15,10 +15,56 @@ import junit.framework.TestSuite;
 import java.io.UnsupportedEncodingException;
 
 import com.twistedmatrix.amp.LocalCommand;
+import com.twistedmatrix.internet.BlockingReactor;
+import com.twistedmatrix.internet.BufferPool;
+import com.twistedmatrix.internet.ClientFactory;
+import com.twistedmatrix.internet.ConnectionLost;
+import com.twistedmatrix.internet.IConnector;
+import com.twistedmatrix.internet.IdleTimeout;
+import com.twistedmatrix.internet.IPushProducer;
+import com.twistedmatrix.internet.IFactory;
+import com.twistedmatrix.internet.IListeningPort;
+import com.twistedmatrix.internet.IProtocol;
 import com.twistedmatrix.internet.ITransport;
+import com.twistedmatrix.internet.LimitExceeded;
+import com.twistedmatrix.internet.LoopbackTransport;
+import com.twistedmatrix.internet.ProtocolLimits;
+import com.twistedmatrix.internet.Reactor;
+import com.twistedmatrix.internet.ReconnectingClientFactory;
+import com.twistedmatrix.internet.ServerFactory;
 import com.twistedmatrix.internet.Deferred;
 
 public class TestAMP extends TestCase {
+    /* The Sum command, shared by the tests which make real calls. */
+    public static class SumCommand extends LocalCommand {
+        public int a;
+        public int b;
+        public SumCommand() { super("sum", new String[] {"a", "b"}); }
+    }
+
+    public static class SumParams {
+        public int a;
+        public int b;
+        public SumParams(int a, int b) { this.a = a; this.b = b; }
+    }
+
+    public static class SumResp {
+        public int total = 0;
+    }
+
+    /** Answers Sum, counting the calls. */
+    public static class SumServer extends AMP {
+        public int calls = 0;
+        public SumServer() { localCommand("Sum", new SumCommand()); }
+
+        public Object sum(int a, int b) {
+            calls++;
+            SumResp resp = new SumResp();
+            resp.total = a + b;
+            return resp;
+        }
+    }
+
     public static class Int16ReceiverTest extends TestCase {
         byte[] parsedString = null;
 
@@ -38,6 +84,105 @@ public class TestAMP extends TestCase {
             assertEquals(new String(parsedString, "ISO-8859-1"),
                          new String(hwbytes, "ISO-8859-1"));
         }
+
+        /**
+         * Verify that data fed back in while a string is being delivered is
+         * buffered and delivered in order once the first string is done.
+         */
+        public void testReentrantDelivery() throws Throwable {
+            final ArrayList<String> got = new ArrayList<String>();
+            final byte[] second = {0, 1, 'b'};
+            Int16StringReceiver ir = new Int16StringReceiver() {
+                    public void stringReceived(byte[] hunk) {
+                        got.add(new String(hunk));
+                        if (got.size() == 1) {
+                            this.dataReceived(second);
+                            assertEquals(1, got.size());
+                        }
+                    }
+                };
+            ir.dataReceived(new byte[] {0, 1, 'a', 0, 1, 'c'});
+            assertEquals(Arrays.asList("a", "c", "b"), got);
+        }
+
+        /**
+         * Verify that frames are delivered as views of the receive buffer,
+         * and that a view stays put while the buffer grows under it.
+         */
+        public void testViews() throws Throwable {
+            final ArrayList<String> got = new ArrayList<String>();
+            final byte[] big = new byte[2 + 5000];
+            big[0] = (byte) (5000 >> 8);
+            big[1] = (byte) (5000 & 0xff);
+            Int16StringReceiver ir = new Int16StringReceiver() {
+                    public void stringReceived(byte[] hunk) {
+                        fail("Frames should not be copied");
+                    }
+                    public void stringReceived(byte[] buf, int off, int len) {
+                        if (got.size() == 1) {
+                            this.dataReceived(big);
+                        }
+                        got.add(new String(buf, off, Math.min(len, 3)) + len);
+                    }
+                };
+            ir.dataReceived(new byte[] {0, 3, 'a', 'b', 'c', 0});
+            ir.dataReceived(new byte[] {2, 'd', 'e'});
+            assertEquals(Arrays.asList("abc3", "de2", "\0\0\0" + 5000), got);
+        }
+
+        /**
+         * Verify that a receiver connected by a reactor borrows its buffer
+         * from the reactor's pool, and gives it back.
+         */
+        public void testReactorPool() throws Throwable {
+            final int[] borrowed = new int[2];
+            BufferPool pool = new BufferPool(8, 0, false) {
+                    public ByteBuffer allocate(int capacity) {
+                        borrowed[0]++;
+                        return super.allocate(capacity);
+                    }
+                    public void release(ByteBuffer buf) {
+                        borrowed[1]++;
+                        super.release(buf);
+                    }
+                };
+            final ArrayList<String> got = new ArrayList<String>();
+            final Reactor reactor = new Reactor();
+            reactor.setBufferPool(pool);
+            final LoopbackTransport client = reactor.connectLoopback(new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Int16StringReceiver() {
+                            public void stringReceived(byte[] hunk) {
+                                got.add(new String(hunk));
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                }, new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new com.twistedmatrix.internet.Protocol() {
+                            public void dataReceived(byte[] data) { }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) { }
+                });
+            reactor.callLater(0.01, new Runnable() {
+                    public void run() {
+                        client.write(new byte[] {0, 2, 'h', 'i'});
+                        client.pump();
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            Int16StringReceiver server =
+                (Int16StringReceiver) client.getPeer().getProtocol();
+            assertSame(pool, server.getBufferPool());
+            assertEquals(Arrays.asList("hi"), got);
+            assertEquals(1, borrowed[0]);
+            assertEquals(1, borrowed[1]);
+        }
     }
 
     public static class AmpParserTest extends TestCase {
@@ -56,6 +201,91 @@ public class TestAMP extends TestCase {
 
             ap.dataReceived(data);
             assertEquals(AMPBox.asString(received.get("hello")), "world");
+
+            // A partial box at the end is left alone.
+            byte[] more = Arrays.copyOf(data, data.length + 4);
+            more[data.length + 1] = 1;
+            more[data.length + 2] = 'k';
+            List<AMPBox> boxes = AMPParser.parseData(more);
+            assertEquals(1, boxes.size());
+            assertEquals("world", AMPBox.asString(boxes.get(0).get("hello")));
+        }
+
+        public void testBoxViews() throws Throwable {
+            final List<AMPBox> kept = new ArrayList<AMPBox>();
+            final String[] seen = new String[2];
+            AMPParser ap = new AMPParser() {
+                    public void ampBoxReceived(AMPBox hm) {
+                        seen[0] = hm.getHeaderString(AMPBox.COMMAND);
+                        seen[1] = AMPBox.asString(hm.getHeader(AMPBox.ASK));
+                        kept.add(hm);
+                    }
+                    protected boolean keepsBoxes() { return false; }
+                };
+
+            AMPBox box = new AMPBox();
+            box.put("_command", "Sum");
+            box.put("empty", "");
+            box.put("_ask", "1f");
+            box.put("a", "12");
+            byte[] data = box.encode();
+            // The empty value must not be taken for the end of the box.
+            ap.dataReceived(Arrays.copyOfRange(data, 0, data.length - 1));
+            assertEquals(0, kept.size());
+            ap.dataReceived(Arrays.copyOfRange(data, data.length - 1,
+                                               data.length));
+            assertEquals(1, kept.size());
+            assertEquals("Sum", seen[0]);
+            assertEquals("1f", seen[1]);
+            assertNull(kept.get(0).getHeader(AMPBox.ANSWER));
+            try {
+                kept.get(0).get("a");
+                fail("Read a box after its buffer was reused");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            // A kept box copies what it had not yet read.
+            AMPBox copy = AMPParser.parseData(data).get(0);
+            assertEquals(box, copy);
+            assertEquals("12", AMPBox.asString(copy.get("a")));
+            assertEquals("", AMPBox.asString(copy.get("empty")));
+            copy.remove("_command".getBytes());
+            assertNull(copy.getHeader(AMPBox.COMMAND));
+        }
+
+        /**
+         * Verify that keys are found in big boxes as in small ones: the
+         * first of duplicate keys wins, and removing or adding keys after
+         * a lookup is seen by the next one.
+         */
+        public void testKeyIndex() throws Throwable {
+            AMPBox box = new AMPBox();
+            for (int i = 0; i < 40; i++) {
+                box.put("field" + i, "" + i);
+            }
+            box.put("field7", "again");
+            assertEquals("7", AMPBox.asString(box.get("field7")));
+            assertEquals("39", AMPBox.asString(box.get("field39".getBytes())));
+            assertNull(box.get("field40"));
+
+            for (int i = 40; i < 100; i++) {
+                box.put("field" + i, "" + i);
+            }
+            assertEquals("99", AMPBox.asString(box.get("field99")));
+            assertEquals("7", AMPBox.asString(box.remove("field7".getBytes())));
+            assertEquals("again", AMPBox.asString(box.get("field7")));
+            assertEquals("8", AMPBox.asString(box.get("field8")));
+
+            // Latin-1 keys are found by the same bytes they were put with.
+            box.put("caf\u00e9", "ok");
+            assertEquals("ok", AMPBox.asString(box.get("caf\u00e9")));
+
+            // Wire order is kept.
+            AMPBox copy = AMPParser.parseData(box.encode()).get(0);
+            assertEquals(box.size(), copy.size());
+            assertTrue(Arrays.equals(box.encode(), copy.encode()));
+            assertEquals("again", AMPBox.asString(copy.get("field7")));
         }
 
         public void testParseData() throws Throwable {
@@ -196,14 +426,31 @@ public class TestAMP extends TestCase {
 
         class FakeTransport implements ITransport {
             ArrayList<byte[]> alb;
+            boolean paused;
+            int writes;
             public FakeTransport() {
                 alb = new ArrayList<byte[]>();
+                paused = false;
             }
             public void write(byte[] data) {
                 alb.add(data);
+                writes++;
+            }
+            public void writeSequence(List<byte[]> data) {
+                alb.addAll(data);
+                writes++;
             }
+            public void registerProducer(IPushProducer producer) { }
+            public void unregisterProducer() { }
+            public void setWriteBufferWaterMarks(int low, int high) { }
+            public int getBufferedAmount() { return 0; }
+            public void pauseProducing() { paused = true; }
+            public void resumeProducing() { paused = false; }
+            public void stopProducing() { }
             public void connectionLost(Throwable reason) { }
             public void loseConnection(Throwable reason) { }
+            public void abortConnection(Throwable reason) { }
+            public void setIdleTimeouts(double read, double write) { }
         }
 
 
@@ -239,6 +486,85 @@ public class TestAMP extends TestCase {
             this.assertEquals(1, lab.size());
             this.assertEquals("> pirates", new String(lab.get(0).get("_answer")));
         }
+        /**
+         * Verify that the commands of one read are all answered, in order,
+         * with one write.
+         */
+        public void testBatchedAnswers() throws Throwable {
+            FakeTransport ft = new FakeTransport();
+            AMP a = new AMP() {
+                    public void thingy() { }
+                };
+            a.localCommand("ninjas",
+                           new LocalCommand("thingy",new String[] {}));
+            a.makeConnection(ft);
+
+            java.io.ByteArrayOutputStream read =
+                new java.io.ByteArrayOutputStream();
+            for (String tag: new String[] {"a", "b", "c"}) {
+                AMPBox ab = new AMPBox();
+                ab.put("_command", "ninjas");
+                ab.put("_ask", tag);
+                read.write(ab.encode());
+            }
+            a.dataReceived(read.toByteArray());
+            assertEquals(1, ft.writes);
+            assertEquals(3, ft.alb.size());
+            String tags = "";
+            for (byte[] answer: ft.alb) {
+                tags += AMPBox.asString(
+                    AMPParser.parseData(answer).get(0).get("_answer"));
+            }
+            assertEquals("abc", tags);
+
+            // A box on its own is answered on its own.
+            byte[] one = Arrays.copyOfRange(read.toByteArray(), 0,
+                                            read.size() / 3);
+            a.dataReceived(one);
+            assertEquals(2, ft.writes);
+        }
+
+        /**
+         * Verify that the transport stops reading while the number of
+         * unanswered commands is at the limit, and resumes once one of
+         * them answers.
+         */
+        public void testInFlightLimitPausesReading() throws Throwable {
+
+            class DeferredReturner extends AMP {
+                public ArrayList<Deferred> ds = new ArrayList<Deferred>();
+                public Deferred thingy() {
+                    Deferred d = new Deferred();
+                    ds.add(d);
+                    return d;
+                }
+            }
+
+            FakeTransport ft = new FakeTransport();
+            DeferredReturner dr = new DeferredReturner();
+            dr.localCommand("ninjas",
+                            new LocalCommand("thingy",new String[] {}));
+            dr.makeConnection(ft);
+            dr.setMaxInFlightCommands(2);
+
+            for (String tag: new String[] {"a", "b"}) {
+                AMPBox ab = new AMPBox();
+                ab.put("_command", "ninjas");
+                ab.put("_ask", tag);
+                assertFalse(ft.paused);
+                dr.ampBoxReceived(ab);
+            }
+            assertEquals(2, dr.getInFlightCommands());
+            assertTrue(ft.paused);
+
+            dr.ds.get(0).callback(new Object());
+            assertEquals(1, dr.getInFlightCommands());
+            assertFalse(ft.paused);
+
+            dr.ds.get(1).errback(new Deferred.Failure(new Exception()));
+            assertEquals(0, dr.getInFlightCommands());
+        }
+
         /**
          * Verify that AMP commands that return a synchronous value
          * do not get Deferred.
@@ -326,10 +652,1131 @@ public class TestAMP extends TestCase {
         }
     }
 
+    public static class LoopbackTest extends TestCase {
+        public class SumClient extends AMP {
+            public ArrayList<Integer> totals = new ArrayList<Integer>();
+            public boolean lost = false;
+
+            public void sum(int a, int b) {
+                RemoteCommand<SumResp> remote = new RemoteCommand<SumResp>(
+                    "Sum", new SumParams(a, b), new SumResp());
+                remote.callRemote().addCallback(
+                    new Deferred.Callback<SumResp>() {
+                        public Object callback(SumResp resp) {
+                            totals.add(resp.total);
+                            return null;
+                        }
+                    });
+            }
+
+            @Override public void connectionLost(Throwable reason) {
+                lost = true;
+                super.connectionLost(reason);
+            }
+        }
+
+        /**
+         * Verify that commands and answers go through the whole AMP stack
+         * over a loopback connection, and only when it is pumped.
+         */
+        public void testCommands() throws Throwable {
+            SumClient client = new SumClient();
+            LoopbackTransport t = LoopbackTransport.connect(new SumServer(),
+                                                            client);
+            client.sum(1, 2);
+            client.sum(3, 4);
+            assertEquals(0, client.totals.size());
+            assertTrue(t.getBufferedAmount() > 0);
+
+            assertTrue(t.pump());
+            assertEquals(Arrays.asList(3, 7), client.totals);
+            assertEquals(0, t.getBufferedAmount());
+            assertFalse(t.pump());
+
+            t.loseConnection(new Throwable("Done"));
+            assertFalse(client.lost);
+            t.pump();
+            assertTrue(client.lost);
+        }
+
+        /**
+         * Verify that a paused receiver gets nothing until it resumes.
+         */
+        public void testPause() throws Throwable {
+            SumClient client = new SumClient();
+            LoopbackTransport t = LoopbackTransport.connect(new SumServer(),
+                                                            client);
+            t.getPeer().pauseProducing();
+            client.sum(5, 6);
+            assertFalse(t.pump());
+            assertEquals(0, client.totals.size());
+
+            t.getPeer().resumeProducing();
+            assertTrue(t.pump());
+            assertEquals(Arrays.asList(11), client.totals);
+        }
+
+        /**
+         * Verify that calls waiting when the connection is lost fail with
+         * ConnectionLost even if connectionLost is overridden without
+         * calling super, and that calls made afterwards fail at once.
+         */
+        public void testCallsFailWhenLost() throws Throwable {
+            final List<Object> results = new ArrayList<Object>();
+            Deferred.Callback<Object> record = new Deferred.Callback<Object>() {
+                    public Object callback(Object r) {
+                        results.add(r);
+                        return null;
+                    }
+                };
+            SumClient client = new SumClient() {
+                    @Override public void connectionLost(Throwable reason) { }
+                };
+            LoopbackTransport t = LoopbackTransport.connect(new SumServer(),
+                                                            client);
+            client.callRemote("Sum", new SumParams(1, 2),
+                              new SumResp()).addCallbacks(record, record);
+            assertEquals(1, client.getOutstandingCalls());
+            t.abortConnection(new Throwable("Gone"));
+            assertEquals(1, results.size());
+            assertEquals(0, client.getOutstandingCalls());
+
+            client.callRemote("Sum", new SumParams(3, 4),
+                              new SumResp()).addCallbacks(record, record);
+            assertEquals(2, results.size());
+            assertEquals(0, client.getOutstandingCalls());
+            for (Object r: results) {
+                Throwable f = ((Deferred.Failure) r).get();
+                assertTrue(f instanceof ConnectionLost);
+                assertEquals("Gone", f.getCause().getMessage());
+            }
+        }
+
+        /**
+         * Verify that idempotent calls on a lost connection are kept until
+         * another takes them over or they are failed, and that calls made
+         * on it after that fail at once instead of being kept for good.
+         */
+        public void testKeptCallsAfterTakeOver() throws Throwable {
+            final List<Object> results = new ArrayList<Object>();
+            Deferred.Callback<Object> record = new Deferred.Callback<Object>() {
+                    public Object callback(Object r) {
+                        results.add(r);
+                        return null;
+                    }
+                };
+            SumClient lost = new SumClient();
+            lost.setIdempotent("Sum", true);
+            lost.setKeepIdempotent(true);
+            LoopbackTransport t = LoopbackTransport.connect(new SumServer(),
+                                                            lost);
+            t.abortConnection(new Throwable("Gone"));
+            lost.callRemote("Sum", new SumParams(1, 2),
+                            new SumResp()).addCallbacks(record, record);
+            assertEquals(1, lost.getKeptCalls());
+            assertEquals(0, results.size());
+
+            SumClient next = new SumClient();
+            LoopbackTransport t2 = LoopbackTransport.connect(new SumServer(),
+                                                             next);
+            assertEquals(1, next.takeOver(lost));
+            t2.pump();
+            assertEquals(1, results.size());
+            assertEquals(3, ((SumResp) results.get(0)).total);
+
+            lost.callRemote("Sum", new SumParams(3, 4),
+                            new SumResp()).addCallbacks(record, record);
+            assertEquals(0, lost.getKeptCalls());
+            assertEquals(2, results.size());
+            Throwable f = ((Deferred.Failure) results.get(1)).get();
+            assertTrue(f instanceof ConnectionLost);
+
+            SumClient failed = new SumClient();
+            failed.setIdempotent("Sum", true);
+            failed.setKeepIdempotent(true);
+            LoopbackTransport.connect(new SumServer(), failed)
+                .abortConnection(new Throwable("Gone"));
+            failed.failKeptCalls();
+            failed.callRemote("Sum", new SumParams(5, 6),
+                              new SumResp()).addCallbacks(record, record);
+            assertEquals(0, failed.getKeptCalls());
+            assertEquals(3, results.size());
+            f = ((Deferred.Failure) results.get(2)).get();
+            assertTrue(f instanceof ConnectionLost);
+        }
+
+        /**
+         * Verify that a command whose responder fails, at once or through
+         * its Deferred, is answered with an error rather than never.
+         */
+        public void testFailedCommandsAnswerErrors() throws Throwable {
+            final List<Object> results = new ArrayList<Object>();
+            Deferred.Callback<Object> record = new Deferred.Callback<Object>() {
+                    public Object callback(Object r) {
+                        results.add(r);
+                        return null;
+                    }
+                };
+            final Deferred later = new Deferred();
+            SumServer server = new SumServer() {
+                    public Object sum(int a, int b) {
+                        if (a == 0) {
+                            throw new IllegalArgumentException("Zero");
+                        }
+                        return later;
+                    }
+                };
+            SumClient client = new SumClient();
+            LoopbackTransport t = LoopbackTransport.connect(server, client);
+            client.callRemote("Sum", new SumParams(0, 1),
+                              new SumResp()).addCallbacks(record, record);
+            client.callRemote("Sum", new SumParams(1, 1),
+                              new SumResp()).addCallbacks(record, record);
+            t.pump();
+            assertEquals(1, results.size());
+            assertEquals(1, server.getInFlightCommands());
+
+            later.errback(new Deferred.Failure(new Exception("Later")));
+            assertEquals(0, server.getInFlightCommands());
+            t.pump();
+            assertEquals(2, results.size());
+            assertEquals(0, client.getOutstandingCalls());
+            for (Object r: results) {
+                Throwable f = ((Deferred.Failure) r).get();
+                assertEquals(AMP.UNHANDLED_ERROR_CODE + " Unknown Error",
+                             f.getMessage());
+            }
+        }
+    }
+
+    public static class ConnectionPoolTest extends TestCase {
+        ArrayList<SumServer> servers = new ArrayList<SumServer>();
+
+        /**
+         * Verify that calls made before the pool is up wait for it, that
+         * calls are spread over the connections, and that a lost
+         * connection is replaced.
+         */
+        public void testRoutingAndReplacement() throws Throwable {
+            final Reactor reactor = new Reactor();
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        SumServer server = new SumServer();
+                        servers.add(server);
+                        return server;
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final ConnectionPool pool = new ConnectionPool(
+                reactor, "127.0.0.1", port.getHost().getPort(), new IFactory() {
+                        public IProtocol buildProtocol(Object addr) {
+                            return new AMP();
+                        }
+                    }, 2);
+            final ArrayList<Integer> totals = new ArrayList<Integer>();
+            final int[] phase = new int[1];
+            final int[] before = new int[2];
+            final int[] shared = new int[2];
+
+            pool.start();
+            for (int i = 0; i < 4; i++) {
+                pool.callRemote("Sum", new SumParams(i, 1), new SumResp())
+                    .addCallback(new Deferred.Callback<SumResp>() {
+                            public Object callback(SumResp resp) {
+                                totals.add(resp.total);
+                                return null;
+                            }
+                        });
+            }
+            assertEquals(0, pool.getConnectionCount());
+            assertEquals(4, pool.getOutstandingCalls());
+
+            Runnable check = new Runnable() {
+                    public void run() {
+                        if (phase[0] == 0 && totals.size() == 4 &&
+                            pool.getConnectionCount() == 2) {
+                            // Both connected: the next calls are shared.
+                            phase[0] = 1;
+                            before[0] = servers.get(0).calls;
+                            before[1] = servers.get(1).calls;
+                            for (int i = 0; i < 4; i++) {
+                                pool.callRemote("Sum", new SumParams(i, 1),
+                                                new SumResp());
+                            }
+                        } else if (phase[0] == 1 &&
+                                   pool.getOutstandingCalls() == 0) {
+                            phase[0] = 2;
+                            shared[0] = servers.get(0).calls - before[0];
+                            shared[1] = servers.get(1).calls - before[1];
+                            port.getConnections().iterator().next()
+                                .loseConnection(new Throwable("Kill"));
+                        } else if (phase[0] == 2 && servers.size() == 3 &&
+                                   pool.getConnectionCount() == 2) {
+                            phase[0] = 3;
+                            pool.stop();
+                            port.loseConnection(new Throwable("Done"));
+                            reactor.stop();
+                            return;
+                        }
+                        reactor.callLater(0.01, this);
+                    }
+                };
+            reactor.callLater(0.01, check);
+            reactor.callLater(10, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(3, phase[0]);
+            assertEquals(4, totals.size());
+            assertEquals(2, shared[0]);
+            assertEquals(2, shared[1]);
+            assertEquals(8, servers.get(0).calls + servers.get(1).calls);
+        }
+    }
+
+    public static class HashRingTest extends TestCase {
+        static byte[] key(int i) {
+            return ("key" + i).getBytes();
+        }
+
+        /**
+         * Verify that keys are spread over the nodes, and that removing a
+         * node only moves the keys which were on it.
+         */
+        public void testSpreadAndMovement() {
+            HashRing<String> ring = new HashRing<String>(160);
+            assertNull(ring.get(key(0)));
+            for (String n: new String[] {"a", "b", "c", "d"}) {
+                ring.add(n, n);
+            }
+
+            int keys = 10000;
+            String[] before = new String[keys];
+            HashMap<String, Integer> counts = new HashMap<String, Integer>();
+            for (int i = 0; i < keys; i++) {
+                before[i] = ring.get(key(i));
+                Integer c = counts.get(before[i]);
+                counts.put(before[i], c == null ? 1 : c + 1);
+            }
+            assertEquals(4, counts.size());
+            for (int c: counts.values()) {
+                assertTrue("unbalanced: " + counts, c > keys / 8 && c < keys / 2);
+            }
+
+            ring.remove("c");
+            assertEquals(3, ring.size());
+            for (int i = 0; i < keys; i++) {
+                String now = ring.get(key(i));
+                if (before[i].equals("c")) {
+                    assertFalse("c".equals(now));
+                } else {
+                    assertEquals(before[i], now);
+                }
+            }
+
+            ring.add("c", "c");
+            for (int i = 0; i < keys; i++) {
+                assertEquals(before[i], ring.get(key(i)));
+            }
+        }
+    }
+
+    public static class ClusterClientTest extends TestCase {
+        static final int KEYS = 60;
+        Reactor reactor;
+        ClusterClient client;
+        ArrayList<ArrayList<SumServer>> servers =
+            new ArrayList<ArrayList<SumServer>>();
+        int[] owners = new int[KEYS];
+        int answered;
+
+        /* Answers with the index of its node in the thousands. */
+        public class NodeServer extends SumServer {
+            int index;
+            public NodeServer(int index) {
+                this.index = index;
+            }
+
+            public Object sum(int a, int b) {
+                SumResp resp = (SumResp) super.sum(a, b);
+                resp.total += 1000 * index;
+                return resp;
+            }
+        }
+
+        IListeningPort listen(final int index) throws Throwable {
+            servers.add(new ArrayList<SumServer>());
+            return reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        SumServer server = new NodeServer(index);
+                        servers.get(index).add(server);
+                        return server;
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+        }
+
+        /* Ask every key, noting which node answered it. */
+        void callAll() {
+            answered = 0;
+            for (int i = 0; i < KEYS; i++) {
+                final int key = i;
+                client.callRemote("Sum", new SumParams(i, 0), new SumResp())
+                    .addCallback(new Deferred.Callback<SumResp>() {
+                            public Object callback(SumResp resp) {
+                                assertEquals(key, resp.total % 1000);
+                                owners[key] = resp.total / 1000;
+                                answered++;
+                                return null;
+                            }
+                        });
+            }
+        }
+
+        /**
+         * Verify that keys are spread over the nodes, that only a lost
+         * node's keys move and come back once it is reconnected, and that
+         * the late loss of a removed node's old connection does not take
+         * the node off the ring again once it has been added back.
+         */
+        public void testRoutingLossAndReAdding() throws Throwable {
+            reactor = new Reactor();
+            client = new ClusterClient(reactor, new IFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new AMP();
+                    }
+                }, "a");
+            final IListeningPort[] ports = new IListeningPort[3];
+            for (int i = 0; i < 3; i++) {
+                ports[i] = listen(i);
+                client.addNode("127.0.0.1", ports[i].getHost().getPort());
+            }
+            final int[] phase = new int[1];
+            final int[] first = new int[KEYS];
+            final ITransport[] old = new ITransport[1];
+            final int lost = 1;
+            final int lostPort = ports[lost].getHost().getPort();
+
+            Runnable check = new Runnable() {
+                    public void run() {
+                        if (phase[0] == 0 && client.getNodeCount() == 3) {
+                            phase[0] = 1;
+                            callAll();
+                        } else if (phase[0] == 1 && answered == KEYS) {
+                            // Every node has some keys; now lose one.
+                            phase[0] = 2;
+                            System.arraycopy(owners, 0, first, 0, KEYS);
+                            int[] counts = new int[3];
+                            for (int o: first) {
+                                counts[o]++;
+                            }
+                            for (int c: counts) {
+                                assertTrue(c > 0);
+                            }
+                            servers.get(lost).get(0).transport()
+                                .loseConnection(new Throwable("Kill"));
+                        } else if (phase[0] == 2 &&
+                                   client.getNodeCount() == 2) {
+                            phase[0] = 3;
+                            callAll();
+                        } else if (phase[0] == 3 && answered == KEYS) {
+                            // Only the lost node's keys moved.
+                            phase[0] = 4;
+                            for (int i = 0; i < KEYS; i++) {
+                                assertTrue(owners[i] != lost);
+                                if (first[i] != lost) {
+                                    assertEquals(first[i], owners[i]);
+                                }
+                            }
+                        } else if (phase[0] == 4 &&
+                                   client.getNodeCount() == 3) {
+                            // Reconnected.  Remove and add it again, and
+                            // hold up the loss of the old connection.
+                            phase[0] = 5;
+                            ArrayList<SumServer> s = servers.get(lost);
+                            assertEquals(2, s.size());
+                            old[0] = s.get(1).transport();
+                            old[0].pauseProducing();
+                            client.removeNode("127.0.0.1", lostPort);
+                            assertEquals(2, client.getNodeCount());
+                            client.addNode("127.0.0.1", lostPort);
+                        } else if (phase[0] == 5 &&
+                                   servers.get(lost).size() == 3 &&
+                                   client.getNodeCount() == 3) {
+                            phase[0] = 6;
+                            old[0].resumeProducing();
+                            reactor.callLater(0.2, new Runnable() {
+                                    public void run() {
+                                        phase[0] = 7;
+                                        callAll();
+                                    }
+                                });
+                        } else if (phase[0] == 7 && answered == KEYS) {
+                            assertEquals(3, client.getNodeCount());
+                            for (int i = 0; i < KEYS; i++) {
+                                assertEquals(first[i], owners[i]);
+                            }
+                            phase[0] = 8;
+                            client.stop();
+                            for (IListeningPort p: ports) {
+                                p.loseConnection(new Throwable("Done"));
+                            }
+                            reactor.stop();
+                            return;
+                        }
+                        reactor.callLater(0.01, this);
+                    }
+                };
+            reactor.callLater(0.01, check);
+            reactor.callLater(10, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(8, phase[0]);
+        }
+    }
+
+    public static class HedgeTest extends TestCase {
+        Reactor reactor;
+        int built = 0;
+
+        public class MaybeSlowServer extends SumServer {
+            double delay;
+            public MaybeSlowServer(double delay) {
+                this.delay = delay;
+            }
+
+            public Object sum(int a, int b) {
+                final Deferred d = new Deferred();
+                final Object resp = super.sum(a, b);
+                reactor.callLater(delay, new Runnable() {
+                        public void run() {
+                            d.callback(resp);
+                        }
+                    });
+                return d;
+            }
+        }
+
+        /**
+         * Verify that percentiles come from the recent samples only.
+         */
+        public void testPercentile() {
+            LatencyTracker t = new LatencyTracker(100);
+            assertEquals(-1, t.percentile("x", 0.5));
+            for (int i = 1; i <= 200; i++) {
+                t.record("x", i);
+            }
+            assertEquals(100, t.getSampleCount("x"));
+            assertEquals(150, t.percentile("x", 0.5));
+            assertEquals(199, t.percentile("x", 0.99));
+        }
+
+        /* A pool of a fast and a slow connection, which hedges Sum once
+         * it has taken 100ms, well clear of the fast one even cold. */
+        ConnectionPool hedgingPool(IListeningPort port, int seeds) {
+            ConnectionPool pool = new ConnectionPool(
+                reactor, "127.0.0.1", port.getHost().getPort(), new IFactory() {
+                        public IProtocol buildProtocol(Object addr) {
+                            return new AMP();
+                        }
+                    }, 2);
+            pool.setIdempotent("Sum", true);
+            for (int i = 0; i < seeds; i++) {
+                pool.getLatencyTracker().record("Sum", 100000000);
+            }
+            return pool;
+        }
+
+        IListeningPort listenFastAndSlow() throws Throwable {
+            return reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new MaybeSlowServer(built++ == 0 ? 0 : 0.5);
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+        }
+
+        /**
+         * Verify that idempotent calls on a slow connection are asked again
+         * on the other, that the first answer wins, and that the late
+         * answers are ignored.
+         */
+        public void testSlowConnectionIsHedged() throws Throwable {
+            reactor = new Reactor();
+            final IListeningPort port = listenFastAndSlow();
+            final ConnectionPool pool = hedgingPool(port, 50);
+            final ArrayList<Integer> totals = new ArrayList<Integer>();
+            final long[] answeredAt = new long[1];
+            final long start = System.nanoTime();
+
+            pool.start();
+            reactor.callLater(0.2, new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < 4; i++) {
+                            pool.callRemote("Sum", new SumParams(i, 1),
+                                            new SumResp())
+                                .addCallback(new Deferred.Callback<SumResp>() {
+                                        public Object callback(SumResp r) {
+                                            totals.add(r.total);
+                                            answeredAt[0] = System.nanoTime();
+                                            return null;
+                                        }
+                                    });
+                        }
+                    }
+                });
+            reactor.callLater(1.0, new Runnable() {
+                    public void run() {
+                        pool.stop();
+                        port.loseConnection(new Throwable("Done"));
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(4, totals.size());
+            assertEquals(2, pool.getHedgedCalls());
+            assertTrue((answeredAt[0] - start) / 1e9 < 0.6);
+        }
+
+        /**
+         * Verify that the asks which lose a hedge are still timed when
+         * their answers come, so that the tracker keeps seeing the slow
+         * connection, and that hedging does not grow round after round.
+         */
+        public void testLosingAsksAreTimed() throws Throwable {
+            reactor = new Reactor();
+            final IListeningPort port = listenFastAndSlow();
+            final ConnectionPool pool = hedgingPool(port, 50);
+            final LatencyTracker tracker = pool.getLatencyTracker();
+            final long[] hedged = new long[2];
+            final long[] p95 = new long[2];
+            final int[] answered = new int[1];
+
+            pool.start();
+            for (int r = 0; r < 2; r++) {
+                final int round = r;
+                reactor.callLater(0.2 + 0.8 * r, new Runnable() {
+                        public void run() {
+                            for (int i = 0; i < 4; i++) {
+                                pool.callRemote("Sum", new SumParams(i, 1),
+                                                new SumResp())
+                                    .addCallback(new Deferred.Callback<SumResp>() {
+                                            public Object callback(SumResp resp) {
+                                                answered[0]++;
+                                                return null;
+                                            }
+                                        });
+                            }
+                        }
+                    });
+                // Just before the next round, once the losers have answered.
+                reactor.callLater(0.9 + 0.8 * r, new Runnable() {
+                        public void run() {
+                            hedged[round] = pool.getHedgedCalls();
+                            p95[round] = tracker.percentile("Sum", 0.95);
+                        }
+                    });
+            }
+            reactor.callLater(1.8, new Runnable() {
+                    public void run() {
+                        pool.stop();
+                        port.loseConnection(new Throwable("Done"));
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(8, answered[0]);
+            assertEquals(2, hedged[0]);
+            assertEquals(4, hedged[1]);
+            // Every ask was timed: 8 calls and the 4 hedges of them.
+            assertEquals(50 + 12, tracker.getSampleCount("Sum"));
+            assertTrue(tracker.percentile("Sum", 0.99) >= 400000000L);
+            assertTrue(p95[1] >= p95[0]);
+        }
+    }
+
+    public static class ReconnectTest extends TestCase {
+        Reactor reactor;
+        int built = 0;
+
+        /* Leaves its first connection's calls unanswered, and drops that
+         * connection when asked to multiply. */
+        public class FlakyServer extends SumServer {
+            boolean flaky;
+            public class MulCommand extends LocalCommand {
+                public int a;
+                public int b;
+                public MulCommand() { super("mul", new String[] {"a", "b"}); }
+            }
+            public FlakyServer(boolean flaky) {
+                this.flaky = flaky;
+                localCommand("Mul", new MulCommand());
+            }
+
+            public Object sum(int a, int b) {
+                if (flaky) {
+                    return new Deferred();
+                }
+                return super.sum(a, b);
+            }
+
+            public Object mul(int a, int b) {
+                if (flaky) {
+                    transport().loseConnection(new Throwable("Flaky"));
+                    return new Deferred();
+                }
+                SumResp r = new SumResp();
+                r.total = a * b;
+                return r;
+            }
+        }
+
+        /**
+         * Verify that the backoff grows by its factor up to the maximum,
+         * and starts over once a connection is made.
+         */
+        public void testBackoff() throws Throwable {
+            final ArrayList<Throwable> gaveUp = new ArrayList<Throwable>();
+            ReconnectingClientFactory f =
+                new ReconnectingClientFactory(new Reactor()) {
+                    public IProtocol buildProtocol(Object addr) {
+                        return null;
+                    }
+                    protected void gaveUp(Throwable reason) {
+                        gaveUp.add(reason);
+                    }
+                };
+            f.setInitialDelay(1.0);
+            f.setMaxDelay(5.0);
+            f.setMaxRetries(4);
+            Throwable refused = new Throwable("Refused");
+            double[] delays = { 2.0, 4.0, 5.0, 5.0 };
+            for (double d: delays) {
+                f.clientConnectionFailed(null, refused);
+                assertEquals(d, f.getDelay());
+            }
+            assertEquals(4, f.getRetries());
+            f.clientConnectionMade(null, null);
+            assertEquals(1.0, f.getDelay());
+            assertEquals(0, f.getRetries());
+
+            for (int i = 0; i < 5; i++) {
+                f.clientConnectionFailed(null, refused);
+            }
+            assertTrue(f.isStopped());
+            assertEquals(1, gaveUp.size());
+            assertSame(refused, gaveUp.get(0));
+        }
+
+        /**
+         * Verify that when the connection is lost, a waiting call fails
+         * with ConnectionLost, an idempotent one is asked again on the new
+         * connection, and the factory reconnects.
+         */
+        public void testFailover() throws Throwable {
+            reactor = new Reactor();
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new FlakyServer(built++ == 0);
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final ReconnectingAMPFactory factory = new ReconnectingAMPFactory(
+                reactor, new IFactory() {
+                        public IProtocol buildProtocol(Object addr) {
+                            return new AMP();
+                        }
+                    });
+            factory.setInitialDelay(0.05);
+            factory.setJitter(0);
+            factory.setIdempotent("Sum", true);
+            final ArrayList<Object> results = new ArrayList<Object>();
+            final Deferred.Callback<Object> record = new Deferred.Callback<Object>() {
+                    public Object callback(Object r) {
+                        results.add(r);
+                        return null;
+                    }
+                };
+
+            reactor.connectTCP("127.0.0.1", port.getHost().getPort(), factory);
+            reactor.callLater(0.2, new Runnable() {
+                    public void run() {
+                        AMP amp = factory.getProtocol();
+                        amp.callRemote("Sum", new SumParams(2, 3), new SumResp())
+                            .addCallbacks(record, record);
+                        amp.callRemote("Mul", new SumParams(2, 3), new SumResp())
+                            .addCallbacks(record, record);
+                    }
+                });
+            reactor.callLater(0.8, new Runnable() {
+                    public void run() {
+                        factory.stopTrying();
+                        factory.getConnector().loseConnection(
+                            new Throwable("Done"));
+                        port.loseConnection(new Throwable("Done"));
+                    }
+                });
+            // The connection closes once the server has closed its side.
+            reactor.callLater(1.0, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(2, built);
+            assertEquals(2, results.size());
+            Deferred.Failure f = (Deferred.Failure) results.get(0);
+            assertTrue(f.get() instanceof ConnectionLost);
+            assertEquals(5, ((SumResp) results.get(1)).total);
+            assertEquals(1, factory.getRetriedCalls());
+            assertNull(factory.getProtocol());
+        }
+    }
+
+    public static class LimitsTest extends TestCase {
+        Throwable lost;
+
+        /* A server whose connection is recorded when lost, reached by a
+         * client which writes whatever it is told to. */
+        LoopbackTransport connect(ProtocolLimits limits) {
+            AMP server = new AMP() {
+                    public void connectionLost(Throwable reason) {
+                        lost = reason;
+                        super.connectionLost(reason);
+                    }
+                };
+            server.setLimits(limits);
+            return LoopbackTransport.connect(
+                server, new com.twistedmatrix.internet.Protocol() {
+                        public void dataReceived(byte[] data) { }
+                    });
+        }
+
+        /**
+         * Verify that a box with too many keys drops the connection, and
+         * that the violation is counted.
+         */
+        public void testTooManyKeys() throws Throwable {
+            ProtocolLimits limits = new ProtocolLimits();
+            limits.setMaxKeys(2);
+            LoopbackTransport client = connect(limits);
+            AMPBox box = new AMPBox();
+            box.put("a", "1");
+            box.put("b", "2");
+            client.write(box.encode());
+            client.pump();
+            assertNull(lost);
+            box.put("c", "3");
+            client.write(box.encode());
+            client.pump();
+            assertTrue(lost instanceof LimitExceeded);
+            assertEquals(1, limits.getViolations(ProtocolLimits.Limit.KEYS));
+            assertEquals(1, limits.getViolations());
+        }
+
+        /**
+         * Verify that a box is refused as soon as a frame announces that
+         * it will be too big, before the frame itself arrives.
+         */
+        public void testEarlyRejection() throws Throwable {
+            ProtocolLimits limits = new ProtocolLimits();
+            limits.setMaxBoxBytes(1000);
+            LoopbackTransport client = connect(limits);
+            client.write(new byte[] { 0, 1, 'k', 0x10, 0 });
+            client.pump();
+            assertTrue(lost instanceof LimitExceeded);
+            assertEquals(1, limits.getViolations(
+                             ProtocolLimits.Limit.BOX_BYTES));
+        }
+
+        /**
+         * Verify that unparsed data may not pile up past its limit.
+         */
+        public void testTooMuchBuffered() throws Throwable {
+            ProtocolLimits limits = new ProtocolLimits();
+            limits.setMaxBuffered(100);
+            LoopbackTransport client = connect(limits);
+            byte[] partial = new byte[60];
+            // A key, and the first bytes of a 200 byte value.
+            System.arraycopy(new byte[] { 0, 1, 'k', 0, (byte) 200 }, 0,
+                             partial, 0, 5);
+            client.write(partial);
+            client.pump();
+            assertNull(lost);
+            client.write(new byte[60]);
+            client.pump();
+            assertTrue(lost instanceof LimitExceeded);
+            assertEquals(1, limits.getViolations(
+                             ProtocolLimits.Limit.BUFFERED));
+        }
+
+        /**
+         * Verify that a server factory gives its limits to its protocols.
+         */
+        public void testServerFactoryLimits() throws Throwable {
+            ProtocolLimits limits = new ProtocolLimits();
+            ServerFactory sf = new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new AMP();
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                };
+            sf.setLimits(limits);
+            ClientFactory cf = new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new AMP();
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) { }
+                };
+            LoopbackTransport client = new Reactor().connectLoopback(sf, cf);
+            AMP server = (AMP) client.getPeer().getProtocol();
+            assertSame(limits, server.getLimits());
+            assertNull(((AMP) client.getProtocol()).getLimits());
+        }
+    }
+
+    public static class KeepAliveTest extends TestCase {
+        Reactor reactor;
+
+        /**
+         * Verify that a ping is answered without a responder, and that it
+         * measures the round trip time.
+         */
+        public void testPing() throws Throwable {
+            AMP client = new AMP();
+            LoopbackTransport.connect(new AMP(), client);
+            final ArrayList<Object> rtts = new ArrayList<Object>();
+            client.ping().addCallback(new Deferred.Callback<Object>() {
+                    public Object callback(Object rtt) {
+                        rtts.add(rtt);
+                        return null;
+                    }
+                });
+            assertEquals(-1, client.getRoundTripTime());
+            ((LoopbackTransport) client.transport()).pump();
+            assertEquals(1, rtts.size());
+            assertTrue(client.getRoundTripTime() >= 0);
+            assertEquals(client.getRoundTripTime(), rtts.get(0));
+        }
+
+        /**
+         * Verify that a peer which stops answering is noticed by the
+         * keepalive, and that the calls waiting on it fail, while a live
+         * peer keeps its connection.
+         */
+        public void testDeadPeerIsAborted() throws Throwable {
+            reactor = new Reactor();
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    int built = 0;
+                    public IProtocol buildProtocol(Object addr) {
+                        if (built++ == 0) {
+                            return new AMP();
+                        }
+                        // Reads everything and never answers.
+                        return new com.twistedmatrix.internet.Protocol() {
+                            public void dataReceived(byte[] data) { }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final AMP[] clients = new AMP[2];
+            final ArrayList<Throwable> lost = new ArrayList<Throwable>();
+            for (int i = 0; i < 2; i++) {
+                final int n = i;
+                reactor.callLater(0.05 * i, new Runnable() {
+                        public void run() {
+                            try {
+                                reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                                        public IProtocol buildProtocol(Object addr) {
+                                            clients[n] = new AMP();
+                                            clients[n].setKeepAlive(0.1, 0.1);
+                                            return clients[n];
+                                        }
+                                        public void clientConnectionFailed(IConnector c, Throwable r) { }
+                                    });
+                            } catch (Throwable t) {
+                                t.printStackTrace();
+                            }
+                        }
+                    });
+            }
+            reactor.callLater(0.2, new Runnable() {
+                    public void run() {
+                        clients[1].callRemote("Sum", new SumParams(1, 0), new SumResp())
+                            .addErrback(new Deferred.Callback<Deferred.Failure>() {
+                                    public Object callback(Deferred.Failure f) {
+                                        lost.add(f.get());
+                                        return null;
+                                    }
+                                });
+                    }
+                });
+            reactor.callLater(0.8, new Runnable() {
+                    public void run() {
+                        clients[0].transport().loseConnection(null);
+                        port.loseConnection(new Throwable("Done"));
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(1, lost.size());
+            assertTrue(lost.get(0) instanceof ConnectionLost);
+            assertTrue(lost.get(0).getCause() instanceof IdleTimeout);
+            assertTrue(clients[0].getRoundTripTime() > 0);
+        }
+
+        /**
+         * Verify that the keepalive pings over a BlockingReactor too,
+         * keeping a healthy connection open.
+         */
+        public void testKeepAliveOnBlockingReactor() throws Throwable {
+            reactor = new BlockingReactor();
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new AMP();
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final AMP client = new AMP();
+            client.setKeepAlive(0.1, 0.1);
+            final ArrayList<Throwable> lost = new ArrayList<Throwable>();
+            final IConnector c = reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return client;
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) { }
+                    public void clientConnectionLost(IConnector c, Throwable r) {
+                        lost.add(r);
+                    }
+                });
+            reactor.callLater(0.6, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+            boolean open = lost.isEmpty();
+            c.loseConnection(new Throwable("Done"));
+            port.loseConnection(new Throwable("Done"));
+
+            assertTrue(open);
+            assertTrue(client.getRoundTripTime() > 0);
+        }
+    }
+
+    public static class WatermarkTest extends TestCase {
+        Reactor reactor;
+
+        /**
+         * Verify that a producer registered by the application on an AMP
+         * connection is paused once the writes go past the high watermark
+         * and resumed once the peer reads them, and that AMP itself hears
+         * about both through writabilityChanged.
+         */
+        public void testProducerPausedAndResumed() throws Throwable {
+            reactor = new Reactor();
+            final ArrayList<String> events = new ArrayList<String>();
+            final int[] received = new int[1];
+            final int total = 16 * 1024 * 1024;
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        // Reads nothing for a while, then everything.
+                        return new com.twistedmatrix.internet.Protocol() {
+                            public void connectionMade() {
+                                final ITransport t = transport();
+                                t.pauseProducing();
+                                reactor.callLater(0.3, new Runnable() {
+                                        public void run() {
+                                            events.add("read");
+                                            t.resumeProducing();
+                                        }
+                                    });
+                            }
+                            public void dataReceived(byte[] data) {
+                                received[0] += data.length;
+                                if (received[0] == total) {
+                                    transport().loseConnection(null);
+                                }
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final AMP client = new AMP() {
+                    public void connectionMade() {
+                        super.connectionMade();
+                        transport().registerProducer(new IPushProducer() {
+                                public void pauseProducing() {
+                                    events.add("pause");
+                                }
+                                public void resumeProducing() {
+                                    events.add("resume");
+                                }
+                                public void stopProducing() { }
+                            });
+                        transport().write(new byte[total]);
+                    }
+                    public void writabilityChanged(boolean writable) {
+                        events.add("writable " + writable);
+                    }
+                    public void connectionLost(Throwable reason) {
+                        super.connectionLost(reason);
+                        port.loseConnection(new Throwable("Done"));
+                        reactor.stop();
+                    }
+                };
+            reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return client;
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) { }
+                });
+            reactor.callLater(10.0, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+
+            assertEquals(total, received[0]);
+            assertEquals(Arrays.asList(new String[] {
+                        "writable false", "pause", "read",
+                        "writable true", "resume" }), events);
+        }
+    }
+
     public static Test suite() {
         TestSuite suite = new TestSuite();
         suite.addTest(new TestSuite(Int16ReceiverTest.class));
         suite.addTest(new TestSuite(AmpParserTest.class));
+        suite.addTest(new TestSuite(LoopbackTest.class));
+        suite.addTest(new TestSuite(ConnectionPoolTest.class));
+        suite.addTest(new TestSuite(HashRingTest.class));
+        suite.addTest(new TestSuite(ClusterClientTest.class));
+        suite.addTest(new TestSuite(HedgeTest.class));
+        suite.addTest(new TestSuite(ReconnectTest.class));
+        suite.addTest(new TestSuite(KeepAliveTest.class));
+        suite.addTest(new TestSuite(LimitsTest.class));
+        suite.addTest(new TestSuite(WatermarkTest.class));
         return suite;
     }
 }
@@ -0,0 +1,776 @@
+package com.twistedmatrix.internet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A reactor which gives every connection a thread of its own, reading and
+ * writing with blocking I/O.  The protocol of a connection, and so the
+ * responders of an AMP connection, are only ever called on that thread,
+ * where they may block on a database or a file without holding up any
+ * other connection.  Where the Java runtime has virtual threads they are
+ * used, so that the number of connections is not limited by the number of
+ * platform threads; otherwise every connection costs a platform thread.
+ * Nothing holds a monitor while it blocks, so a virtual thread waiting on
+ * its socket never pins the platform thread it runs on.
+ * Timed events, {@link #callFromThread} and the results of
+ * {@link #deferToThread} still run on the thread of {@link #run}.  Those
+ * scheduled from the thread of a connection take turns with it: they
+ * never run while its protocol is being called, and wait for the call in
+ * progress to return.  Writes go straight to the socket and return once
+ * it has taken all of the data, so nothing is ever buffered and a
+ * registered producer is never paused.
+ * Ports and connections start working as soon as they are created,
+ * without waiting for run().  SSL connections shake hands on their own
+ * thread before the protocol is connected.
+ */
+public class BlockingReactor extends Reactor {
+    private static int	  BUFFER_SIZE = 8 * 1024;
+
+    private static Method _ofVirtual;
+    private static Method _name;
+    private static Method _unstarted;
+
+    static {
+	try {
+	    Class<?> builder = Class.forName("java.lang.Thread$Builder");
+	    _ofVirtual = Thread.class.getMethod("ofVirtual");
+	    _name = builder.getMethod("name", String.class);
+	    _unstarted = builder.getMethod("unstarted", Runnable.class);
+	} catch (Exception e) {
+	    _ofVirtual = null;	// Not before Java 21
+	}
+    }
+
+    private boolean		   _virtual;
+    private Set<BlockingPort> _ports;
+
+    /* The connection whose protocol the calling thread is running. */
+    private ThreadLocal<BlockingConnection> _current;
+
+    public BlockingReactor() throws IOException {
+	this(true);
+    }
+
+    /**
+     * @param virtual Whether to use virtual threads when the runtime has
+     *	 them.  Platform threads are used regardless when it does not.
+     */
+    public BlockingReactor(boolean virtual) throws IOException {
+	super();
+	_virtual = virtual && _ofVirtual != null;
+	_ports = Collections.newSetFromMap(
+	    new ConcurrentHashMap<BlockingPort, Boolean>());
+	_current = new ThreadLocal<BlockingConnection>();
+    }
+
+    /** Returns true if the runtime has virtual threads. */
+    public static boolean hasVirtualThreads() { return _ofVirtual != null; }
+
+    /** Returns true if connections run on virtual threads. */
+    public boolean usesVirtualThreads() { return _virtual; }
+
+    /* Start a thread for a connection, virtual if we can. */
+    private Thread startThread(Runnable r, String name) {
+	Thread t = null;
+	if (_virtual) {
+	    try {
+		Object builder = _ofVirtual.invoke(null);
+		builder = _name.invoke(builder, name);
+		t = (Thread) _unstarted.invoke(builder, r);
+	    } catch (Exception e) {
+		throw new Error("Unable to create a virtual thread", e);
+	    }
+	} else {
+	    t = new Thread(r, name);
+	    t.setDaemon(true);
+	}
+	t.start();
+	return t;
+    }
+
+    /* Something scheduled from the thread of a connection takes its turn
+     * with that connection's protocol when it runs. */
+    private Runnable inTurn(final Runnable r) {
+	final BlockingConnection conn = _current.get();
+	if (conn == null) {
+	    return r;
+	}
+	return new Runnable() {
+		public void run() {
+		    conn.callInTurn(r);
+		}
+	    };
+    }
+
+    /** Runs something later, in turn with the protocol of the connection
+     * whose thread scheduled it, if any. */
+    @Override public IDelayedCall callLater(double secondsLater,
+					    Runnable runme) {
+	return super.callLater(secondsLater, inTurn(runme));
+    }
+
+    /** Run something on the thread of this reactor, in turn with the
+     * protocol of the connection whose thread asked, if any. */
+    @Override public void callFromThread(Runnable r) {
+	super.callFromThread(inTurn(r));
+    }
+
+    /** The result of work started from the thread of a connection is
+     * delivered in turn with that connection's protocol. */
+    @Override public <T> Deferred deferToThread(Callable<T> work) {
+	final BlockingConnection conn = _current.get();
+	Deferred d = super.deferToThread(work);
+	if (conn == null) {
+	    return d;
+	}
+	final Deferred result = new Deferred();
+	d.addBoth(new Deferred.Callback<Object>() {
+		public Object callback(final Object r) {
+		    conn.callInTurn(new Runnable() {
+			    public void run() {
+				result.callback(r);
+			    }
+			});
+		    return null;
+		}
+	    });
+	return result;
+    }
+
+    /** The transport of one connection, and the thread reading from it. */
+    private class BlockingConnection implements ITransport, Runnable {
+	private SocketChannel	  channel;
+	private volatile SSLSocket tls;
+	private SSLContext	  ctx;
+	private IProtocol	  protocol;
+	private BlockingPort	  port;
+	private BlockingConnector connector;
+	private ReentrantLock	  writeLock = new ReentrantLock();
+	private ReentrantLock	  readLock = new ReentrantLock();
+	private Condition	  resumed = readLock.newCondition();
+	private boolean		  paused = false;
+	private volatile boolean  closed = false;
+	private volatile Throwable closeReason;
+	private IPushProducer	  producer;
+	private IdleTimer	  idle;
+
+	/* Held while the protocol is called, on whichever thread. */
+	private ReentrantLock	  turn = new ReentrantLock();
+	private Queue<Runnable>	  calls = new ConcurrentLinkedQueue<Runnable>();
+
+	BlockingConnection(SocketChannel channel, SSLContext ctx,
+			   IProtocol protocol) {
+	    this.channel = channel;
+	    this.ctx = ctx;
+	    this.protocol = protocol;
+	}
+
+	public void run() {
+	    Throwable reason = null;
+	    ByteBuffer inbuf = getBufferPool().allocate(BUFFER_SIZE);
+	    _current.set(this);
+	    try {
+		if (this.ctx != null) {
+		    this.startTLS();
+		}
+		this.turn.lock();
+		try {
+		    Protocol.connect(this.protocol, this, getBufferPool());
+		    if (this.connector != null) {
+			this.connector.clientFactory.clientConnectionMade(
+			    this.connector, this.protocol);
+		    }
+		} finally {
+		    this.endTurn();
+		}
+		while (true) {
+		    this.readLock.lock();
+		    try {
+			while (this.paused && !this.closed) {
+			    this.resumed.await();
+			}
+		    } finally {
+			this.readLock.unlock();
+		    }
+		    inbuf.clear();
+		    if (this.read(inbuf) < 0) {
+			reason = this.closed ? this.closeReason()
+			    : new IOException("Connection reset by peer");
+			break;
+		    }
+		    byte[] data = new byte[inbuf.position()];
+		    inbuf.flip();
+		    inbuf.get(data);
+		    if (this.idle != null) {
+			this.idle.read();
+		    }
+		    this.turn.lock();
+		    try {
+			this.protocol.dataReceived(data);
+		    } finally {
+			this.endTurn();
+		    }
+		}
+	    } catch (IOException ioe) {
+		reason = this.closed ? this.closeReason() : ioe;
+	    } catch (Throwable t) {
+		t.printStackTrace();
+		reason = t;
+	    }
+	    getBufferPool().release(inbuf);
+	    this.close();
+	    if (this.idle != null) {
+		this.idle.stop();
+	    }
+
+	    this.turn.lock();
+	    try {
+		if (this.producer != null) {
+		    IPushProducer p = this.producer;
+		    this.producer = null;
+		    p.stopProducing();
+		}
+		Protocol.lost(this.protocol, reason);
+		if (this.port != null) {
+		    this.port.removeConnection(this, reason);
+		} else {
+		    this.connector.connectionLost(reason);
+		}
+	    } finally {
+		this.endTurn();
+	    }
+	    _current.remove();
+	}
+
+	/* Layer TLS over the connected channel, and shake hands before
+	 * the protocol hears of the connection.  Naming the peer lets a
+	 * client resume an earlier session. */
+	private void startTLS() throws IOException {
+	    SSLSocketFactory f = this.ctx.getSocketFactory();
+	    SSLSocket s;
+	    if (this.connector != null) {
+		InetSocketAddress dest = this.connector.getDestination();
+		s = (SSLSocket) f.createSocket(this.channel.socket(),
+					       dest.getHostString(),
+					       dest.getPort(), true);
+		s.setUseClientMode(true);
+		this.setCipherSuites(
+		    s, this.connector.clientFactory.getEnabledCipherSuites());
+	    } else {
+		s = (SSLSocket) f.createSocket(this.channel.socket(), null,
+					       true);
+		s.setUseClientMode(false);
+		this.setCipherSuites(
+		    s, this.port.serverFactory.getEnabledCipherSuites());
+	    }
+	    this.tls = s;
+	    if (this.closed) {
+		throw new IOException("Closed before the handshake");
+	    }
+	    long started = System.currentTimeMillis();
+	    s.startHandshake();
+	    countHandshake(s.getSession(), started);
+	}
+
+	private void setCipherSuites(SSLSocket s, String[] ecs) {
+	    if (ecs != null && ecs.length > 0)
+		s.setEnabledCipherSuites(ecs);
+	}
+
+	/* Block until something arrives; -1 at the end of the stream. */
+	private int read(ByteBuffer inbuf) throws IOException {
+	    SSLSocket s = this.tls;
+	    if (s == null) {
+		return this.channel.read(inbuf);
+	    }
+	    int n = s.getInputStream().read(inbuf.array(),
+					    inbuf.arrayOffset(),
+					    inbuf.remaining());
+	    if (n > 0) {
+		inbuf.position(n);
+	    }
+	    return n;
+	}
+
+	/* The protocol is done for now.  Run whatever was scheduled for
+	 * this connection while it was busy. */
+	private void endTurn() {
+	    this.turn.unlock();
+	    this.runCalls();
+	}
+
+	/* Run something in turn with the protocol: now if it is not busy,
+	 * or as soon as the call in progress returns, even when that call
+	 * is the one asking. */
+	void callInTurn(Runnable r) {
+	    this.calls.add(r);
+	    this.runCalls();
+	}
+
+	private void runCalls() {
+	    if (this.turn.isHeldByCurrentThread()) {
+		return;
+	    }
+	    while (!this.calls.isEmpty() && this.turn.tryLock()) {
+		BlockingConnection outer = _current.get();
+		_current.set(this);
+		try {
+		    Runnable r;
+		    while ((r = this.calls.poll()) != null) {
+			try {
+			    r.run();
+			} catch (Throwable t) {
+			    t.printStackTrace();
+			}
+		    }
+		} finally {
+		    _current.set(outer);
+		    this.turn.unlock();
+		}
+	    }
+	}
+
+	/* Why the connection was closed from this end. */
+	private Throwable closeReason() {
+	    Throwable reason = this.closeReason;
+	    return reason != null ? reason : new Throwable("Disconnected");
+	}
+
+	/* Close the channel, which also ends a blocked read. */
+	private void close() {
+	    this.closed = true;
+	    this.readLock.lock();
+	    try {
+		this.resumed.signalAll();
+	    } finally {
+		this.readLock.unlock();
+	    }
+	    try {
+		this.channel.close();
+	    } catch (IOException ioe) { }
+	}
+
+	public void write(byte[] data) {
+	    if (this.idle != null) {
+		this.idle.wrote();
+	    }
+	    this.writeBuffers(new ByteBuffer[] { ByteBuffer.wrap(data) });
+	}
+
+	public void writeSequence(List<byte[]> data) {
+	    if (this.idle != null) {
+		this.idle.wrote();
+	    }
+	    ByteBuffer[] bufs = new ByteBuffer[data.size()];
+	    for (int i = 0; i < bufs.length; i++) {
+		bufs[i] = ByteBuffer.wrap(data.get(i));
+	    }
+	    this.writeBuffers(bufs);
+	}
+
+	/* Block until the socket has taken every buffer. */
+	private void writeBuffers(ByteBuffer[] bufs) {
+	    this.writeLock.lock();
+	    try {
+		if (this.closed) {
+		    return;
+		}
+		SSLSocket s = this.tls;
+		if (s != null) {
+		    OutputStream out = s.getOutputStream();
+		    for (ByteBuffer b: bufs) {
+			out.write(b.array(), b.arrayOffset() + b.position(),
+				  b.remaining());
+		    }
+		    out.flush();
+		    return;
+		}
+		long remaining = 0;
+		for (ByteBuffer b: bufs) {
+		    remaining += b.remaining();
+		}
+		while (remaining > 0) {
+		    remaining -= this.channel.write(bufs);
+		}
+	    } catch (IOException ioe) {
+		// The reading thread notices and reports the loss.
+		this.close();
+	    } finally {
+		this.writeLock.unlock();
+	    }
+	}
+
+	/** Every write has already reached the socket; wait for one in
+	 * progress, and end a TLS session with its close_notify. */
+	public void loseConnection(Throwable reason) {
+	    this.writeLock.lock();
+	    try {
+		if (!this.closed) {
+		    this.closeReason = reason;
+		}
+		SSLSocket s = this.tls;
+		if (s != null && !this.closed) {
+		    this.closed = true;
+		    try {
+			s.close();
+		    } catch (IOException ioe) { }
+		}
+		this.close();
+	    } finally {
+		this.writeLock.unlock();
+	    }
+	}
+
+	public void connectionLost(Throwable reason) {
+	    this.close();
+	}
+
+	/* The reading thread notices and reports the loss. */
+	public void abortConnection(Throwable reason) {
+	    if (!this.closed) {
+		this.closeReason = reason;
+	    }
+	    this.close();
+	}
+
+	/** The protocol hears of an idle connection in turn, as it hears
+	 * of everything else. */
+	public void setIdleTimeouts(double readSeconds, double writeSeconds) {
+	    if (null == this.idle) {
+		this.idle = new IdleTimer(BlockingReactor.this) {
+			void idle(final boolean reading) {
+			    callInTurn(new Runnable() {
+				    public void run() {
+					if (!closed) {
+					    protocol.connectionIdle(reading);
+					}
+				    }
+				});
+			}
+			boolean isOpen() {
+			    return !closed;
+			}
+		    };
+	    }
+	    this.idle.set(readSeconds, writeSeconds);
+	}
+
+	public void registerProducer(IPushProducer producer) {
+	    if (this.producer != null) {
+		throw new IllegalStateException("A producer is already " +
+						"registered");
+	    }
+	    this.producer = producer;
+	}
+
+	public void unregisterProducer() {
+	    this.producer = null;
+	}
+
+	public void setWriteBufferWaterMarks(int low, int high) {
+	    if (low < 0 || high < low) {
+		throw new IllegalArgumentException("Bad watermarks: " + low +
+						   ", " + high);
+	    }
+	}
+
+	public int getBufferedAmount() { return 0; }
+
+	public void pauseProducing() {
+	    this.readLock.lock();
+	    try {
+		this.paused = true;
+	    } finally {
+		this.readLock.unlock();
+	    }
+	}
+
+	public void resumeProducing() {
+	    this.readLock.lock();
+	    try {
+		this.paused = false;
+		this.resumed.signalAll();
+	    } finally {
+		this.readLock.unlock();
+	    }
+	}
+
+	public void stopProducing() {
+	    this.loseConnection(new Throwable("Producer stopped"));
+	}
+    }
+
+    /** A listening port accepting connections on a thread of its own. */
+    private class BlockingPort implements IListeningPort, Runnable {
+	private ServerFactory	    serverFactory;
+	private ServerSocketChannel schannel;
+	private SSLContext	    ctx;
+	private SocketAddress	    addr;
+	private boolean		    unix;
+	private Set<BlockingConnection> connections;
+
+	BlockingPort(SocketAddress addr, SSLContext ctx, ServerFactory sf)
+	    throws Throwable {
+	    this.serverFactory = sf;
+	    this.ctx = ctx;
+	    this.addr = addr;
+	    this.unix = addr instanceof UnixDomainSocketAddress;
+	    this.connections = Collections.newSetFromMap(
+		new ConcurrentHashMap<BlockingConnection, Boolean>());
+
+	    if (ctx != null) {
+		SSLSessionContext sessions = ctx.getServerSessionContext();
+		if (sf.getSessionCacheSize() >= 0)
+		    sessions.setSessionCacheSize(sf.getSessionCacheSize());
+		if (sf.getSessionTimeout() >= 0)
+		    sessions.setSessionTimeout(sf.getSessionTimeout());
+	    }
+
+	    this.schannel = this.unix
+		? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+		: ServerSocketChannel.open();
+	    this.schannel.bind(this.addr);
+	    this.addr = this.schannel.getLocalAddress();
+	    _ports.add(this);
+	    this.startListening();
+	}
+
+	/** Returns null for a unix socket. */
+	public InetSocketAddress getHost() {
+	    return this.unix ? null : (InetSocketAddress) this.addr;
+	}
+
+	public Collection<ITransport> getConnections() {
+	    return Collections.<ITransport>unmodifiableSet(this.connections);
+	}
+
+	public void startListening() throws Throwable {
+	    Thread t = new Thread(this, "blocking-accept-" + this.addr);
+	    t.setDaemon(true);
+	    t.start();
+	    this.serverFactory.startedListening(this);
+	}
+
+	public void run() {
+	    while (this.schannel.isOpen()) {
+		SocketChannel ch = null;
+		try {
+		    ch = this.schannel.accept();
+		    if (!this.unix) {
+			ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		    }
+		    SocketAddress peer = ch.getRemoteAddress();
+		    BlockingConnection conn = new BlockingConnection(
+			ch, this.ctx,
+			this.serverFactory.buildServerProtocol(peer));
+		    conn.port = this;
+		    this.connections.add(conn);
+		    startThread(conn, "blocking-" + peer);
+		} catch (IOException ioe) {
+		    if (this.schannel.isOpen()) {
+			ioe.printStackTrace();
+		    }
+		} catch (Throwable t) {
+		    t.printStackTrace();
+		    try {
+			if (ch != null) {
+			    ch.close();
+			}
+		    } catch (IOException ioe) { }
+		}
+	    }
+	}
+
+	/* Called by a connection once it is gone for good. */
+	void removeConnection(BlockingConnection conn, Throwable reason) {
+	    if (this.connections.remove(conn)) {
+		this.serverFactory.connectionLost(this, reason);
+	    }
+	}
+
+	public void connectionLost(Throwable reason) {
+	    this.serverFactory.connectionLost(this, reason);
+	}
+
+	/** Stop accepting connections; established ones are left alone. */
+	public void loseConnection(Throwable reason) {
+	    if (!_ports.remove(this)) {
+		return;
+	    }
+	    try {
+		this.schannel.close();
+		if (this.unix) {
+		    Files.deleteIfExists(
+			((UnixDomainSocketAddress) this.addr).getPath());
+		}
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /** A client connection, made and then read on a thread of its own. */
+    private class BlockingConnector implements IConnector, Runnable {
+	private ClientFactory	   clientFactory;
+	private SocketAddress	   addr;
+	private SSLContext	   ctx;
+	private boolean		   unix;
+	private SocketChannel	   channel;
+	private BlockingConnection connection;
+
+	BlockingConnector(SocketAddress addr, SSLContext ctx,
+			  ClientFactory cf) throws Throwable {
+	    this.clientFactory = cf;
+	    this.addr = addr;
+	    this.ctx = ctx;
+	    this.unix = addr instanceof UnixDomainSocketAddress;
+	    this.connect();
+	}
+
+	/** Returns null for a unix socket. */
+	public InetSocketAddress getDestination() {
+	    return this.unix ? null : (InetSocketAddress) this.addr;
+	}
+
+	/** Every attempt gets a new channel and protocol. */
+	public void connect() throws Throwable {
+	    if (this.channel != null && this.channel.isOpen()) {
+		throw new IllegalStateException("Already connected");
+	    }
+	    this.channel = this.unix
+		? SocketChannel.open(StandardProtocolFamily.UNIX)
+		: SocketChannel.open();
+	    this.connection = new BlockingConnection(
+		this.channel, this.ctx,
+		this.clientFactory.buildProtocol(this.addr));
+	    this.connection.connector = this;
+	    this.clientFactory.startedConnecting(this);
+	    startThread(this, "blocking-" + this.addr);
+	}
+
+	public void run() {
+	    try {
+		this.channel.connect(this.addr);
+		if (!this.unix) {
+		    this.channel.setOption(StandardSocketOptions.TCP_NODELAY,
+					   true);
+		}
+	    } catch (IOException ioe) {
+		try {
+		    this.channel.close();
+		} catch (IOException e) { }
+		this.connectionFailed(ioe);
+		return;
+	    }
+	    this.connection.run();
+	}
+
+	public void connectionFailed(Throwable reason) {
+	    this.clientFactory.clientConnectionFailed(this, reason);
+	}
+
+	public void connectionLost(Throwable reason) {
+	    this.clientFactory.clientConnectionLost(this, reason);
+	}
+
+	public void loseConnection(Throwable reason) {
+	    this.connection.loseConnection(reason);
+	}
+
+	public void stopConnecting() {
+	    try {
+		this.channel.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /** Connects a TCP server protocol factory to a numeric TCP port.
+     * Every accepted connection gets its own thread. */
+    @Override public IListeningPort listenTCP(int portno,
+					      ServerFactory factory)
+	throws Throwable {
+	return new BlockingPort(new InetSocketAddress(portno), null, factory);
+    }
+
+    /** Connect a client protocol factory to a remote TCP server, on a
+     * thread of its own. */
+    @Override public IConnector connectTCP(String addr, int portno,
+					   ClientFactory factory)
+	throws Throwable {
+	return new BlockingConnector(new InetSocketAddress(addr, portno),
+				     null, factory);
+    }
+
+    /** Connects a SSL server protocol factory to a numeric TCP port.
+     * Every accepted connection shakes hands on its own thread. */
+    @Override public IListeningPort listenSSL(int portno, SSLContext ctx,
+					      ServerFactory factory)
+	throws Throwable {
+	return new BlockingPort(new InetSocketAddress(portno), ctx, factory);
+    }
+
+    /** Connect a client protocol factory to a remote SSL server, on a
+     * thread of its own. */
+    @Override public IConnector connectSSL(String addr, int portno,
+					   SSLContext ctx,
+					   ClientFactory factory)
+	throws Throwable {
+	return new BlockingConnector(new InetSocketAddress(addr, portno),
+				     ctx, factory);
+    }
+
+    /** Connects a server protocol factory to a unix socket at the given
+     * path, which must not exist yet.  The path is removed again when the
+     * port stops listening. */
+    @Override public IListeningPort listenUNIX(Path path,
+					       ServerFactory factory)
+	throws Throwable {
+	return new BlockingPort(UnixDomainSocketAddress.of(path), null,
+				factory);
+    }
+
+    /** Connect a client protocol factory to a server on a unix socket, on
+     * a thread of its own. */
+    @Override public IConnector connectUNIX(Path path,
+					    ClientFactory factory)
+	throws Throwable {
+	return new BlockingConnector(UnixDomainSocketAddress.of(path), null,
+				     factory);
+    }
+
+    /** Stop the reactor and every port it is listening on. */
+    @Override public void stop() {
+	for (BlockingPort port: _ports) {
+	    port.loseConnection(new Throwable("Shutdown"));
+	}
+	super.stop();
+    }
+}
@@ -0,0 +1,182 @@
+package com.twistedmatrix.internet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of {@link ByteBuffer}s sorted into power of two size classes.
+ * Heap and direct buffers are kept in separate arenas which may be shared
+ * between threads, and each thread may additionally keep a small cache of
+ * its own so that the common borrow/return pattern of a reactor loop never
+ * touches shared state.  Requests larger than the biggest size class are
+ * simply allocated and are dropped again when released.
+ * A buffer must not be used after it has been released, nor released
+ * twice.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 17;
+    private static final int CLASSES   = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /** Smallest size class, in bytes. */
+    public static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    /** Largest size class, in bytes. */
+    public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    private static final BufferPool DEFAULT = new BufferPool(256, 8, true);
+
+    private Arena _heap;
+    private Arena _direct;
+    private int   _cacheLimit;
+    private ThreadLocal<Cache> _caches;
+
+    /**
+     * @param arenaLimit How many free buffers each size class of an arena
+     *	 may hold.
+     * @param cacheLimit How many free buffers each size class of a thread
+     *	 cache may hold.
+     * @param threadCaches Whether threads keep caches of their own.
+     */
+    public BufferPool(int arenaLimit, int cacheLimit, boolean threadCaches) {
+	_heap = new Arena(arenaLimit);
+	_direct = new Arena(arenaLimit);
+	_cacheLimit = cacheLimit;
+	if (threadCaches) {
+	    _caches = new ThreadLocal<Cache>() {
+		    @Override protected Cache initialValue() {
+			return new Cache();
+		    }
+		};
+	}
+    }
+
+    /** Returns the pool shared by the reactor and the protocols. */
+    public static BufferPool getDefault() { return DEFAULT; }
+
+    /** Borrow a cleared heap buffer of at least the given capacity. */
+    public ByteBuffer allocate(int capacity) {
+	return borrow(capacity, false);
+    }
+
+    /** Borrow a cleared direct buffer of at least the given capacity. */
+    public ByteBuffer allocateDirect(int capacity) {
+	return borrow(capacity, true);
+    }
+
+    /** Return a buffer obtained from this pool. */
+    public void release(ByteBuffer buf) {
+	int sc = exactClass(buf.capacity());
+	if (sc < 0) {
+	    return;
+	}
+	if (_caches != null) {
+	    ArrayDeque<ByteBuffer> q = _caches.get().queue(buf.isDirect(), sc);
+	    if (q.size() < _cacheLimit) {
+		q.addFirst(buf);
+		return;
+	    }
+	}
+	(buf.isDirect() ? _direct : _heap).offer(sc, buf);
+    }
+
+    /** Returns the size class able to hold the capacity, or -1 if the
+     * capacity is too large to be pooled. */
+    static int sizeClass(int capacity) {
+	if (capacity > MAX_SIZE) {
+	    return -1;
+	}
+	int sc = 0;
+	while ((MIN_SIZE << sc) < capacity) {
+	    sc++;
+	}
+	return sc;
+    }
+
+    private static int exactClass(int capacity) {
+	int sc = sizeClass(capacity);
+	if (sc < 0 || (MIN_SIZE << sc) != capacity) {
+	    return -1;
+	}
+	return sc;
+    }
+
+    private ByteBuffer borrow(int capacity, boolean direct) {
+	int sc = sizeClass(capacity);
+	if (sc < 0) {
+	    return direct ? ByteBuffer.allocateDirect(capacity)
+		: ByteBuffer.allocate(capacity);
+	}
+
+	ByteBuffer buf = null;
+	if (_caches != null) {
+	    buf = _caches.get().queue(direct, sc).pollFirst();
+	}
+	if (buf == null) {
+	    buf = (direct ? _direct : _heap).poll(sc);
+	}
+	if (buf == null) {
+	    int size = MIN_SIZE << sc;
+	    buf = direct ? ByteBuffer.allocateDirect(size)
+		: ByteBuffer.allocate(size);
+	}
+	buf.clear();
+	return buf;
+    }
+
+    /* Free buffers shared by all threads. */
+    private static class Arena {
+	private int _limit;
+	private ConcurrentLinkedQueue<ByteBuffer>[] _free;
+	private AtomicInteger[] _count;
+
+	@SuppressWarnings("unchecked")
+	Arena(int limit) {
+	    _limit = limit;
+	    _free = new ConcurrentLinkedQueue[CLASSES];
+	    _count = new AtomicInteger[CLASSES];
+	    for (int i = 0; i < CLASSES; i++) {
+		_free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		_count[i] = new AtomicInteger(0);
+	    }
+	}
+
+	ByteBuffer poll(int sc) {
+	    ByteBuffer buf = _free[sc].poll();
+	    if (buf != null) {
+		_count[sc].decrementAndGet();
+	    }
+	    return buf;
+	}
+
+	void offer(int sc, ByteBuffer buf) {
+	    if (_count[sc].incrementAndGet() > _limit) {
+		_count[sc].decrementAndGet();
+		return;
+	    }
+	    _free[sc].offer(buf);
+	}
+    }
+
+    /* Free buffers private to one thread. */
+    private static class Cache {
+	private ArrayDeque<ByteBuffer>[] _heap;
+	private ArrayDeque<ByteBuffer>[] _direct;
+
+	@SuppressWarnings("unchecked")
+	Cache() {
+	    _heap = new ArrayDeque[CLASSES];
+	    _direct = new ArrayDeque[CLASSES];
+	    for (int i = 0; i < CLASSES; i++) {
+		_heap[i] = new ArrayDeque<ByteBuffer>();
+		_direct[i] = new ArrayDeque<ByteBuffer>();
+	    }
+	}
+
+	ArrayDeque<ByteBuffer> queue(boolean direct, int sc) {
+	    return direct ? _direct[sc] : _heap[sc];
+	}
+    }
+}
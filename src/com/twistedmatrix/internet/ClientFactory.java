@@ -6,9 +6,20 @@ public abstract class ClientFactory implements IFactory {
     /** If using SSL, optionally define the cipher suites. */
     public String[] getEnabledCipherSuites() { return new String[] {}; }
 
+    /** If using SSL, return true to encrypt and decrypt on the reactor's
+     * crypto pool instead of its own thread.  Worth it for connections
+     * moving a lot of data; the protocol is still only called by the
+     * reactor thread, and data stays in order. */
+    public boolean offloadCrypto() { return false; }
+
     /** Called when a connection has been started. */
     public void startedConnecting(IConnector connector) {};
 
+    /** Called once the connection is made and the protocol has been
+     * given its transport; for SSL, once the handshake is over. */
+    public void clientConnectionMade(IConnector connector,
+				     IProtocol protocol) {};
+
     /** Called when a connection has failed to connect. */
     public void clientConnectionLost(IConnector connector,Throwable reason) {};
 
@@ -0,0 +1,12 @@
+package com.twistedmatrix.internet;
+
+import java.io.IOException;
+
+/** The connection went away before an answer came; the reason it was lost
+ * is the cause. */
+public class ConnectionLost extends IOException {
+    public ConnectionLost(Throwable reason) {
+	super("Connection lost" +
+	      (null == reason ? "" : ": " + reason.getMessage()), reason);
+    }
+}
@@ -0,0 +1,21 @@
+package com.twistedmatrix.internet;
+
+/** A scheduled call, as returned by {@link Reactor#callLater}. */
+public interface IDelayedCall {
+    /** Returns the time, in seconds on the reactor's clock, at which this
+     * call will run. */
+    public double getTime();
+
+    /** Prevent this call from running.  Throws an Error if it has already
+     * run or been cancelled. */
+    public void cancel();
+
+    /** Run this call the given number of seconds from now instead. */
+    public void reset(double secondsFromNow);
+
+    /** Run this call the given number of seconds later than scheduled. */
+    public void delay(double secondsLater);
+
+    /** Returns true if this call has neither run nor been cancelled. */
+    public boolean active();
+}
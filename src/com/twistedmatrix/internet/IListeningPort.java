@@ -1,6 +1,7 @@
 package com.twistedmatrix.internet;
 
 import java.net.InetSocketAddress;
+import java.util.Collection;
 
 /** A TCP server, listening for connections.
  * When a connection is accepted, this will call a factory's 
@@ -10,7 +11,11 @@ public interface IListeningPort {
     /** Cleans up the socket. */
     public void connectionLost(Throwable reason);
 
-    /** Returns an InetSocketAddress. */
+    /** Returns the transports of all clients currently connected. */
+    public Collection<ITransport> getConnections();
+
+    /** Returns the InetSocketAddress the port is bound to, with the
+     * port actually chosen when asked to listen on port 0. */
     public InetSocketAddress getHost();
 
     /** Stop accepting connections on this port. */
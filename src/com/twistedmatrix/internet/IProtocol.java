@@ -11,6 +11,13 @@ public interface IProtocol {
     /** Called whenever data is received. */
     public void dataReceived(byte[] data);
 
+    /** Called when the connection has been idle for one of the timeouts
+     * set by {@link ITransport#setIdleTimeouts}.
+     * @param reading True if nothing was read, false if nothing was
+     *	 written.
+     */
+    public void connectionIdle(boolean reading);
+
     /** Make a connection to a transport and a server. */
     public void makeConnection(ITransport transport);
 }
@@ -0,0 +1,15 @@
+package com.twistedmatrix.internet;
+
+/** A producer of data which writes to a transport on its own schedule.
+ * The transport pauses it when too much data is waiting to be sent and
+ * resumes it once the backlog has drained. */
+public interface IPushProducer {
+    /** Stop producing data until resumeProducing is called. */
+    public void pauseProducing();
+
+    /** Resume producing data. */
+    public void resumeProducing();
+
+    /** Stop producing data for good, the consumer is gone. */
+    public void stopProducing();
+}
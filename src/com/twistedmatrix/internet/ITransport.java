@@ -1,11 +1,16 @@
 package com.twistedmatrix.internet;
 
+import java.util.List;
+
 /**  I am a transport for bytes.
  * I represent the physical connection and synchronicity of the framework
  * which is talking to the network. I make no representations about 
  * whether calls to me will happen immediately or require returning to a 
- * control loop, or whether they will happen in the same or another thread. */
-public interface ITransport {
+ * control loop, or whether they will happen in the same or another thread.
+ * As a producer, pauseProducing stops reading from the connection and
+ * resumeProducing starts again, which lets a slow consumer of the data
+ * push back on the peer; stopProducing closes the connection. */
+public interface ITransport extends IPushProducer {
     /** Cleans up the socket. */
     void connectionLost(Throwable reason);
 
@@ -15,7 +20,37 @@ public interface ITransport {
     /** Write some data to the physical connection, in sequence, in a non-blocking fashion. */
     void write(byte[] data);
 
-    // no reason for writeSequence; unclear if we'd get any boost.
+    /** Write a list of buffers to the physical connection, in sequence.
+     * The buffers are handed to the socket together instead of one write
+     * per buffer. */
+    void writeSequence(List<byte[]> data);
+
+    /** Register a producer to be paused when more than the high watermark
+     * of written data is waiting to be sent, and resumed once it drops to
+     * the low watermark.  Only one producer may be registered at a time;
+     * protocols built on {@link Protocol} learn of the watermarks through
+     * Protocol.transportWritable instead, leaving this to the
+     * application. */
+    void registerProducer(IPushProducer producer);
+
+    /** Stop notifying the registered producer. */
+    void unregisterProducer();
+
+    /** Set the watermarks, in bytes, used to pause and resume the producer. */
+    void setWriteBufferWaterMarks(int low, int high);
+
+    /** Returns the number of bytes written but not yet sent. */
+    int getBufferedAmount();
+
+    /** Close my connection right away, dropping any data not yet sent,
+     * as for a peer which has stopped reading. */
+    void abortConnection(Throwable reason);
+
+    /** Tell the protocol, through {@link IProtocol#connectionIdle}, once
+     * nothing has been read for readSeconds or nothing written for
+     * writeSeconds.  Zero turns either off, which is the default. */
+    void setIdleTimeouts(double readSeconds, double writeSeconds);
+
     // void getPeer();
     // void getHost();
 }
@@ -0,0 +1,11 @@
+package com.twistedmatrix.internet;
+
+import java.io.IOException;
+
+/** Nothing was read from, or written to, a connection for longer than
+ * its idle timeout, or its peer stopped answering pings. */
+public class IdleTimeout extends IOException {
+    public IdleTimeout(String message) {
+	super(message);
+    }
+}
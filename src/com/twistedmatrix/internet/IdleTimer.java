@@ -0,0 +1,84 @@
+package com.twistedmatrix.internet;
+
+/**
+ * Tells a connection when nothing has been read from it, or written to
+ * it, for a while.  Reads and writes only note the time; the one timer is
+ * moved forward when it fires early, so a busy connection costs a timer
+ * event per timeout period rather than one per read.
+ */
+abstract class IdleTimer implements Runnable {
+    private Reactor	 _reactor;
+    private long	 _readNanos, _writeNanos;
+    private long	 _lastRead, _lastWrite;
+    private IDelayedCall _call;
+
+    IdleTimer(Reactor reactor) {
+	_reactor = reactor;
+    }
+
+    /** Called when the connection has been idle for a timeout. */
+    abstract void idle(boolean reading);
+
+    /** Returns false once the connection is closed. */
+    abstract boolean isOpen();
+
+    /** Zero turns a timeout off; the periods start now. */
+    void set(double readSeconds, double writeSeconds) {
+	if (readSeconds < 0 || writeSeconds < 0) {
+	    throw new IllegalArgumentException("Bad idle timeouts: " +
+					       readSeconds + ", " +
+					       writeSeconds);
+	}
+	_readNanos = (long) (readSeconds * 1e9);
+	_writeNanos = (long) (writeSeconds * 1e9);
+	long now = System.nanoTime();
+	_lastRead = _lastWrite = now;
+	this.schedule(now);
+    }
+
+    void read() { _lastRead = System.nanoTime(); }
+
+    void wrote() { _lastWrite = System.nanoTime(); }
+
+    void stop() {
+	_readNanos = _writeNanos = 0;
+	this.schedule(0);
+    }
+
+    private void schedule(long now) {
+	if (_call != null && _call.active()) {
+	    _call.cancel();
+	}
+	_call = null;
+	long next = Long.MAX_VALUE;
+	if (_readNanos > 0) {
+	    next = Math.min(next, _lastRead + _readNanos);
+	}
+	if (_writeNanos > 0) {
+	    next = Math.min(next, _lastWrite + _writeNanos);
+	}
+	if (next != Long.MAX_VALUE) {
+	    _call = _reactor.callLater(Math.max(0, next - now) / 1e9, this);
+	}
+    }
+
+    public void run() {
+	_call = null;
+	if (!this.isOpen()) {
+	    return;
+	}
+	long now = System.nanoTime();
+	// Each period of idleness is reported once.
+	if (_readNanos > 0 && now - _lastRead >= _readNanos) {
+	    _lastRead = now;
+	    this.idle(true);
+	}
+	if (_writeNanos > 0 && now - _lastWrite >= _writeNanos) {
+	    _lastWrite = now;
+	    this.idle(false);
+	}
+	if (this.isOpen()) {
+	    this.schedule(now);
+	}
+    }
+}
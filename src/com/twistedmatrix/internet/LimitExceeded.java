@@ -0,0 +1,11 @@
+package com.twistedmatrix.internet;
+
+import java.io.IOException;
+
+/** The peer sent more than the connection's {@link ProtocolLimits} let it
+ * make us hold. */
+public class LimitExceeded extends IOException {
+    public LimitExceeded(String message) {
+	super(message);
+    }
+}
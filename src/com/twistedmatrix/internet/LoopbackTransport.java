@@ -0,0 +1,282 @@
+package com.twistedmatrix.internet;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * One end of an in-memory connection between two protocols in the same
+ * JVM.  Bytes written to one end are handed to the protocol at the other
+ * without a socket or a system call.  On a reactor, everything written
+ * during one iteration is delivered on the next, so neither protocol is
+ * ever called from inside the other's write.  Without a reactor nothing
+ * moves until {@link #pump} is called, which makes for deterministic
+ * tests.  Like the other transports, an end must only be used from the
+ * thread running its reactor.
+ */
+public class LoopbackTransport implements ITransport {
+    private static final int LOW_WATER  = 32 * 1024;
+    private static final int HIGH_WATER = 64 * 1024;
+
+    private Reactor		_reactor;	// null when pumped by hand
+    private IProtocol		_protocol;
+    private LoopbackTransport	_peer;
+    private ArrayDeque<byte[]>	_pending;	// written, not yet delivered
+    private boolean		_flushScheduled;
+    private boolean		_readPaused;
+    private boolean		_disconnecting, _closed;
+    private Throwable		_reason;
+    private IdleTimer		_idle;
+
+    /* Write backpressure */
+    private long		_buffered;
+    private int			_lowWater, _highWater;
+    private IPushProducer	_producer;
+    private boolean		_producerPaused;
+    private boolean		_full;		// past the high watermark
+
+    private LoopbackTransport(Reactor reactor, IProtocol protocol) {
+	_reactor = reactor;
+	_protocol = protocol;
+	_pending = new ArrayDeque<byte[]>();
+	_lowWater = LOW_WATER;
+	_highWater = HIGH_WATER;
+    }
+
+    /**
+     * Connect two protocols to each other right away.  Data only moves
+     * when {@link #pump} is called.
+     * @return The client's end; its peer is the server's.
+     */
+    public static LoopbackTransport connect(IProtocol server,
+					    IProtocol client) {
+	LoopbackTransport c = pair(null, server, client);
+	c._peer._protocol.makeConnection(c._peer);
+	c._protocol.makeConnection(c);
+	return c;
+    }
+
+    /* Create both ends, delivering on the given reactor if there is one. */
+    static LoopbackTransport pair(Reactor reactor, IProtocol server,
+				  IProtocol client) {
+	LoopbackTransport s = new LoopbackTransport(reactor, server);
+	LoopbackTransport c = new LoopbackTransport(reactor, client);
+	s._peer = c;
+	c._peer = s;
+	return c;
+    }
+
+    /** Returns the other end of the connection. */
+    public LoopbackTransport getPeer() { return _peer; }
+
+    /** Returns the protocol this end delivers to. */
+    public IProtocol getProtocol() { return _protocol; }
+
+    /**
+     * Deliver everything written at either end, and whatever the protocols
+     * write in response, until nothing is left to move or the receiving
+     * protocols have paused.
+     * @return true if anything was delivered.
+     */
+    public boolean pump() {
+	boolean any = false;
+	boolean moved;
+	do {
+	    moved = this.flush();
+	    moved |= _peer.flush();
+	    any |= moved;
+	} while (moved);
+	return any;
+    }
+
+    public void write(byte[] data) {
+	if (_closed || _disconnecting) {
+	    return;
+	}
+	if (_idle != null) {
+	    _idle.wrote();
+	}
+	_pending.add(data);
+	this.queued(data.length);
+	this.schedule();
+    }
+
+    public void writeSequence(List<byte[]> data) {
+	if (_closed || _disconnecting) {
+	    return;
+	}
+	if (_idle != null) {
+	    _idle.wrote();
+	}
+	long total = 0;
+	for (byte[] b: data) {
+	    _pending.add(b);
+	    total += b.length;
+	}
+	this.queued(total);
+	this.schedule();
+    }
+
+    /** Close once everything written so far has been delivered. */
+    public void loseConnection(Throwable reason) {
+	if (_closed || _disconnecting) {
+	    return;
+	}
+	_disconnecting = true;
+	_reason = reason;
+	this.schedule();
+    }
+
+    /** Close right away, dropping anything not yet delivered. */
+    public void connectionLost(Throwable reason) {
+	this.close(reason);
+    }
+
+    public void abortConnection(Throwable reason) {
+	this.close(reason);
+    }
+
+    /** Only works on a reactor; pumped by hand, an end is never idle. */
+    public void setIdleTimeouts(double readSeconds, double writeSeconds) {
+	if (null == _reactor) {
+	    return;
+	}
+	if (null == _idle) {
+	    _idle = new IdleTimer(_reactor) {
+		    void idle(boolean reading) {
+			_protocol.connectionIdle(reading);
+		    }
+		    boolean isOpen() {
+			return !_closed;
+		    }
+		};
+	}
+	_idle.set(readSeconds, writeSeconds);
+    }
+
+    public void registerProducer(IPushProducer producer) {
+	if (_producer != null) {
+	    throw new IllegalStateException("A producer is already " +
+					    "registered with " + this);
+	}
+	_producer = producer;
+	_producerPaused = false;
+	if (_buffered > _highWater) {
+	    _producerPaused = true;
+	    producer.pauseProducing();
+	}
+    }
+
+    public void unregisterProducer() {
+	_producer = null;
+	_producerPaused = false;
+    }
+
+    public void setWriteBufferWaterMarks(int low, int high) {
+	if (low < 0 || high < low) {
+	    throw new IllegalArgumentException("Bad watermarks: " + low +
+					       ", " + high);
+	}
+	_lowWater = low;
+	_highWater = high;
+    }
+
+    public int getBufferedAmount() { return (int) _buffered; }
+
+    /* Receiving side of the transport, as a producer of received data. */
+    public void pauseProducing() {
+	_readPaused = true;
+    }
+
+    public void resumeProducing() {
+	_readPaused = false;
+	_peer.schedule();
+    }
+
+    public void stopProducing() {
+	this.loseConnection(new Throwable("Producer stopped"));
+    }
+
+    /* Arrange for the next iteration of the reactor to deliver what has
+     * been written, once however many writes there are. */
+    private void schedule() {
+	if (_reactor == null || _flushScheduled) {
+	    return;
+	}
+	_flushScheduled = true;
+	_reactor.callFromThread(new Runnable() {
+		public void run() {
+		    _flushScheduled = false;
+		    flush();
+		}
+	    });
+    }
+
+    /* Hand what was written here to the protocol at the other end, unless
+     * it has paused, and close if that was asked for. */
+    private boolean flush() {
+	boolean moved = false;
+	while (!_pending.isEmpty() && !_peer._readPaused && !_closed) {
+	    byte[] data = _pending.poll();
+	    this.delivered(data.length);
+	    if (_peer._idle != null) {
+		_peer._idle.read();
+	    }
+	    _peer._protocol.dataReceived(data);
+	    moved = true;
+	}
+	if (_pending.isEmpty() && _disconnecting && !_closed) {
+	    this.close(_reason);
+	    moved = true;
+	}
+	return moved;
+    }
+
+    private void close(Throwable reason) {
+	if (_closed) {
+	    return;
+	}
+	_closed = _peer._closed = true;
+	this.drop();
+	_peer.drop();
+	Protocol.lost(_protocol, reason);
+	Protocol.lost(_peer._protocol, reason);
+    }
+
+    private void drop() {
+	if (_idle != null) {
+	    _idle.stop();
+	}
+	_pending.clear();
+	_buffered = 0;
+	if (_producer != null) {
+	    IPushProducer p = _producer;
+	    _producer = null;
+	    p.stopProducing();
+	}
+    }
+
+    private void queued(long count) {
+	_buffered += count;
+	if (_buffered > _highWater && !_full) {
+	    _full = true;
+	    Protocol.writable(_protocol, false);
+	}
+	if (_buffered > _highWater && !_producerPaused && _producer != null) {
+	    _producerPaused = true;
+	    _producer.pauseProducing();
+	}
+    }
+
+    private void delivered(long count) {
+	_buffered -= count;
+	if (_buffered <= _lowWater && _full) {
+	    _full = false;
+	    Protocol.writable(_protocol, true);
+	}
+	if (_buffered <= _lowWater && _producerPaused) {
+	    _producerPaused = false;
+	    if (_producer != null)
+		_producer.resumeProducing();
+	}
+    }
+}
@@ -0,0 +1,53 @@
+package com.twistedmatrix.internet;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded queue which any number of threads may add to but only one
+ * thread may take from.  Adding is a single atomic exchange and never
+ * blocks or retries; taking touches no shared state other than the link
+ * written by the producer.  This is the linked queue described by Dmitry
+ * Vyukov.
+ */
+class MpscQueue<T> {
+    private static class Node<T> {
+	T		 value;
+	volatile Node<T> next;
+
+	Node(T value) { this.value = value; }
+    }
+
+    private Node<T>		       _head;	// only the consumer touches it
+    private AtomicReference<Node<T>> _tail;
+
+    MpscQueue() {
+	_head = new Node<T>(null);
+	_tail = new AtomicReference<Node<T>>(_head);
+    }
+
+    /** Add an element.  May be called from any thread. */
+    void offer(T value) {
+	Node<T> node = new Node<T>(value);
+	Node<T> prev = _tail.getAndSet(node);
+	// Between the exchange and this write the consumer sees the queue
+	// end at prev; it will find node on its next poll.
+	prev.next = node;
+    }
+
+    /** Take the oldest element, or null.  Only the consumer may call this. */
+    T poll() {
+	Node<T> next = _head.next;
+	if (next == null) {
+	    return null;
+	}
+	T value = next.value;
+	next.value = null;
+	_head = next;
+	return value;
+    }
+
+    /** Returns true if no element has been linked in yet. */
+    boolean isEmpty() {
+	return _head.next == null && _tail.get() == _head;
+    }
+}
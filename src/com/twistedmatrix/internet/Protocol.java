@@ -3,6 +3,8 @@ package com.twistedmatrix.internet;
 /** Defines a connection. */
 public abstract class Protocol implements IProtocol {
     private ITransport transport;
+    private ProtocolLimits limits;
+    private BufferPool pool;
 
     /** Called whenever data is received. */
     public abstract void dataReceived(byte[] data);
@@ -10,17 +12,78 @@ public abstract class Protocol implements IProtocol {
     /** Called when the connection is shut down. */
     public void connectionLost(Throwable reason) { }
 
+    /** Called by the transport as the connection is shut down, just
+     * before connectionLost.  A protocol which others are built on can
+     * clean up here however its subclasses override connectionLost. */
+    protected void transportLost(Throwable reason) { }
+
+    /** Called by the transport with false once the data written but not
+     * yet sent goes over its high watermark, and with true once it is
+     * back down to the low watermark.  Unlike registering a producer,
+     * this leaves the transport's producer to the application. */
+    protected void transportWritable(boolean writable) { }
+
     /** Called when a connection is made. */
     public void connectionMade() { }
 
+    /** Called when the connection has been idle for a timeout; by default
+     * the connection is aborted with an {@link IdleTimeout}. */
+    public void connectionIdle(boolean reading) {
+        this.transport.abortConnection(new IdleTimeout(
+            reading ? "Nothing read" : "Nothing written"));
+    }
+
     /** Make a connection to a transport and a server. */
     public void makeConnection(ITransport transport) {
         this.transport = transport;
         this.connectionMade();
     }
 
+    /** Bound what the peer may make this protocol hold; protocols which
+     * buffer messages enforce them.  Servers set the limits of their
+     * factory.  Null, the default, is unlimited. */
+    public void setLimits(ProtocolLimits limits) {
+        this.limits = limits;
+    }
+
+    /** Returns this protocol's limits, or null if it has none. */
+    public ProtocolLimits getLimits() {
+        return this.limits;
+    }
+
+    /** Returns the pool to borrow buffers from: that of the reactor the
+     * connection belongs to, or the default pool. */
+    public BufferPool getBufferPool() {
+        return this.pool != null ? this.pool : BufferPool.getDefault();
+    }
+
     /** Returns this protocol's transport. */
     public ITransport transport() {
         return this.transport;
     }
+
+    /* How the transports of a reactor connect any protocol, giving it
+     * the pool their own buffers come from. */
+    static void connect(IProtocol protocol, ITransport transport,
+                        BufferPool pool) {
+        if (protocol instanceof Protocol) {
+            ((Protocol) protocol).pool = pool;
+        }
+        protocol.makeConnection(transport);
+    }
+
+    /* How the transports tell any protocol its connection is lost. */
+    static void lost(IProtocol protocol, Throwable reason) {
+        if (protocol instanceof Protocol) {
+            ((Protocol) protocol).transportLost(reason);
+        }
+        protocol.connectionLost(reason);
+    }
+
+    /* How the transports tell any protocol it crossed a watermark. */
+    static void writable(IProtocol protocol, boolean writable) {
+        if (protocol instanceof Protocol) {
+            ((Protocol) protocol).transportWritable(writable);
+        }
+    }
 }
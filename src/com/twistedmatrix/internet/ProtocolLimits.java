@@ -0,0 +1,64 @@
+package com.twistedmatrix.internet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounds on how much a peer can make a protocol hold in memory, checked
+ * as messages are framed: a message announcing that it will be too big
+ * is refused before the rest of it is buffered.  A connection going over
+ * a limit is aborted with {@link LimitExceeded}, and the violation is
+ * counted.  One instance is usually shared by every connection of a
+ * {@link ServerFactory}, so the counts are kept thread-safe.
+ */
+public class ProtocolLimits {
+    public static final int DEFAULT_MAX_KEYS	 = 1024;
+    public static final int DEFAULT_MAX_BOX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED  = 2 * 1024 * 1024;
+
+    /** The limits which can be gone over. */
+    public enum Limit { KEYS, BOX_BYTES, BUFFERED };
+
+    private int		    _maxKeys, _maxBoxBytes, _maxBuffered;
+    private AtomicLongArray _violations;
+
+    public ProtocolLimits() {
+	_maxKeys = DEFAULT_MAX_KEYS;
+	_maxBoxBytes = DEFAULT_MAX_BOX_BYTES;
+	_maxBuffered = DEFAULT_MAX_BUFFERED;
+	_violations = new AtomicLongArray(Limit.values().length);
+    }
+
+    /** The most keys one box may have. */
+    public void setMaxKeys(int keys) { _maxKeys = keys; }
+
+    /** The most bytes one message, framing included, may take. */
+    public void setMaxBoxBytes(int bytes) { _maxBoxBytes = bytes; }
+
+    /** The most received bytes which may wait to be parsed, including a
+     * read which just arrived; it should leave room for a read on top of
+     * the biggest message. */
+    public void setMaxBuffered(int bytes) { _maxBuffered = bytes; }
+
+    public int getMaxKeys() { return _maxKeys; }
+    public int getMaxBoxBytes() { return _maxBoxBytes; }
+    public int getMaxBuffered() { return _maxBuffered; }
+
+    /** Count a connection going over one of the limits. */
+    public void violated(Limit limit) {
+	_violations.incrementAndGet(limit.ordinal());
+    }
+
+    /** Returns how many connections went over the given limit. */
+    public long getViolations(Limit limit) {
+	return _violations.get(limit.ordinal());
+    }
+
+    /** Returns how many connections went over any limit. */
+    public long getViolations() {
+	long total = 0;
+	for (int i = 0; i < _violations.length(); i++) {
+	    total += _violations.get(i);
+	}
+	return total;
+    }
+}
@@ -2,26 +2,37 @@ package com.twistedmatrix.internet;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Set;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 
 /** The reactor is an event loop based on {@link SelectionKey} which drives
  * applications and provides APIs for networking, threading, dispatching
@@ -29,19 +40,98 @@ import javax.net.ssl.SSLSession;
  * New application code should prefer to pass and accept the reactor as a
  * parameter where it is needed, which will simplify unit testing and may make
  * it easier to one day support multiple reactors.
+ * A reactor may also be created as an event loop group, in which case it
+ * owns a number of child loops, each with its own selector and thread.
+ * Connections accepted by {@link #listenTCP} and {@link #listenSSL} are
+ * handed to one of the loops and stay pinned to it for their whole life, so
+ * protocol code never sees two threads at once.
 */
 public class Reactor {
     private static int	                BUFFER_SIZE  = 8 * 1024;
+    private static int	                MAX_IOV      = 64;
+    private static int	                LOW_WATER    = 32 * 1024;
+    private static int	                HIGH_WATER   = 64 * 1024;
+    private static long	                TIMER_TICK   = 1000000L;
+    private static double	        LINGER       = 5.0;
+    private static int	                CPUS         =
+	Runtime.getRuntime().availableProcessors();
+
+    /** How accepted connections are spread over the loops of a group. */
+    public enum LoopBalance { ROUND_ROBIN, LEAST_LOADED };
 
     private	TCPConnection           _connection;
     private	Selector                _selector;
-    private	boolean		        _running;
-    private	TreeMap<Long,Runnable>  _pendingCalls;
+    private	volatile boolean        _running;
+    private	TimerWheel		_timers;
+    private	List<TimerWheel.DelayedCall> _expired;
+
+    /* Event loop group support */
+    private	Reactor[]		_loops;
+    private	int			_nextLoop;
+    private	LoopBalance		_balance;
+    private	AtomicInteger		_load;
+    private	BufferPool		_pool;
+
+    /* Calls from other threads */
+    private	MpscQueue<Runnable>	_threadCalls;
+    private	AtomicBoolean		_wakenUp;
+    private	volatile Thread		_thread;
+    private	ThreadPool		_threadPool;
+    private	ThreadPool		_tlsTaskPool;
+    private	ThreadPool		_cryptoPool;
+    private	AtomicLong		_fullHandshakes;
+    private	AtomicLong		_resumedHandshakes;
 
     public Reactor () throws IOException {
+	this((Reactor) null);
+    }
+
+    /* A loop of a group shares the pools and counters of its parent
+     * rather than building its own. */
+    private Reactor (Reactor parent) throws IOException {
 	_selector = Selector.open();
 	_running = false;
-	_pendingCalls = new TreeMap<Long,Runnable>();
+	_timers = new TimerWheel(TIMER_TICK, System.nanoTime());
+	_expired = new ArrayList<TimerWheel.DelayedCall>();
+	_loops = new Reactor[0];
+	_nextLoop = 0;
+	_balance = LoopBalance.ROUND_ROBIN;
+	_load = new AtomicInteger(0);
+	_threadCalls = new MpscQueue<Runnable>();
+	_wakenUp = new AtomicBoolean(false);
+	if (parent != null) {
+	    _pool = parent._pool;
+	    _threadPool = parent._threadPool;
+	    _tlsTaskPool = parent._tlsTaskPool;
+	    _cryptoPool = parent._cryptoPool;
+	    _fullHandshakes = parent._fullHandshakes;
+	    _resumedHandshakes = parent._resumedHandshakes;
+	} else {
+	    _pool = BufferPool.getDefault();
+	    _threadPool = new ThreadPool();
+	    _tlsTaskPool = new ThreadPool("tls-task", CPUS, 1024);
+	    _cryptoPool = new ThreadPool("tls-crypto", CPUS, 10000);
+	    _fullHandshakes = new AtomicLong(0);
+	    _resumedHandshakes = new AtomicLong(0);
+	}
+    }
+
+    /**
+     * Create an event loop group with the given number of loops.
+     * This reactor keeps the listening sockets and its own timed events;
+     * accepted connections are spread over the loops according to
+     * {@link #setLoopBalance}.  A group of one or fewer loops behaves
+     * exactly like a plain reactor.
+     * @param nloops The number of child loops, typically one per core.
+     */
+    public Reactor (int nloops) throws IOException {
+	this();
+	if (nloops > 1) {
+	    _loops = new Reactor[nloops];
+	    for (int i = 0; i < nloops; i++) {
+		_loops[i] = new Reactor(this);
+	    }
+	}
     }
 
     /* It appears that this interface is actually unnamed in
@@ -70,30 +160,104 @@ public class Reactor {
 
     private abstract class TCPConnection
 	extends Selectable implements ITransport {
-	private ByteBuffer	   inbuf;
-	private ArrayList<byte[]>  outbufs;
+	private ArrayDeque<ByteBuffer> outbufs;
+	private ByteBuffer[]	   iov;
+
+	/* Write backpressure */
+	private long		   buffered;
+	private int		   lowWater, highWater;
+	private IPushProducer	   producer;
+	private boolean		   producerPaused;
+	private boolean		   full;	// past the high watermark
 
 	protected SocketChannel    channel;
-	protected Socket	   socket;
 	protected IProtocol	   protocol;
 	protected boolean	   disconnecting;
+	private   Throwable	   closeReason;
+	private   boolean	   draining;
+	private   boolean	   pinned;
+	protected IdleTimer	   idle;	// once timeouts are set
 
 	/* Used for encrypted connections */
 	protected SSLEngine  engine;
-	protected ByteBuffer wrapSrc, unwrapSrc, wrapDst, unwrapDst;
-
-	TCPConnection(int portno) throws Throwable {
+	protected ByteBuffer unwrapSrc, wrapDst, unwrapDst;
+	private ArrayDeque<ByteBuffer> plainOut, cipherIn; // for the engine
+	private ByteBuffer[] wrapSrcs;
+	private int	     packetSize, appSize;
+	private boolean	     tasksPending;
+	private boolean	     closeRequested;
+	private Runnable     afterClose;
+	private Throwable    inputEnded;
+	protected boolean    handshakeDone;
+	private long	     handshakeStart;
+	private AtomicInteger cryptoTurns;	// set when crypto is offloaded
+
+	TCPConnection() throws Throwable {
 	    _connection = this;
-	    this.inbuf = ByteBuffer.allocate(BUFFER_SIZE);
-	    this.inbuf.clear();
-	    this.outbufs = new ArrayList<byte[]>();
+	    this.outbufs = new ArrayDeque<ByteBuffer>();
+	    this.iov = new ByteBuffer[MAX_IOV];
+	    this.buffered = 0;
+	    this.lowWater = LOW_WATER;
+	    this.highWater = HIGH_WATER;
+	    this.producer = null;
+	    this.producerPaused = false;
 	    this.disconnecting = false;
+	    this.pinned = false;
+	}
 
-	    this.wrapSrc = ByteBuffer.allocateDirect(BUFFER_SIZE * 4);
-	    this.wrapDst = ByteBuffer.allocateDirect(BUFFER_SIZE * 4);
-	    this.unwrapSrc = ByteBuffer.allocateDirect(BUFFER_SIZE * 4);
-	    this.unwrapDst = ByteBuffer.allocateDirect(BUFFER_SIZE * 4);
-	    this.unwrapSrc.limit(0);
+	/* Switch this connection to TLS.  Only now are the buffers the
+	 * engine works on taken from the pool, sized for the largest record
+	 * the session may use.  An offloaded connection runs the engine on
+	 * the crypto pool, one turn at a time. */
+	protected void startTLS(SSLEngine engine, boolean offload) {
+	    this.engine = engine;
+	    this.handshakeStart = System.currentTimeMillis();
+	    SSLSession session = engine.getSession();
+	    this.packetSize = session.getPacketBufferSize();
+	    this.appSize = session.getApplicationBufferSize();
+	    this.wrapDst = _pool.allocateDirect(this.packetSize);
+	    this.unwrapSrc = _pool.allocateDirect(this.packetSize);
+	    this.unwrapDst = _pool.allocateDirect(this.appSize);
+	    this.plainOut = new ArrayDeque<ByteBuffer>();
+	    this.cipherIn = new ArrayDeque<ByteBuffer>();
+	    this.wrapSrcs = new ByteBuffer[MAX_IOV];
+	    if (offload) {
+		this.cryptoTurns = new AtomicInteger(0);
+	    }
+	}
+
+	/* Give the TLS buffers back once the channel is closed.  This waits
+	 * for a crypto worker still using them. */
+	protected synchronized void releaseBuffers() {
+	    if (this.unwrapSrc != null) {
+		_pool.release(this.wrapDst);
+		_pool.release(this.unwrapSrc);
+		_pool.release(this.unwrapDst);
+		this.wrapDst = this.unwrapSrc = this.unwrapDst = null;
+		synchronized (this.plainOut) {
+		    this.plainOut.clear();
+		    for (ByteBuffer b: this.cipherIn) {
+			_pool.release(b);
+		    }
+		    this.cipherIn.clear();
+		}
+	    }
+	}
+
+	/* Swap a pooled buffer for a bigger one, keeping what it holds. */
+	private ByteBuffer grow(ByteBuffer buf, int size) {
+	    ByteBuffer bigger = _pool.allocateDirect(Math.max(size,
+							      buf.capacity() * 2));
+	    buf.flip();
+	    bigger.put(buf);
+	    _pool.release(buf);
+	    return bigger;
+	}
+
+	private boolean hasPlaintext() {
+	    synchronized (this.plainOut) {
+		return !this.plainOut.isEmpty();
+	    }
 	}
 
 	// HAHAHAHA the fab four strike again
@@ -102,7 +266,7 @@ public class Reactor {
 	    interestOpsChanged();
 	}
 
-	private void startWriting () {
+	protected void startWriting () {
 	    _key.interestOps(_key.interestOps() | SelectionKey.OP_WRITE);
 	    interestOpsChanged();
 	}
@@ -117,9 +281,35 @@ public class Reactor {
 	    interestOpsChanged();
 	}
 
+	/* Register an accepted channel with the selector of this loop. */
+	protected void pin() throws IOException {
+	    this.pinned = true;
+	    _key = channel.register(_selector, SelectionKey.OP_READ, this);
+	    interestOpsChanged();
+	}
+
+	/* The channel is gone; give the slot back to this loop. */
+	protected void unpin() {
+	    if (this.pinned) {
+		this.pinned = false;
+		_load.decrementAndGet();
+	    }
+	}
+
 	public void doRead() throws Throwable {
+	    if (this.draining) {
+		this.drain();
+		return;
+	    }
 	    boolean failed = false;
 	    Throwable reason = null;
+	    // Ciphertext goes straight to the engine's buffer unless a crypto
+	    // worker owns it or earlier ciphertext is still waiting.
+	    boolean direct = this.engine != null && this.cryptoTurns == null &&
+		this.unwrapSrc != null && this.unwrapSrc.hasRemaining() &&
+		this.cipherIn.isEmpty();
+	    ByteBuffer inbuf = direct ? this.unwrapSrc
+		: _pool.allocate(BUFFER_SIZE);
 	    try {
 		int bytesread = channel.read(inbuf);
 		failed = (-1 == bytesread);
@@ -129,31 +319,43 @@ public class Reactor {
 	    }
 
 	    if (failed) {
-		if (this.engine != null) {
-		    this.engine.closeOutbound();
-		    while (this.step()) { continue; }
-		}
-
-		channel.close();
-		_key.cancel();
-		interestOpsChanged();
-
+		if (!direct)
+		    _pool.release(inbuf);
 		if (null == reason)
 		    reason = new IOException("Connection reset by peer");
-		this.connectionLost(reason);
+		if (this.cryptoTurns != null) {
+		    // What came before the end may still be waiting for a
+		    // crypto worker; the connection is lost after it.
+		    this.stopReading();
+		    synchronized (this) {
+			this.inputEnded = reason;
+		    }
+		    this.pump();
+		    return;
+		}
+		this.abort(reason);
 		return;
 	    }
+	    if (this.idle != null)
+		this.idle.read();
 
-	    byte[] data = new byte[inbuf.position()];
-	    inbuf.flip();
-	    inbuf.get(data);
-	    inbuf.clear();
 	    try {
 		if (this.engine == null) {
+		    byte[] data = new byte[inbuf.position()];
+		    inbuf.flip();
+		    inbuf.get(data);
+		    _pool.release(inbuf);
 		    this.protocol.dataReceived(data);
+		} else if (direct) {
+		    this.pump();
+		} else if (this.unwrapSrc != null) {
+		    inbuf.flip();
+		    synchronized (this.plainOut) {
+			this.cipherIn.add(inbuf);
+		    }
+		    this.pump();
 		} else {
-		    unwrapSrc.put(data);
-		    while (this.step()) { continue; }
+		    _pool.release(inbuf);
 		}
 	    } catch (Throwable t) {
 		t.printStackTrace();
@@ -161,54 +363,468 @@ public class Reactor {
 	    }
 	}
 
+	/* Close the channel and report the connection as lost. */
+	private void abort(Throwable reason) throws IOException {
+	    channel.close();
+	    if (this.idle != null)
+		this.idle.stop();
+	    _key.cancel();
+	    interestOpsChanged();
+	    this.unpin();
+	    if (this.engine != null) {
+		for (ByteBuffer b: this.outbufs) {
+		    _pool.release(b);
+		}
+	    }
+	    this.outbufs.clear();
+	    this.buffered = 0;
+	    this.releaseBuffers();
+	    if (this.producer != null) {
+		IPushProducer p = this.producer;
+		this.producer = null;
+		p.stopProducing();
+	    }
+	    this.connectionLost(reason);
+	}
+
+	/* Queue bytes for the socket, telling the protocol and pausing the
+	 * producer if the queue has grown past the high watermark. */
+	private void enqueue(ByteBuffer b) {
+	    this.outbufs.add(b);
+	    this.buffered += b.remaining();
+	    if (this.buffered > this.highWater && !this.full) {
+		this.full = true;
+		Protocol.writable(this.protocol, false);
+	    }
+	    if (this.buffered > this.highWater && !this.producerPaused &&
+		this.producer != null) {
+		this.producerPaused = true;
+		this.producer.pauseProducing();
+	    }
+	}
+
+	/* Some bytes reached the socket; tell the protocol and resume the
+	 * producer once the queue is back down to the low watermark. */
+	private void dequeued(long count) {
+	    this.buffered -= count;
+	    if (this.buffered <= this.lowWater && this.full) {
+		this.full = false;
+		Protocol.writable(this.protocol, true);
+	    }
+	    if (this.buffered <= this.lowWater && this.producerPaused) {
+		this.producerPaused = false;
+		if (this.producer != null)
+		    this.producer.resumeProducing();
+	    }
+	}
+
+	public void registerProducer(IPushProducer producer) {
+	    if (this.producer != null) {
+		throw new IllegalStateException("A producer is already " +
+						"registered with " + this);
+	    }
+	    this.producer = producer;
+	    this.producerPaused = false;
+	    if (this.buffered > this.highWater) {
+		this.producerPaused = true;
+		producer.pauseProducing();
+	    }
+	}
+
+	public void unregisterProducer() {
+	    this.producer = null;
+	    this.producerPaused = false;
+	}
+
+	public void setWriteBufferWaterMarks(int low, int high) {
+	    if (low < 0 || high < low) {
+		throw new IllegalArgumentException("Bad watermarks: " + low +
+						   ", " + high);
+	    }
+	    this.lowWater = low;
+	    this.highWater = high;
+	}
+
+	public int getBufferedAmount() {
+	    return (int) this.buffered;
+	}
+
+	/* Reading side of the transport, as a producer of received data. */
+	public void pauseProducing() {
+	    if (_key != null && _key.isValid())
+		this.stopReading();
+	}
+
+	public void resumeProducing() {
+	    if (_key != null && _key.isValid())
+		this.startReading();
+	}
+
+	public void stopProducing() {
+	    this.loseConnection(new Throwable("Producer stopped"));
+	}
+
+	public void abortConnection(Throwable reason) {
+	    if (!this.channel.isOpen()) {
+		return;
+	    }
+	    try {
+		this.abort(reason);
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+
+	public void setIdleTimeouts(double readSeconds, double writeSeconds) {
+	    if (null == this.idle) {
+		this.idle = new IdleTimer(Reactor.this) {
+			void idle(boolean reading) {
+			    protocol.connectionIdle(reading);
+			}
+			boolean isOpen() {
+			    return channel.isOpen();
+			}
+		    };
+	    }
+	    this.idle.set(readSeconds, writeSeconds);
+	}
+
 	public void write(byte[] data) {
+	    if (this.draining || !_key.isValid())
+		return;
+	    if (this.idle != null)
+		this.idle.wrote();
 	    if (this.engine == null) {
-		this.outbufs.add(data);
+		this.enqueue(ByteBuffer.wrap(data));
+		this.startWriting();
+	    } else if (this.unwrapSrc != null) {
+		synchronized (this.plainOut) {
+		    this.plainOut.add(ByteBuffer.wrap(data));
+		}
 		this.startWriting();
-	    } else {
-		wrapSrc.put(data);
-		while (this.step()) { continue; }
 	    }
 	}
 
+	public void writeSequence(List<byte[]> data) {
+	    if (this.draining || !_key.isValid())
+		return;
+	    if (this.idle != null)
+		this.idle.wrote();
+	    if (this.engine == null) {
+		for (byte[] b: data) {
+		    this.enqueue(ByteBuffer.wrap(b));
+		}
+		this.startWriting();
+	    } else if (this.unwrapSrc != null) {
+		synchronized (this.plainOut) {
+		    for (byte[] b: data) {
+			this.plainOut.add(ByteBuffer.wrap(b));
+		    }
+		}
+		this.startWriting();
+	    }
+	}
+
+	/* Hand as much of the queue to the socket as it will take, using one
+	 * gathering write per batch of buffers.  A short write leaves the
+	 * position of the partially written buffer where the socket stopped,
+	 * and writing stays enabled until the queue is empty.  On a TLS
+	 * connection, everything written since the last time is encrypted
+	 * first, so that small writes share records. */
 	public void doWrite() throws Throwable {
-	    if (0 == this.outbufs.size()) {
-		if (this.disconnecting) {
-		    this.channel.close();
-		  this.connectionLost(new Throwable("Disconnected"));
+	    if (this.engine != null && this.unwrapSrc != null &&
+		this.hasPlaintext()) {
+		this.pump();
+		if (!this._key.isValid()) {
+		    return;
+		}
+	    }
+	    try {
+		while (!this.outbufs.isEmpty()) {
+		    int count = 0;
+		    long wanted = 0;
+		    for (ByteBuffer b: this.outbufs) {
+			if (count == MAX_IOV)
+			    break;
+			iov[count++] = b;
+			wanted += b.remaining();
+		    }
+
+		    long written = this.channel.write(iov, 0, count);
+		    Arrays.fill(iov, 0, count, null);
+		    this.dequeued(written);
+
+		    while (!this.outbufs.isEmpty() &&
+			   !this.outbufs.peekFirst().hasRemaining()) {
+			ByteBuffer done = this.outbufs.pollFirst();
+			if (this.engine != null) {
+			    _pool.release(done);
+			}
+		    }
+		    if (written < wanted) {
+			return; // The socket is full, wait for OP_WRITE.
+		    }
 		}
+	    } catch (IOException ioe) {
+		this.abort(ioe);
+		return;
+	    }
+
+	    this.stopWriting();
+	    if (this.disconnecting) {
+		this.finishClosing();
+	    }
+	}
+
+	/* Close the connection the polite way: stop reading, and close the
+	 * channel only once everything written so far, and on a TLS
+	 * connection close_notify after it, has reached the socket. */
+	protected void closeWhenFlushed(Throwable reason) {
+	    if (!_key.isValid() || this.closeReason != null) {
+		return;
+	    }
+	    this.closeReason = null == reason ? new Throwable("Disconnected")
+		: reason;
+	    this.stopReading();
+	    if (this.engine != null) {
+		this.closeTLS(new Runnable() {
+			public void run() {
+			    if (_key.isValid()) {
+				disconnecting = true;
+				startWriting();
+			    }
+			}
+		    });
+		return;
+	    }
+
+	    this.disconnecting = true;
+	    this.startWriting();
+	}
+
+	/* Everything is written: send our FIN, and close once the peer has
+	 * closed its side as well.  Closing with its data still unread
+	 * would reset the connection, and the peer could lose what we sent
+	 * before reading it. */
+	private void finishClosing() throws IOException {
+	    try {
+		this.channel.shutdownOutput();
+	    } catch (IOException e) {
+		this.abort(this.closeReason);
+		return;
+	    }
+	    this.draining = true;
+	    this.startReading();
+	    callLater(LINGER, new Runnable() {
+		    public void run() {
+			abortConnection(closeReason);
+		    }
+		});
+	}
+
+	/* Read and throw away whatever the peer sends until it closes. */
+	private void drain() throws IOException {
+	    ByteBuffer junk = _pool.allocate(BUFFER_SIZE);
+	    int bytesread;
+	    try {
+		bytesread = channel.read(junk);
+	    } catch (IOException ioe) {
+		bytesread = -1;
+	    }
+	    _pool.release(junk);
+	    if (-1 == bytesread) {
+		this.abort(this.closeReason);
+	    }
+	}
+
+	/* Feed waiting data to the engine and run it as far as it will go:
+	 * right here, or in order on a crypto worker if the connection is
+	 * offloaded.  Only the loop calls this. */
+	protected void pump() {
+	    if (this.cryptoTurns == null) {
+		this.turn();
+	    } else if (this.cryptoTurns.getAndIncrement() == 0) {
+		if (!_cryptoPool.callInThread(this.cryptoTurn)) {
+		    this.cryptoTurn.run();
+		}
+	    }
+	}
+
+	/* Runs turns until no pump() has been asked for since the last one,
+	 * so that at most one worker uses the engine at a time. */
+	private Runnable cryptoTurn = new Runnable() {
+		public void run() {
+		    int seen;
+		    do {
+			seen = cryptoTurns.get();
+			try {
+			    turn();
+			} catch (final Throwable t) {
+			    t.printStackTrace();
+			    onLoop(new Runnable() {
+				    public void run() {
+					abortConnection(t);
+				    }
+				});
+			}
+		    } while (cryptoTurns.addAndGet(-seen) != 0);
+		}
+	    };
+
+	private synchronized void turn() {
+	    boolean fed;
+	    do {
+		if (this.unwrapSrc == null) {
+		    return;
+		}
+		fed = this.feedCiphertext();
+		while (this.step()) { continue; }
+	    } while (fed);
+
+	    if (this.closeRequested && !this.tasksPending) {
+		this.closeRequested = false;
+		this.engine.closeOutbound();
+		while (this.step()) { continue; }
+		if (this.afterClose != null) {
+		    this.onLoop(this.afterClose);
+		}
+	    }
+	    if (this.inputEnded != null) {
+		final Throwable reason = this.inputEnded;
+		this.inputEnded = null;
+		this.onLoop(new Runnable() {
+			public void run() {
+			    abortConnection(reason);
+			}
+		    });
+	    }
+	}
+
+	/* Move as much waiting ciphertext into the engine's buffer as it
+	 * will take, returning the read buffers to the pool as they drain. */
+	private boolean feedCiphertext() {
+	    boolean fed = false;
+	    ByteBuffer to = this.unwrapSrc;
+	    synchronized (this.plainOut) {
+		while (!this.cipherIn.isEmpty() && to.hasRemaining()) {
+		    ByteBuffer b = this.cipherIn.peekFirst();
+		    int n = Math.min(b.remaining(), to.remaining());
+		    int limit = b.limit();
+		    b.limit(b.position() + n);
+		    to.put(b);
+		    b.limit(limit);
+		    if (!b.hasRemaining()) {
+			_pool.release(this.cipherIn.pollFirst());
+		    }
+		    fed = true;
+		}
+	    }
+	    return fed;
+	}
+
+	/* Send close_notify once everything written so far is encrypted,
+	 * then run the rest of closing the connection on the loop. */
+	protected void closeTLS(Runnable after) {
+	    synchronized (this) {
+		this.closeRequested = true;
+		this.afterClose = after;
+	    }
+	    this.pump();
+	}
+
+	/* Run something which belongs to the loop: right away, or posted
+	 * back to the loop by a crypto worker. */
+	private void onLoop(Runnable r) {
+	    if (this.cryptoTurns == null) {
+		r.run();
 	    } else {
-		this.channel.write(ByteBuffer.wrap(this.outbufs.remove(0)));
-		if (0 == this.outbufs.size()) {
-		    this.stopWriting();
+		callFromThread(r);
+	    }
+	}
+
+	/* Queue a pooled buffer of records for the socket; doWrite returns
+	 * it to the pool once it is written. */
+	private void sendCiphertext(final ByteBuffer records) {
+	    if (this.cryptoTurns == null) {
+		if (_key.isValid()) {
+		    this.enqueue(records);
+		    this.startWriting();
+		} else {
+		    _pool.release(records);
 		}
+	    } else {
+		callFromThread(new Runnable() {
+			public void run() {
+			    if (_key.isValid()) {
+				enqueue(records);
+				startWriting();
+			    } else {
+				_pool.release(records);
+			    }
+			}
+		    });
 	    }
 	}
 
-	/* Actually encrypt outgoing data */
+	private void receivePlaintext(final byte[] bytes) {
+	    if (this.cryptoTurns == null) {
+		this.protocol.dataReceived(bytes);
+	    } else {
+		callFromThread(new Runnable() {
+			public void run() {
+			    if (_key.isValid()) {
+				protocol.dataReceived(bytes);
+			    }
+			}
+		    });
+	    }
+	}
+
+	/* Actually encrypt outgoing data.  The engine gathers straight from
+	 * the queued writes, filling records as full as it can, and the
+	 * buffer it wrote into goes to the socket as it is. */
 	protected synchronized boolean wrap() {
 	    SSLEngineResult wrapResult;
+	    int count = 0;
 
+	    synchronized (this.plainOut) {
+		for (ByteBuffer b: this.plainOut) {
+		    if (count == MAX_IOV)
+			break;
+		    wrapSrcs[count++] = b;
+		}
+	    }
 	    try {
-		wrapSrc.flip();
 		wrapDst.clear();
-		wrapResult = engine.wrap(wrapSrc, wrapDst);
-		wrapSrc.compact();
-	    } catch (SSLException exc) {
+		wrapResult = engine.wrap(wrapSrcs, 0, count, wrapDst);
+	    } catch (final SSLException exc) {
 		exc.printStackTrace();
-		this.connectionLost(exc);
+		this.onLoop(new Runnable() {
+			public void run() {
+			    abortConnection(exc);
+			}
+		    });
 		return false;
+	    } finally {
+		Arrays.fill(wrapSrcs, 0, count, null);
+	    }
+
+	    synchronized (this.plainOut) {
+		while (!this.plainOut.isEmpty() &&
+		       !this.plainOut.peekFirst().hasRemaining()) {
+		    this.plainOut.pollFirst();
+		}
+	    }
+	    // A CLOSED result may still carry close_notify.
+	    if (wrapDst.position() > 0) {
+		ByteBuffer records = wrapDst;
+		records.flip();
+		this.wrapDst = _pool.allocateDirect(this.packetSize);
+		this.sendCiphertext(records);
 	    }
 
 	    switch (wrapResult.getStatus()) {
 	    case OK:
-		if (wrapDst.position() > 0) {
-		    wrapDst.flip();
-		    byte[] bytes = new byte[wrapDst.remaining()];
-		    wrapDst.get(bytes);
-		    this.outbufs.add(bytes);
-		    this.startWriting();
-		}
 		break;
 
 	    case BUFFER_UNDERFLOW:
@@ -216,14 +832,21 @@ public class Reactor {
 		break;
 
 	    case BUFFER_OVERFLOW:
-		throw new IllegalStateException("Buffer overflow in wrap!");
+		// The session has settled on bigger records than we expected.
+		this.packetSize = engine.getSession().getPacketBufferSize();
+		this.wrapDst = this.grow(this.wrapDst, this.packetSize);
+		return true;
 
 	    case CLOSED:
-		//this.protocol.connectionLost(new Throwable("Disconnected"));
 		return false;
 	    }
 
-	    return true;
+	    if (wrapResult.getHandshakeStatus() ==
+		SSLEngineResult.HandshakeStatus.FINISHED) {
+		this.handshakeFinished();
+	    }
+	    return wrapResult.bytesConsumed() > 0 ||
+		wrapResult.bytesProduced() > 0;
 	}
 
 	/* Actually decrypt incoming data */
@@ -235,9 +858,13 @@ public class Reactor {
 		unwrapDst.clear();
 		unwrapResult = engine.unwrap(unwrapSrc, unwrapDst);
 		unwrapSrc.compact();
-	    } catch (SSLException exc) {
+	    } catch (final SSLException exc) {
 		exc.printStackTrace();
-		this.connectionLost(exc);
+		this.onLoop(new Runnable() {
+			public void run() {
+			    abortConnection(exc);
+			}
+		    });
 		return false;
 	    }
 
@@ -247,49 +874,71 @@ public class Reactor {
 		    unwrapDst.flip();
 		    byte[] bytes = new byte[unwrapDst.remaining()];
 		    unwrapDst.get(bytes);
-		    this.protocol.dataReceived(bytes);
+		    this.receivePlaintext(bytes);
 		}
 		break;
 
 	    case CLOSED:
-		this.connectionLost(new Throwable("Disconnected"));
+		this.onLoop(new Runnable() {
+			public void run() {
+			    abortConnection(new Throwable("Disconnected"));
+			}
+		    });
 		return false;
 
 	    case BUFFER_OVERFLOW:
-		throw new IllegalStateException("Buffer overflow in unwrap!");
+		this.appSize = engine.getSession().getApplicationBufferSize();
+		this.unwrapDst = this.grow(this.unwrapDst, this.appSize);
+		return true;
 
 	    case BUFFER_UNDERFLOW:
+		if (!unwrapSrc.hasRemaining()) {
+		    // The next record is bigger than the buffer.
+		    this.packetSize = engine.getSession().getPacketBufferSize();
+		    this.unwrapSrc = this.grow(this.unwrapSrc, this.packetSize);
+		    return true;
+		}
 		return false;
 	    }
 
-	    switch (unwrapResult.getHandshakeStatus()) {
-	    case FINISHED:
-		this.protocol.makeConnection(this);
-
-		/*
-		SSLSession session = engine.getSession();
-		try {
-		    System.out.println("- local principal: " +
-				       session.getLocalPrincipal());
-		    System.out.println("- remote principal: " +
-				       session.getPeerPrincipal());
-		    System.out.println("- using cipher: " +
-				       session.getCipherSuite());
-		} catch (Exception exc) { exc.printStackTrace(); }
-		*/
-
-		return false;
+	    if (unwrapResult.getHandshakeStatus() ==
+		SSLEngineResult.HandshakeStatus.FINISHED) {
+		this.handshakeFinished();
 	    }
-
 	    return true;
 	}
 
+	/* The first handshake is over, which depending on the version
+	 * either side may learn from wrap or unwrap.  Count it, and only now
+	 * connect the protocol. */
+	private void handshakeFinished() {
+	    if (this.handshakeDone) {
+		return;
+	    }
+	    this.handshakeDone = true;
+
+	    countHandshake(engine.getSession(), this.handshakeStart);
+	    this.onLoop(new Runnable() {
+		    public void run() {
+			Protocol.connect(protocol, TCPConnection.this, _pool);
+			madeConnection();
+		    }
+		});
+	}
+
+	/* The protocol has its transport; clients tell their factory. */
+	protected void madeConnection() { }
+
 	/* Encryption housekeeping */
 	protected boolean step() {
+	    if (this.tasksPending || this.unwrapSrc == null) {
+		return false;
+	    }
+
 	    switch (engine.getHandshakeStatus()) {
 	    case NOT_HANDSHAKING:
 		boolean anything = false;
-		if (wrapSrc.position() > 0)
+		if (this.hasPlaintext())
 		    anything |= this.wrap();
 		if (unwrapSrc.position() > 0)
 		    anything |= this.unwrap();
@@ -306,14 +955,7 @@ public class Reactor {
 		break;
 
 	    case NEED_TASK:
-		Runnable task = null;
-		Executor exec = Executors.newSingleThreadExecutor();
-		while ((task = engine.getDelegatedTask()) != null) {
-		    exec.execute(task);
-		    while (this.step()) { continue; }
-		}
-
-		return true;
+		return this.runDelegatedTasks();
 
 	    case FINISHED:
 		throw new IllegalStateException("FINISHED");
@@ -322,6 +964,42 @@ public class Reactor {
 	    return true;
 	}
 
+	/* Run the expensive parts of a handshake.  A crypto worker simply
+	 * runs them; the loop hands them to the shared task pool, and the
+	 * engine waits until they are done.  If the pool is full the loop
+	 * runs them itself. */
+	private boolean runDelegatedTasks() {
+	    final List<Runnable> tasks = new ArrayList<Runnable>();
+	    Runnable task;
+	    while ((task = engine.getDelegatedTask()) != null) {
+		tasks.add(task);
+	    }
+	    if (this.cryptoTurns == null) {
+		this.tasksPending = true;
+		boolean queued = _tlsTaskPool.callInThread(new Runnable() {
+			public void run() {
+			    for (Runnable t: tasks) {
+				t.run();
+			    }
+			    callFromThread(new Runnable() {
+				    public void run() {
+					tasksPending = false;
+					pump();
+				    }
+				});
+			}
+		    });
+		if (queued) {
+		    return false;
+		}
+		this.tasksPending = false;
+	    }
+	    for (Runnable t: tasks) {
+		t.run();
+	    }
+	    return true;
+	}
+
 	public boolean isConnecting() {
 	    return channel.isConnectionPending();
 	}
@@ -330,23 +1008,33 @@ public class Reactor {
 	public abstract void loseConnection(Throwable reason);
     }
 
-    /** Implements the bulk of the tcp server support */
-    private class TCPPort extends TCPConnection implements IListeningPort {
+    /** Implements the bulk of the tcp server support, and of the unix
+     * socket server support, which differs only in the address. */
+    private class TCPPort extends Selectable implements IListeningPort {
 	protected ServerFactory       serverFactory;
 	protected ServerSocketChannel schannel;
-	private   ServerSocket	      ssocket;
-	private   InetSocketAddress   addr;
+	private   SocketAddress	      addr;
+	private   boolean	      unix;
+	private   Set<TCPServerConnection> connections;
 
 	TCPPort(int port, ServerFactory sf) throws Throwable {
-	    super(port);
-	    this.serverFactory = sf;
-	    this.addr = new InetSocketAddress(port);
+	    this(new InetSocketAddress(port), sf);
+	}
 
-	    this.schannel = ServerSocketChannel.open();
+	TCPPort(SocketAddress addr, ServerFactory sf) throws Throwable {
+	    this.serverFactory = sf;
+	    this.addr = addr;
+	    this.unix = addr instanceof UnixDomainSocketAddress;
+	    this.connections = Collections.newSetFromMap(
+		new ConcurrentHashMap<TCPServerConnection, Boolean>());
+
+	    this.schannel = this.unix
+		? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+		: ServerSocketChannel.open();
 	    this.schannel.configureBlocking(false);
-	    this.ssocket = schannel.socket();
-	    this.ssocket.bind(this.addr);
-	    this.protocol = sf.buildProtocol(this.addr);
+	    this.schannel.bind(this.addr);
+	    // Port 0 asks for any free port; remember the one we were given.
+	    this.addr = this.schannel.getLocalAddress();
 
 	    _key = schannel.register(_selector, SelectionKey.OP_ACCEPT,this);
 	    interestOpsChanged();
@@ -354,7 +1042,14 @@ public class Reactor {
 	    this.startListening();
 	}
 
-	public InetSocketAddress getHost() { return this.addr; }
+	/** Returns null for a unix socket. */
+	public InetSocketAddress getHost() {
+	    return this.unix ? null : (InetSocketAddress) this.addr;
+	}
+
+	public Collection<ITransport> getConnections() {
+	    return Collections.<ITransport>unmodifiableSet(this.connections);
+	}
 
 	public void startListening() throws Throwable {
 	    _key.interestOps(_key.interestOps() | SelectionKey.OP_ACCEPT);
@@ -363,20 +1058,59 @@ public class Reactor {
 	}
 
 	public void doAccept() throws Throwable {
-	    SocketChannel newchannel = schannel.accept();
+	    final SocketChannel newchannel = schannel.accept();
 	    if (null == newchannel) {
 		throw new Throwable("Unable to accept connection!");
 	    } else {
-		channel = newchannel;
-		channel.configureBlocking(false);
-		socket = newchannel.socket();
-		socket.setTcpNoDelay(true);
+		newchannel.configureBlocking(false);
+		if (!this.unix)
+		    newchannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
 
-		_key = channel.register(_selector,SelectionKey.OP_READ,this);
-		interestOpsChanged();
+		final Reactor target = nextLoop();
+		if (target == Reactor.this) {
+		    accepted(target, newchannel);
+		} else {
+		    target.callFromThread(new Runnable() {
+			    public void run() {
+				accepted(target, newchannel);
+			    }
+			});
+		}
+	    }
+	}
 
-		super.startReading();
-		this.protocol.makeConnection(this);
+	/* Runs on the thread of the loop the channel was handed to. */
+	private void accepted(Reactor target, SocketChannel newchannel) {
+	    TCPServerConnection conn = null;
+	    try {
+		conn = this.buildConnection(target, newchannel);
+		this.connections.add(conn);
+		conn.start();
+	    } catch (Throwable t) {
+		t.printStackTrace();
+		if (conn != null) {
+		    conn.connectionLost(t);
+		} else {
+		    target._load.decrementAndGet();
+		    try {
+			newchannel.close();
+		    } catch (IOException ioe) { }
+		}
+	    }
+	}
+
+	/** Create the per-connection state for a freshly accepted channel,
+	 * owned by the given loop. */
+	protected TCPServerConnection buildConnection(Reactor target,
+						      SocketChannel newchannel)
+	    throws Throwable {
+	    return target.new TCPServerConnection(this, newchannel);
+	}
+
+	/* Called by a connection once it is gone for good. */
+	void removeConnection(TCPServerConnection conn, Throwable reason) {
+	    if (this.connections.remove(conn)) {
+		this.serverFactory.connectionLost(this, reason);
 	    }
 	}
 
@@ -384,18 +1118,54 @@ public class Reactor {
 	    this.serverFactory.connectionLost(this, reason);
 	}
 
+	/** Stop accepting connections; established ones are left alone. */
 	public void loseConnection(Throwable reason) {
-	    if (this.engine != null) {
-		this.engine.closeOutbound();
-		while (this.step()) { continue; }
-	    }
-
-	    this.disconnecting = true;
 	    _key.interestOps(_key.interestOps() & ~SelectionKey.OP_ACCEPT);
 	    _key.cancel();
 	    interestOpsChanged();
+
+	    try {
+		this.schannel.close();
+		if (this.unix) {
+		    Files.deleteIfExists(
+			((UnixDomainSocketAddress) this.addr).getPath());
+		}
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
 	}
-     }
+    }
+
+    /** One accepted client of a listening port, with its own buffers and
+     * its own protocol instance. */
+    private class TCPServerConnection extends TCPConnection {
+	protected TCPPort port;
+
+	TCPServerConnection(TCPPort port, SocketChannel newchannel)
+	    throws Throwable {
+	    this.port = port;
+	    this.channel = newchannel;
+	    SocketAddress peer = newchannel.getRemoteAddress();
+	    this.protocol = port.serverFactory.buildServerProtocol(peer);
+	}
+
+	/* Register with our loop and hand the transport to the protocol. */
+	void start() throws Throwable {
+	    this.pin();
+	    this.startReading();
+	    Protocol.connect(this.protocol, this, _pool);
+	}
+
+	public void connectionLost(Throwable reason) {
+	    this.unpin();
+	    Protocol.lost(this.protocol, reason);
+	    this.port.removeConnection(this, reason);
+	}
+
+	public void loseConnection(Throwable reason) {
+	    this.closeWhenFlushed(reason);
+	}
+    }
 
     /** Implements the SSL server support */
     private class SSLPort extends TCPPort {
@@ -404,88 +1174,186 @@ public class Reactor {
 	SSLPort(int port, SSLContext ctx, ServerFactory sf) throws Throwable {
 	    super(port, sf);
 	    _ctx = ctx;
+
+	    SSLSessionContext sessions = ctx.getServerSessionContext();
+	    if (sf.getSessionCacheSize() >= 0)
+		sessions.setSessionCacheSize(sf.getSessionCacheSize());
+	    if (sf.getSessionTimeout() >= 0)
+		sessions.setSessionTimeout(sf.getSessionTimeout());
 	}
 
-	@Override public void doAccept() throws Throwable {
-	    SocketChannel newchannel = schannel.accept();
-	    if (null == newchannel) {
-		throw new Throwable("Unable to accept connection!");
-	    } else {
-		channel = newchannel;
-		channel.configureBlocking(false);
-		socket = newchannel.socket();
-		socket.setTcpNoDelay(true);
+	@Override protected TCPServerConnection buildConnection(
+	    Reactor target, SocketChannel newchannel) throws Throwable {
+	    return target.new SSLServerConnection(this, newchannel, _ctx);
+	}
+    }
 
-		_key = channel.register(_selector,SelectionKey.OP_READ,this);
-		interestOpsChanged();
+    /** One accepted client of an SSL port. */
+    private class SSLServerConnection extends TCPServerConnection {
+	private SSLContext _ctx;
 
-		String[] ecs = this.serverFactory.getEnabledCipherSuites();
+	SSLServerConnection(TCPPort port, SocketChannel newchannel,
+			    SSLContext ctx) throws Throwable {
+	    super(port, newchannel);
+	    _ctx = ctx;
+	}
 
-		super.startReading();
-		this.engine = _ctx.createSSLEngine();
+	@Override void start() throws Throwable {
+	    this.pin();
 
-		if (ecs != null && ecs.length > 0)
-		    this.engine.setEnabledCipherSuites(ecs);
+	    String[] ecs = this.port.serverFactory.getEnabledCipherSuites();
 
-		this.engine.setUseClientMode(false);
-		this.engine.beginHandshake();
-		this.wrap(); // Initiate the handshake
-		while (this.step()) { continue; } // Complete the handshake
-		this.protocol.makeConnection(this);
-	    }
+	    this.startReading();
+	    this.startTLS(_ctx.createSSLEngine(),
+			  this.port.serverFactory.offloadCrypto());
+
+	    if (ecs != null && ecs.length > 0)
+		this.engine.setEnabledCipherSuites(ecs);
+
+	    this.engine.setUseClientMode(false);
+	    this.engine.beginHandshake();
+	    this.pump(); // Initiate the handshake
 	}
     }
 
-    /** Implements the bulk of the tcp client support */
+    /** Implements the bulk of the tcp client support, and of the unix
+     * socket client support.  A connector is good for one attempt; once
+     * it has failed or its connection is over, connect() starts a new
+     * attempt on a new connector, which stands behind the first one, so
+     * that the factory and the caller only ever see the first. */
     private class TCPConnect extends TCPConnection implements IConnector {
 	protected ClientFactory     clientFactory;
-	private InetSocketAddress addr;
+	private SocketAddress addr;
+	private boolean	      unix;
+	private boolean	      started, made, lost;
+	private TCPConnect    first, current;
 
 	TCPConnect(String host, int port, ClientFactory cf) throws Throwable {
-	    super(port);
+	    this(new InetSocketAddress(host, port), cf);
+	}
+
+	TCPConnect(SocketAddress addr, ClientFactory cf) throws Throwable {
 	    this.clientFactory = cf;
-	    this.addr = new InetSocketAddress(host, port);
+	    this.addr = addr;
+	    this.unix = addr instanceof UnixDomainSocketAddress;
+	    this.first = this.current = this;
 
-	    this.channel = SocketChannel.open();
+	    this.channel = this.unix
+		? SocketChannel.open(StandardProtocolFamily.UNIX)
+		: SocketChannel.open();
 	    this.channel.configureBlocking(false);
-	    this.socket = channel.socket();
 	    this.protocol = cf.buildProtocol(this.addr);
 
 	    _key = channel.register(_selector, SelectionKey.OP_CONNECT,this);
 	    interestOpsChanged();
+	}
 
-	    this.connect();
+	/* A fresh connector to the same place, for the next attempt. */
+	protected TCPConnect again() throws Throwable {
+	    return new TCPConnect(this.addr, this.clientFactory);
 	}
 
-	public InetSocketAddress getDestination() { return this.addr; }
+	/** Returns null for a unix socket. */
+	public InetSocketAddress getDestination() {
+	    return this.unix ? null : (InetSocketAddress) this.addr;
+	}
 
 	public void connect() throws Throwable {
+	    if (this.first != this) {
+		this.first.connect();
+		return;
+	    }
+	    if (this.current.started) {
+		if (this.current.channel.isOpen()) {
+		    throw new IllegalStateException("Already connected");
+		}
+		TCPConnect next = this.again();
+		next.first = this;
+		this.current = next;
+	    }
+	    this.current.start();
+	}
+
+	private void start() throws Throwable {
+	    this.started = true;
 	    this.isConnecting();
-	    this.clientFactory.startedConnecting(this);
-	    this.channel.connect(this.addr);
-	    this.channel.configureBlocking(false);
-	    this.socket.setTcpNoDelay(true);
+	    this.clientFactory.startedConnecting(this.first);
+	    if (!this.unix)
+		this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	    boolean connected;
+	    try {
+		connected = this.channel.connect(this.addr);
+	    } catch (final IOException e) {
+		// A unix socket which is missing fails right away; tell the
+		// factory from the loop, as for a refused tcp connection.  The
+		// failed channel is closed already.
+		_key.cancel();
+		interestOpsChanged();
+		this.channel.close();
+		callFromThread(new Runnable() {
+			public void run() {
+			    connectionFailed(e);
+			}
+		    });
+		return;
+	    }
+	    if (connected) {
+		// A local connection may be made at once, in which case the
+		// selector will never report it.
+		callFromThread(new Runnable() {
+			public void run() {
+			    try {
+				doConnect();
+			    } catch (Throwable t) {
+				t.printStackTrace();
+			    }
+			}
+		    });
+		return;
+	    }
 	    _key.interestOps(_key.interestOps() | SelectionKey.OP_CONNECT);
 	    interestOpsChanged();
 	}
 
+	/** Closes the connection once what was written has been sent, as a
+	 * server connection does; the protocol and factory are told it was
+	 * lost once the channel is closed.  A connection still being made,
+	 * or still shaking hands, is simply dropped. */
 	public void loseConnection(Throwable reason) {
+	    if (this.current != this) {
+		this.current.loseConnection(reason);
+		return;
+	    }
+	    if (this.channel.isConnected() &&
+		(this.engine == null || this.handshakeDone)) {
+		this.closeWhenFlushed(reason);
+		return;
+	    }
 	    _key.interestOps(_key.interestOps() & ~SelectionKey.OP_CONNECT);
 	    _key.cancel();
 	    interestOpsChanged();
+	    this.closeChannel(reason);
+	}
 
+	private void closeChannel(Throwable reason) {
 	    try {
-		if (this.engine != null) {
-		    this.engine.closeOutbound();
-		    while (this.step()) { continue; }
-		}
 		this.channel.close();
 	    } catch (IOException e) {
 		e.printStackTrace();
 	    }
+	    if (this.idle != null)
+		this.idle.stop();
+	    this.releaseBuffers();
+	    if (this.made) {
+		this.connectionLost(reason);
+	    }
 	}
 
 	public void stopConnecting() {
+	    if (this.current != this) {
+		this.current.stopConnecting();
+		return;
+	    }
 	    _key.interestOps(_key.interestOps() & ~SelectionKey.OP_CONNECT);
 	    _key.cancel();
 	    interestOpsChanged();
@@ -501,19 +1369,38 @@ public class Reactor {
 	    try {
 		this.channel.finishConnect();
 		super.startReading();
-		this.protocol.makeConnection(this);
-	    } catch (ConnectException e) {
-		connectionFailed(e);
+		Protocol.connect(this.protocol, this, _pool);
+		this.madeConnection();
+	    } catch (IOException e) {
+		this.failed(e);
 	    }
 	}
 
+	/* The connection was refused, or the handshake went wrong. */
+	protected void failed(IOException e) throws IOException {
+	    _key.cancel();
+	    interestOpsChanged();
+	    this.channel.close();
+	    this.releaseBuffers();
+	    connectionFailed(e);
+	}
+
+	@Override protected void madeConnection() {
+	    this.made = true;
+	    this.clientFactory.clientConnectionMade(this.first, this.protocol);
+	}
+
 	public void connectionFailed(Throwable reason) {
-	    this.clientFactory.clientConnectionFailed(this, reason);
+	    this.clientFactory.clientConnectionFailed(this.first, reason);
 	}
 
 	public void connectionLost(Throwable reason) {
-	    this.protocol.connectionLost(reason);
-	    this.clientFactory.clientConnectionLost(this, reason);
+	    if (this.lost) {
+		return;
+	    }
+	    this.lost = true;
+	    Protocol.lost(this.protocol, reason);
+	    this.clientFactory.clientConnectionLost(this.first, reason);
 	}
     }
 
@@ -527,11 +1414,21 @@ public class Reactor {
 	    _ctx = ctx;
 	}
 
+	@Override protected TCPConnect again() throws Throwable {
+	    InetSocketAddress dest = this.getDestination();
+	    return new SSLConnect(dest.getHostString(), dest.getPort(), _ctx,
+				  this.clientFactory);
+	}
+
 	@Override public void doConnect() throws Throwable {
 	    try {
 		String[] ecs = this.clientFactory.getEnabledCipherSuites();
 		this.channel.finishConnect();
-		this.engine = _ctx.createSSLEngine();
+		// Naming the peer lets the engine resume an earlier session.
+		InetSocketAddress dest = this.getDestination();
+		this.startTLS(_ctx.createSSLEngine(dest.getHostString(),
+						   dest.getPort()),
+			      this.clientFactory.offloadCrypto());
 
 		if (ecs != null && ecs.length > 0)
 		    this.engine.setEnabledCipherSuites(ecs);
@@ -540,34 +1437,104 @@ public class Reactor {
 		this.engine.beginHandshake();
 
 		super.startReading();
-		this.wrap(); // Initiate the handshake
-		while (this.step()) { continue; } // Complete the handshake
-	    } catch (ConnectException e) {
-		connectionFailed(e);
+		this.pump(); // Initiate the handshake
+	    } catch (IOException e) {
+		this.failed(e);
 	    }
 	}
     }
 
-   /**
-     * Run all runnables scheduled to run before right now, and return the
-     * timeout.  Negative timeout means "no timeout".
+    /**
+     * Run all delayed calls scheduled to run before right now, and return
+     * the timeout in milliseconds until the next one.  Negative timeout
+     * means "no timeout".
      */
     private long runUntilCurrent(long now) {
-	while (0 != _pendingCalls.size()) {
+	synchronized(_timers) {
+	    _timers.advance(now, _expired);
+	}
+	for (int i = 0; i < _expired.size(); i++) {
 	    try {
-		long then = _pendingCalls.firstKey();
-		if (then < now) {
-		    Runnable r = _pendingCalls.remove((Object) new Long(then));
-		    r.run();
-		} else {
-		    return then - now;
+		_expired.get(i).run();
+	    } catch (Throwable t) {
+		t.printStackTrace();
+	    }
+	}
+	_expired.clear();
+
+	long next;
+	synchronized(_timers) {
+	    next = _timers.nextExpiry();
+	}
+	if (next == Long.MAX_VALUE) {
+	    return -1;
+	}
+	long nanos = next - System.nanoTime();
+	if (nanos <= 0) {
+	    return 0;
+	}
+	return (nanos + 999999L) / 1000000L;
+    }
+
+    /**
+     * Pick the loop which will own a newly accepted connection and count it
+     * against that loop.  Without a group this is always this reactor.
+     */
+    private Reactor nextLoop() {
+	Reactor target = this;
+	if (_loops.length > 0) {
+	    if (_balance == LoopBalance.LEAST_LOADED) {
+		target = _loops[0];
+		for (Reactor r: _loops) {
+		    if (r._load.get() < target._load.get()) {
+			target = r;
+		    }
 		}
-	    } catch (NoSuchElementException nsee) {
-		nsee.printStackTrace();
-		throw new Error("Impossible; _pendingCalls.size was not zero");
+	    } else {
+		target = _loops[_nextLoop];
+		_nextLoop = (_nextLoop + 1) % _loops.length;
+	    }
+	}
+	target._load.incrementAndGet();
+	return target;
+    }
+
+    /**
+     * Run something on the thread of this reactor, as soon as possible.
+     * This is the only method of a reactor which may safely be called from
+     * any thread; other threads use it to write to connections, and the
+     * accepting loop of a group uses it to hand channels to the loop that
+     * will own them.  Calls run in the order they were made.
+     */
+    public void callFromThread(Runnable r) {
+	_threadCalls.offer(r);
+	if (!isInLoopThread()) {
+	    wakeupLoop();
+	}
+    }
+
+    /** Returns true if the calling thread is the one running this reactor. */
+    public boolean isInLoopThread() {
+	return Thread.currentThread() == _thread;
+    }
+
+    /* Wake the selector at most once per iteration of the loop; a wakeup
+     * is remembered by the selector if it is not blocked yet. */
+    private void wakeupLoop() {
+	if (_wakenUp.compareAndSet(false, true)) {
+	    _selector.wakeup();
+	}
+    }
+
+    private void runThreadCalls() {
+	Runnable r;
+	while ((r = _threadCalls.poll()) != null) {
+	    try {
+		r.run();
+	    } catch (Throwable t) {
+		t.printStackTrace();
 	    }
 	}
-	return -1;
     }
 
     private void iterate() throws Throwable {
@@ -597,30 +1564,72 @@ public class Reactor {
      * This may need to run the runUntilCurrent() in a different thread.
      */
     private long processTimedEvents() {
-	long now = System.currentTimeMillis();
-	return runUntilCurrent(now);
+	return runUntilCurrent(System.nanoTime());
     }
 
-    /** Runs something later. */
-    public void callLater(double secondsLater, Runnable runme) {
-	long millisLater = (long) (secondsLater * 1000.0);
-	synchronized(_pendingCalls) {
-	    _pendingCalls.put(System.currentTimeMillis() + millisLater, runme);
-	    // This isn't actually an interestOps
-	    interestOpsChanged();
+    /**
+     * Runs something later.
+     * @return A handle which may be used to cancel or reschedule the call.
+     */
+    public IDelayedCall callLater(double secondsLater, Runnable runme) {
+	long nanosLater = (long) (secondsLater * 1e9);
+	IDelayedCall call;
+	synchronized(_timers) {
+	    call = _timers.schedule(System.nanoTime() + nanosLater, runme);
 	}
+	if (!isInLoopThread()) {
+	    wakeupLoop();
+	}
+	// This isn't actually an interestOps
+	interestOpsChanged();
+	return call;
+    }
+
+    /**
+     * Connect a client protocol factory to a server protocol factory in
+     * this JVM, with no socket in between.  Both protocols are given
+     * their transports on the next iteration of the loop, where all the
+     * data between them is delivered as well.
+     * @return The client's end of the connection.
+     */
+    public LoopbackTransport connectLoopback(ServerFactory sf,
+					     ClientFactory cf) {
+	final LoopbackTransport client = LoopbackTransport.pair(
+	    this, sf.buildServerProtocol("loopback"),
+	    cf.buildProtocol("loopback"));
+	callFromThread(new Runnable() {
+		public void run() {
+		    LoopbackTransport server = client.getPeer();
+		    Protocol.connect(server.getProtocol(), server, _pool);
+		    Protocol.connect(client.getProtocol(), client, _pool);
+		}
+	    });
+	return client;
     }
 
     /** Connect a client protocol factory to a remote SSL server.  */
     public IConnector connectSSL(String addr, int portno, SSLContext ctx,
 				 ClientFactory factory) throws Throwable {
-	return new SSLConnect(addr, portno, ctx, factory);
+	TCPConnect c = new SSLConnect(addr, portno, ctx, factory);
+	c.connect();
+	return c;
     }
 
     /** Connect a client protocol factory to a remote TCP server. */
     public IConnector connectTCP(String addr, int portno,
 				 ClientFactory factory) throws Throwable {
-	return new TCPConnect(addr, portno, factory);
+	TCPConnect c = new TCPConnect(addr, portno, factory);
+	c.connect();
+	return c;
+    }
+
+    /** Connect a client protocol factory to a server on a unix socket. */
+    public IConnector connectUNIX(Path path,
+				  ClientFactory factory) throws Throwable {
+	TCPConnect c = new TCPConnect(UnixDomainSocketAddress.of(path),
+				      factory);
+	c.connect();
+	return c;
     }
 
     /**
@@ -630,6 +1639,22 @@ public class Reactor {
 	iterate();
     }
 
+    /** Returns the pool connections borrow their buffers from. */
+    public BufferPool getBufferPool() { return _pool; }
+
+    /** Returns the number of child loops, zero if this is not a group. */
+    public int getLoopCount() { return _loops.length; }
+
+    /** Returns the number of connections currently pinned to this loop,
+     * or to all the loops of a group. */
+    public int getLoad() {
+	int load = _load.get();
+	for (Reactor r: _loops) {
+	    load += r._load.get();
+	}
+	return load;
+    }
+
     /**
      * Convienence method to get and instance of a Reactor.
      */
@@ -643,6 +1668,20 @@ public class Reactor {
 	return theReactor;
     }
 
+    /**
+     * Convienence method to get an instance of an event loop group.
+     * @param nloops The number of child loops.
+     */
+    public static Reactor get(int nloops) {
+	Reactor theReactor = null;
+	try {
+	    theReactor = new Reactor(nloops);
+	} catch (IOException ioe) {
+	    ioe.printStackTrace();
+	}
+	return theReactor;
+    }
+
     /**
      * Selectors were added or removed.
      *
@@ -664,6 +1703,130 @@ public class Reactor {
 	return new TCPPort(portno, factory);
     }
 
+    /** Connects a server protocol factory to a unix socket at the given
+     * path, which must not exist yet.  The path is removed again when the
+     * port stops listening. */
+    public IListeningPort listenUNIX(Path path,
+				     ServerFactory factory) throws Throwable {
+	return new TCPPort(UnixDomainSocketAddress.of(path), factory);
+    }
+
+    /** Use a different buffer pool for this reactor and its loops. */
+    public void setBufferPool(BufferPool pool) {
+	_pool = pool;
+	for (Reactor child: _loops) {
+	    child.setBufferPool(pool);
+	}
+    }
+
+    /** Returns the pool used by {@link #deferToThread}. */
+    public ThreadPool getThreadPool() { return _threadPool; }
+
+    /** Use a different worker pool for this reactor and its loops. */
+    public void setThreadPool(ThreadPool pool) {
+	_threadPool = pool;
+	for (Reactor child: _loops) {
+	    child.setThreadPool(pool);
+	}
+    }
+
+    /** Returns the number of TLS handshakes which negotiated a new
+     * session, here and in the loops of a group. */
+    public long getFullHandshakes() { return _fullHandshakes.get(); }
+
+    /** Returns the number of TLS handshakes which resumed a session. */
+    public long getResumedHandshakes() { return _resumedHandshakes.get(); }
+
+    /* Count a finished TLS handshake.  A session created before the
+     * handshake started, in milliseconds, was resumed rather than
+     * negotiated. */
+    void countHandshake(SSLSession session, long started) {
+	if (session.getCreationTime() < started) {
+	    _resumedHandshakes.incrementAndGet();
+	} else {
+	    _fullHandshakes.incrementAndGet();
+	}
+    }
+
+    /** Returns the pool which runs the delegated tasks of TLS handshakes. */
+    public ThreadPool getTLSTaskPool() { return _tlsTaskPool; }
+
+    /** Use a different pool for TLS handshake tasks, here and in the
+     * loops of a group. */
+    public void setTLSTaskPool(ThreadPool pool) {
+	_tlsTaskPool = pool;
+	for (Reactor child: _loops) {
+	    child.setTLSTaskPool(pool);
+	}
+    }
+
+    /** Returns the pool which encrypts and decrypts for connections whose
+     * factory asks for {@link ServerFactory#offloadCrypto}. */
+    public ThreadPool getCryptoPool() { return _cryptoPool; }
+
+    /** Use a different crypto pool, here and in the loops of a group. */
+    public void setCryptoPool(ThreadPool pool) {
+	_cryptoPool = pool;
+	for (Reactor child: _loops) {
+	    child.setCryptoPool(pool);
+	}
+    }
+
+    /** Change the most workers {@link #deferToThread} will use at once. */
+    public void suggestThreadPoolSize(int maxThreads) {
+	_threadPool.setMaxThreads(maxThreads);
+    }
+
+    /**
+     * Run blocking work on a worker thread, so that it does not stall
+     * every other connection of the loop.  The returned Deferred fires on
+     * the thread of the loop deferToThread was called from, with the
+     * result of the call or its exception as a Failure.  If the pool is
+     * full it fails at once with a RejectedExecutionException.
+     */
+    public <T> Deferred deferToThread(final Callable<T> work) {
+	final Deferred d = new Deferred();
+	final Reactor home = callingLoop();
+	boolean queued = _threadPool.callInThread(new Runnable() {
+		public void run() {
+		    try {
+			final T result = work.call();
+			home.callFromThread(new Runnable() {
+				public void run() {
+				    d.callback(result);
+				}
+			    });
+		    } catch (final Throwable t) {
+			home.callFromThread(new Runnable() {
+				public void run() {
+				    d.errback(new Deferred.Failure(t));
+				}
+			    });
+		    }
+		}
+	    });
+	if (!queued) {
+	    d.errback(new Deferred.Failure(
+		new RejectedExecutionException("Thread pool is full")));
+	}
+	return d;
+    }
+
+    /* Returns the loop of a group whose thread is calling, or this. */
+    private Reactor callingLoop() {
+	for (Reactor r: _loops) {
+	    if (r.isInLoopThread()) {
+		return r;
+	    }
+	}
+	return this;
+    }
+
+    /** Choose how accepted connections are spread over the loops. */
+    public void setLoopBalance(LoopBalance balance) {
+	_balance = balance;
+    }
+
     /** Convenience method to print to STDOUT. */
     public static void msg (String m) {
 	System.out.println(m);
@@ -673,24 +1836,54 @@ public class Reactor {
      * then run the main loop until it is stopped with stop().  */
     public void run() throws Throwable {
 	_running = true;
+	for (int i = 0; i < _loops.length; i++) {
+	    final Reactor child = _loops[i];
+	    Thread t = new Thread(new Runnable() {
+		    public void run() {
+			try {
+			    child.run();
+			} catch (Throwable t) {
+			    t.printStackTrace();
+			}
+		    }
+		}, "reactor-loop-" + i);
+	    t.setDaemon(true);
+	    t.start();
+	}
+
+	_thread = Thread.currentThread();
 	while (_running) {
 	    int selected;
+	    _wakenUp.set(false);
+	    runThreadCalls();
 	    long timeout = processTimedEvents();
+	    if (!_threadCalls.isEmpty()) {
+		timeout = 0;
+	    }
 
-	    if (timeout >= 0) {
+	    if (timeout > 0) {
 		_selector.select(timeout);
+	    } else if (timeout == 0) {
+		_selector.selectNow();
 	    } else {
 		_selector.select();
 	    }
 	    this.doIteration();
 	}
-	_connection.connectionLost(new Throwable("Shutdown"));
+	if (_connection != null)
+	    _connection.abortConnection(new Throwable("Shutdown"));
     }
 
     /** Fire 'shutdown' System Events, which will move the reactor to the
-     * 'stopped' state and cause reactor.run() to exit. */
+     * 'stopped' state and cause reactor.run() to exit. Stopping a group
+     * stops all of its loops. */
     public void stop() {
 	_running = false;
+	for (Reactor child: _loops) {
+	    child.stop();
+	    child.wakeup();
+	}
+	wakeup();
     }
 
     /** Called from other threads to cause this thread to process any
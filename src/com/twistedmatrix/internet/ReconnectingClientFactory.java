@@ -0,0 +1,158 @@
+package com.twistedmatrix.internet;
+
+import java.util.Random;
+
+/**
+ * A client factory which connects again whenever its connection fails or
+ * is lost.  The delay before each attempt grows by a factor after every
+ * failure, up to a maximum, and is spread at random by a fraction either
+ * way so that many clients of a restarted server do not all come back at
+ * once.  A connection which is made resets the delay.  Call
+ * {@link #stopTrying} before closing the connection on purpose.
+ */
+public abstract class ReconnectingClientFactory extends ClientFactory {
+    public static final double DEFAULT_INITIAL_DELAY = 0.1;
+    public static final double DEFAULT_FACTOR	     = 2.0;
+    public static final double DEFAULT_MAX_DELAY     = 30.0;
+    public static final double DEFAULT_JITTER	     = 0.2;
+
+    private Reactor	 _reactor;
+    private Random	 _random;
+    private double	 _initialDelay, _factor, _maxDelay, _jitter;
+    private int		 _maxRetries;
+    private int		 _retries;
+    private double	 _delay;
+    private boolean	 _stopped, _connecting, _gaveUp;
+    private IConnector	 _connector;
+    private IDelayedCall _pending;
+
+    public ReconnectingClientFactory(Reactor reactor) {
+	_reactor = reactor;
+	_random = new Random();
+	_initialDelay = DEFAULT_INITIAL_DELAY;
+	_factor = DEFAULT_FACTOR;
+	_maxDelay = DEFAULT_MAX_DELAY;
+	_jitter = DEFAULT_JITTER;
+	_delay = _initialDelay;
+    }
+
+    /** Seconds to wait before the first attempt after a connection is
+     * lost or fails. */
+    public void setInitialDelay(double seconds) {
+	_initialDelay = seconds;
+	this.resetDelay();
+    }
+
+    /** How much longer to wait after each failed attempt. */
+    public void setFactor(double factor) { _factor = factor; }
+
+    /** The longest to wait between attempts, in seconds. */
+    public void setMaxDelay(double seconds) { _maxDelay = seconds; }
+
+    /** Spread each delay at random by up to this fraction of it either
+     * way; zero waits exactly. */
+    public void setJitter(double fraction) { _jitter = fraction; }
+
+    /** Give up after this many attempts in a row have failed; zero, the
+     * default, never gives up. */
+    public void setMaxRetries(int retries) { _maxRetries = retries; }
+
+    /** Returns the number of attempts since the last connection made. */
+    public int getRetries() { return _retries; }
+
+    /** Returns the delay, before jitter, of the next attempt. */
+    public double getDelay() { return _delay; }
+
+    /** Returns the connector, once connecting has started. */
+    public IConnector getConnector() { return _connector; }
+
+    /** Wait the initial delay before the next attempt again. */
+    public void resetDelay() {
+	_delay = _initialDelay;
+	_retries = 0;
+    }
+
+    /** Connect no more: cancel a waiting attempt, and stop one which is
+     * under way.  A connection already made is left alone. */
+    public void stopTrying() {
+	if (_stopped) {
+	    return;
+	}
+	_stopped = true;
+	if (_pending != null && _pending.active()) {
+	    _pending.cancel();
+	    _pending = null;
+	    this.giveUp(new Throwable("Stopped trying"));
+	} else if (_connecting) {
+	    _connecting = false;
+	    _connector.stopConnecting();
+	    this.giveUp(new Throwable("Stopped trying"));
+	}
+    }
+
+    /** Returns true once {@link #stopTrying} has been called or the retries
+     * have run out. */
+    public boolean isStopped() { return _stopped; }
+
+    /** Called once no attempt will follow: after {@link #stopTrying},
+     * as soon as no connection is up, or when the retries run out.  By
+     * default it does nothing.
+     * @param reason Why the last attempt ended.
+     */
+    protected void gaveUp(Throwable reason) { }
+
+    private void giveUp(Throwable reason) {
+	if (!_gaveUp) {
+	    _gaveUp = true;
+	    this.gaveUp(reason);
+	}
+    }
+
+    @Override public void startedConnecting(IConnector connector) {
+	_connector = connector;
+	_connecting = true;
+    }
+
+    @Override public void clientConnectionMade(IConnector connector,
+					       IProtocol protocol) {
+	_connecting = false;
+	this.resetDelay();
+    }
+
+    @Override public void clientConnectionLost(IConnector connector,
+					       Throwable reason) {
+	this.retry(connector, reason);
+    }
+
+    public void clientConnectionFailed(IConnector connector,
+				       Throwable reason) {
+	this.retry(connector, reason);
+    }
+
+    /** Connect again after the current delay, unless stopped. */
+    protected void retry(final IConnector connector, Throwable reason) {
+	_connecting = false;
+	if (_stopped) {
+	    this.giveUp(reason);
+	    return;
+	}
+	_retries++;
+	if (_maxRetries > 0 && _retries > _maxRetries) {
+	    _stopped = true;
+	    this.giveUp(reason);
+	    return;
+	}
+	double delay = _delay * (1 + _jitter * (2 * _random.nextDouble() - 1));
+	_delay = Math.min(_delay * _factor, _maxDelay);
+	_pending = _reactor.callLater(delay, new Runnable() {
+		public void run() {
+		    _pending = null;
+		    try {
+			connector.connect();
+		    } catch (Throwable t) {
+			retry(connector, t);
+		    }
+		}
+	    });
+    }
+}
@@ -1,15 +1,54 @@
 package com.twistedmatrix.internet;
 
-/** A Protocol factory for servers. */
+/**
+ * A Protocol factory for servers.  On an event loop group, each loop
+ * builds the protocols of the connections handed to it and reports their
+ * loss, so {@link #buildProtocol} and {@link #connectionLost} may be
+ * called from several loop threads at once; a factory which keeps state
+ * across connections must make it thread-safe.
+ */
 public abstract class ServerFactory implements IFactory {
+    private ProtocolLimits limits;
+
+    /** Bound what each client may make its protocol hold in memory; a
+     * client going over is disconnected.  Null, the default, is
+     * unlimited.  The limits are given to each protocol built after. */
+    public void setLimits(ProtocolLimits limits) { this.limits = limits; }
+
+    /** Returns the limits given to each protocol, or null. */
+    public ProtocolLimits getLimits() { return this.limits; }
+
+    /* Build the protocol of a new client, with the limits applied. */
+    IProtocol buildServerProtocol(Object addr) {
+	IProtocol p = this.buildProtocol(addr);
+	if (this.limits != null && p instanceof Protocol) {
+	    ((Protocol) p).setLimits(this.limits);
+	}
+	return p;
+    }
 
     /** If using SSL, optionally define the cipher suites. */
     public String[] getEnabledCipherSuites() { return new String[] {}; }
 
+    /** If using SSL, return true to encrypt and decrypt on the reactor's
+     * crypto pool instead of its own thread.  Worth it for connections
+     * moving a lot of data; the protocol is still only called by the
+     * reactor thread, and data stays in order. */
+    public boolean offloadCrypto() { return false; }
+
+    /** If using SSL, how many sessions to keep for clients to resume,
+     * or -1 to leave the SSLContext's setting alone. */
+    public int getSessionCacheSize() { return -1; }
+
+    /** If using SSL, how many seconds a session, or a session ticket, may
+     * be resumed for, or -1 to leave the SSLContext's setting alone. */
+    public int getSessionTimeout() { return -1; }
+
     /** Called when the server starts listening. */
     public abstract void startedListening(IListeningPort connector);
 
-    /** Called when the connection to a client is lost. */
+    /** Called when the connection to a client is lost, by the thread of
+     * the loop the connection belonged to. */
     public abstract void connectionLost(IListeningPort connector,
 					Throwable reason);
 }
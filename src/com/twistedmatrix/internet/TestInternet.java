@@ -1,6 +1,24 @@
 
 package com.twistedmatrix.internet;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -48,9 +66,1238 @@ public class TestInternet extends TestCase {
         }
     }
 
+    public static class BufferPoolTest extends TestCase {
+        /**
+         * Verify that a released buffer is handed out again for any request
+         * of the same size class, cleared and of the right kind.
+         */
+        public void testReuse() {
+            BufferPool pool = new BufferPool(4, 4, true);
+            ByteBuffer b = pool.allocate(1000);
+            assertEquals(1024, b.capacity());
+            assertFalse(b.isDirect());
+            b.put((byte) 1);
+            pool.release(b);
+            ByteBuffer again = pool.allocate(600);
+            assertSame(b, again);
+            assertEquals(0, again.position());
+            assertEquals(1024, again.limit());
+            ByteBuffer direct = pool.allocateDirect(600);
+            assertNotSame(b, direct);
+            assertTrue(direct.isDirect());
+        }
+
+        /**
+         * Verify that buffers go back to the shared arena when there are no
+         * thread caches, and that oversized buffers are never kept.
+         */
+        public void testArenaAndOversize() {
+            BufferPool pool = new BufferPool(1, 0, false);
+            ByteBuffer a = pool.allocateDirect(BufferPool.MIN_SIZE);
+            ByteBuffer b = pool.allocateDirect(BufferPool.MIN_SIZE);
+            pool.release(a);
+            pool.release(b);
+            assertSame(a, pool.allocateDirect(1));
+            assertNotSame(b, pool.allocateDirect(1));
+
+            ByteBuffer big = pool.allocate(BufferPool.MAX_SIZE + 1);
+            assertEquals(BufferPool.MAX_SIZE + 1, big.capacity());
+            pool.release(big);
+            assertNotSame(big, pool.allocate(BufferPool.MAX_SIZE + 1));
+        }
+    }
+
+    public static class TimerWheelTest extends TestCase {
+        static final long TICK = 1000;
+
+        static class Counter implements Runnable {
+            int count = 0;
+            public void run() { count++; }
+        }
+
+        /* Advance the wheel and run whatever came due. */
+        private int advance(TimerWheel wheel, long now) {
+            List<TimerWheel.DelayedCall> expired =
+                new ArrayList<TimerWheel.DelayedCall>();
+            wheel.advance(now, expired);
+            for (TimerWheel.DelayedCall c: expired) {
+                c.run();
+            }
+            return expired.size();
+        }
+
+        /**
+         * Verify that calls scheduled for the same time all run, and none
+         * of them before that time.
+         */
+        public void testSameTick() {
+            TimerWheel wheel = new TimerWheel(TICK, 0);
+            Counter c = new Counter();
+            IDelayedCall a = wheel.schedule(5 * TICK, c);
+            IDelayedCall b = wheel.schedule(5 * TICK, c);
+            advance(wheel, 5 * TICK - 1);
+            assertEquals(0, c.count);
+            assertEquals(5 * TICK, wheel.nextExpiry());
+            advance(wheel, 5 * TICK);
+            assertEquals(2, c.count);
+            assertFalse(a.active());
+            assertFalse(b.active());
+            assertEquals(0, wheel.size());
+            assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+        }
+
+        /**
+         * Verify that cancelled calls never run and that a call may not be
+         * cancelled twice, or after it has run.
+         */
+        public void testCancel() {
+            TimerWheel wheel = new TimerWheel(TICK, 0);
+            Counter c = new Counter();
+            IDelayedCall a = wheel.schedule(3 * TICK, c);
+            IDelayedCall b = wheel.schedule(100000 * TICK, c);
+            a.cancel();
+            b.cancel();
+            assertEquals(0, wheel.size());
+            advance(wheel, 200000 * TICK);
+            assertEquals(0, c.count);
+            try {
+                a.cancel();
+                fail("cancelled twice");
+            } catch (Error e) {
+            }
+        }
+
+        /**
+         * Verify that a delayed call runs at its new time, including when
+         * it is delayed after the wheel has taken it off but before it ran.
+         */
+        public void testDelay() {
+            TimerWheel wheel = new TimerWheel(TICK, 0);
+            Counter c = new Counter();
+            IDelayedCall a = wheel.schedule(2 * TICK, c);
+            a.delay(3 * TICK / 1e9);
+            assertEquals(0, advance(wheel, 4 * TICK));
+            assertEquals(1, advance(wheel, 5 * TICK));
+            assertEquals(1, c.count);
+
+            IDelayedCall b = wheel.schedule(6 * TICK, c);
+            List<TimerWheel.DelayedCall> expired =
+                new ArrayList<TimerWheel.DelayedCall>();
+            wheel.advance(6 * TICK, expired);
+            b.delay(TICK / 1e9);
+            expired.get(0).run();
+            assertEquals(1, c.count);
+            assertTrue(b.active());
+            advance(wheel, 7 * TICK);
+            assertEquals(2, c.count);
+        }
+
+        /**
+         * Verify that many calls spread over all the wheels each run
+         * exactly once, and never early.
+         */
+        public void testCascade() {
+            final TimerWheel wheel = new TimerWheel(TICK, 0);
+            final long[] now = new long[1];
+            final int[] ran = new int[1];
+            Random random = new Random(7);
+            for (int i = 0; i < 5000; i++) {
+                final long deadline = (long) random.nextInt(1 << 26) * 7;
+                wheel.schedule(deadline, new Runnable() {
+                        public void run() {
+                            assertTrue(deadline <= now[0]);
+                            assertTrue(deadline > now[0] - TICK * 300);
+                            ran[0]++;
+                        }
+                    });
+            }
+            while (wheel.size() > 0) {
+                now[0] += TICK * 300;
+                assertTrue(wheel.nextExpiry() >= now[0] - TICK * 300);
+                advance(wheel, now[0]);
+            }
+            assertEquals(5000, ran[0]);
+        }
+    }
+
+    public static class CallFromThreadTest extends TestCase {
+        /**
+         * Verify that elements offered by several threads all come out of
+         * the queue, each thread's in the order it offered them.
+         */
+        public void testQueue() throws Exception {
+            final MpscQueue<int[]> q = new MpscQueue<int[]>();
+            Thread[] producers = new Thread[4];
+            for (int i = 0; i < producers.length; i++) {
+                final int id = i;
+                producers[i] = new Thread() {
+                        public void run() {
+                            for (int n = 0; n < 20000; n++) {
+                                q.offer(new int[] { id, n });
+                            }
+                        }
+                    };
+                producers[i].start();
+            }
+            int[] last = new int[] { -1, -1, -1, -1 };
+            int seen = 0;
+            while (seen < 80000) {
+                int[] e = q.poll();
+                if (e == null) {
+                    Thread.yield();
+                    continue;
+                }
+                assertEquals(last[e[0]] + 1, e[1]);
+                last[e[0]] = e[1];
+                seen++;
+            }
+            for (Thread t: producers) {
+                t.join();
+            }
+            assertNull(q.poll());
+            assertTrue(q.isEmpty());
+        }
+
+        /**
+         * Verify that calls made from other threads all run, on the thread
+         * of the reactor, while it is blocked with nothing else to do.
+         */
+        public void testCallFromThread() throws Throwable {
+            final Reactor reactor = new Reactor();
+            final int[] count = new int[1];
+            final boolean[] elsewhere = new boolean[1];
+            Thread loop = new Thread() {
+                    public void run() {
+                        try {
+                            reactor.run();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        }
+                    }
+                };
+            loop.start();
+
+            final Runnable increment = new Runnable() {
+                    public void run() {
+                        if (!reactor.isInLoopThread()) {
+                            elsewhere[0] = true;
+                        }
+                        count[0]++;
+                    }
+                };
+            Thread[] callers = new Thread[4];
+            for (int i = 0; i < callers.length; i++) {
+                callers[i] = new Thread() {
+                        public void run() {
+                            for (int n = 0; n < 10000; n++) {
+                                reactor.callFromThread(increment);
+                            }
+                        }
+                    };
+                callers[i].start();
+            }
+            for (Thread t: callers) {
+                t.join();
+            }
+            reactor.callFromThread(new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            loop.join(10000);
+            assertFalse(loop.isAlive());
+            assertEquals(40000, count[0]);
+            assertFalse(elsewhere[0]);
+        }
+    }
+
+    public static class DeferToThreadTest extends TestCase {
+        /**
+         * Verify that results and exceptions of work done on a worker are
+         * delivered on the thread of the reactor.
+         */
+        public void testResults() throws Throwable {
+            final Reactor reactor = new Reactor();
+            final List<Object> results = new ArrayList<Object>();
+            final boolean[] elsewhere = new boolean[1];
+
+            Deferred d = reactor.deferToThread(new Callable<String>() {
+                    public String call() {
+                        return Thread.currentThread().getName();
+                    }
+                });
+            d.addCallback(new Deferred.Callback() {
+                    public Object callback(Object o) {
+                        elsewhere[0] |= !reactor.isInLoopThread();
+                        results.add(o);
+                        return null;
+                    }
+                });
+            Deferred e = reactor.deferToThread(new Callable<String>() {
+                    public String call() throws Exception {
+                        throw new IOException("database down");
+                    }
+                });
+            e.addErrback(new Deferred.Callback<Deferred.Failure>() {
+                    public Object callback(Deferred.Failure f) {
+                        elsewhere[0] |= !reactor.isInLoopThread();
+                        results.add(f.get());
+                        reactor.stop();
+                        return null;
+                    }
+                });
+            reactor.run();
+
+            assertFalse(elsewhere[0]);
+            assertEquals(2, results.size());
+            assertTrue(((String) results.get(0)).startsWith("reactor-worker"));
+            assertTrue(results.get(1) instanceof IOException);
+        }
+
+        /**
+         * Verify that a full pool reports its workers and queue, and
+         * refuses further work.
+         */
+        public void testSaturation() throws Exception {
+            ThreadPool pool = new ThreadPool(1, 1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Runnable block = new Runnable() {
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ie) {
+                        }
+                    }
+                };
+            assertTrue(pool.callInThread(block));
+            assertTrue(pool.callInThread(block));
+            while (pool.getActiveWorkers() == 0) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, pool.getQueueDepth());
+            assertFalse(pool.callInThread(block));
+            assertEquals(1, pool.getRejectedCalls());
+            release.countDown();
+            while (pool.getCompletedCalls() < 2) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, pool.getQueueDepth());
+            pool.stop();
+            assertFalse(pool.callInThread(block));
+        }
+    }
+
+    public static class UnixSocketTest extends TestCase {
+        /**
+         * Verify that a client and server talk over a unix socket just as
+         * over tcp, and that the socket file goes away with the port.
+         */
+        public void testEcho() throws Throwable {
+            final Reactor reactor = new Reactor();
+            final Path path = Files.createTempDirectory("amp").resolve("sock");
+            final List<String> received = new ArrayList<String>();
+
+            final IListeningPort port = reactor.listenUNIX(path, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void dataReceived(byte[] data) {
+                                transport().write(data);
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            assertNull(port.getHost());
+            assertTrue(Files.exists(path));
+
+            IConnector c = reactor.connectUNIX(path, new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                transport().write("hello".getBytes());
+                            }
+                            public void dataReceived(byte[] data) {
+                                received.add(new String(data));
+                                transport().loseConnection(new Throwable("Done"));
+                                port.loseConnection(new Throwable("Done"));
+                                reactor.stop();
+                            }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            assertNull(c.getDestination());
+            reactor.run();
+
+            assertEquals(1, received.size());
+            assertEquals("hello", received.get(0));
+            assertFalse(Files.exists(path));
+            Files.delete(path.getParent());
+        }
+
+        /**
+         * Verify that connecting to a missing socket is reported to the
+         * factory from the loop rather than thrown.
+         */
+        public void testMissing() throws Throwable {
+            final Reactor reactor = new Reactor();
+            Path path = Files.createTempDirectory("amp").resolve("none");
+            final List<Throwable> failures = new ArrayList<Throwable>();
+
+            reactor.connectUNIX(path, new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void dataReceived(byte[] data) { }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        failures.add(r);
+                        reactor.stop();
+                    }
+                });
+            assertEquals(0, failures.size());
+            reactor.run();
+
+            assertEquals(1, failures.size());
+            assertTrue(failures.get(0) instanceof IOException);
+            Files.delete(path.getParent());
+        }
+    }
+
+    public static class WriteTest extends TestCase {
+        static final int TOTAL = 8 * 1024 * 1024;
+
+        /**
+         * Verify that a writeSequence of many buffers of odd sizes, far
+         * more than the socket will take at once, arrives whole and in
+         * order.
+         */
+        public void testLargeWriteSequence() throws Throwable {
+            final Reactor reactor = new Reactor();
+            final long[] got = new long[2]; // bytes, first bad offset + 1
+
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                Random r = new Random(3);
+                                List<byte[]> chunks = new ArrayList<byte[]>();
+                                int at = 0;
+                                while (at < TOTAL) {
+                                    byte[] b = new byte[Math.min(
+                                        1 + r.nextInt(65536), TOTAL - at)];
+                                    for (int i = 0; i < b.length; i++) {
+                                        b[i] = (byte) ((at + i) % 251);
+                                    }
+                                    at += b.length;
+                                    chunks.add(b);
+                                }
+                                transport().writeSequence(chunks);
+                                transport().loseConnection(new Throwable("Sent"));
+                            }
+                            public void dataReceived(byte[] data) { }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void dataReceived(byte[] data) {
+                                for (int i = 0; i < data.length; i++) {
+                                    if (got[1] == 0 &&
+                                        data[i] != (byte) ((got[0] + i) % 251)) {
+                                        got[1] = got[0] + i + 1;
+                                    }
+                                }
+                                got[0] += data.length;
+                            }
+                        };
+                    }
+                    public void clientConnectionLost(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            reactor.callLater(20, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(0, got[1]);
+            assertEquals(TOTAL, got[0]);
+        }
+    }
+
+    public static class LoopGroupTest extends TestCase {
+        /* Echoes, records which loop it ran on, and closes the connection
+         * itself when asked to say goodbye. */
+        static class LoopRecorder extends Protocol {
+            final List<String> loops;
+            LoopRecorder(List<String> loops) {
+                this.loops = loops;
+            }
+            public void connectionMade() {
+                synchronized (loops) {
+                    loops.add(Thread.currentThread().getName());
+                }
+            }
+            public void dataReceived(byte[] data) {
+                transport().write(data);
+                if ("bye".equals(new String(data))) {
+                    transport().loseConnection(new Throwable("Bye"));
+                }
+            }
+        }
+
+        /* A client which sends one message, and once it is echoed adds
+         * its transport to the list and runs the given callback. */
+        static ClientFactory sender(final String message,
+                                    final List<ITransport> echoed,
+                                    final Runnable then, final Runnable lost) {
+            return new ClientFactory() {
+                public IProtocol buildProtocol(Object addr) {
+                    return new Protocol() {
+                        public void connectionMade() {
+                            transport().write(message.getBytes());
+                        }
+                        public void dataReceived(byte[] data) {
+                            echoed.add(transport());
+                            then.run();
+                        }
+                    };
+                }
+                public void clientConnectionLost(IConnector c, Throwable r) {
+                    lost.run();
+                }
+                public void clientConnectionFailed(IConnector c, Throwable r) {
+                    lost.run();
+                }
+            };
+        }
+
+        /**
+         * Verify that a group spreads accepted connections over its loops
+         * in turn, that the port knows its connections while they last,
+         * and that every connection, however it was closed, is gone from
+         * the port and from the load of its loop.
+         */
+        public void testRoundRobin() throws Throwable {
+            final Reactor reactor = new Reactor(2);
+            final List<String> loops = new ArrayList<String>();
+            final AtomicInteger serverLost = new AtomicInteger();
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new LoopRecorder(loops);
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) {
+                        if (serverLost.incrementAndGet() == 4) {
+                            reactor.callFromThread(new Runnable() {
+                                    public void run() {
+                                        reactor.stop();
+                                    }
+                                });
+                        }
+                    }
+                });
+            final List<ITransport> echoed = new ArrayList<ITransport>();
+            final int[] seen = new int[2];
+            Runnable all = new Runnable() {
+                    public void run() {
+                        if (echoed.size() != 4) {
+                            return;
+                        }
+                        seen[0] = port.getConnections().size();
+                        seen[1] = reactor.getLoad();
+                        // Two clients close; the server closes the others.
+                        echoed.get(0).loseConnection(new Throwable("Done"));
+                        echoed.get(1).loseConnection(new Throwable("Done"));
+                        echoed.get(2).write("bye".getBytes());
+                        echoed.get(3).write("bye".getBytes());
+                    }
+                };
+            Runnable nothing = new Runnable() {
+                    public void run() { }
+                };
+            for (int i = 0; i < 4; i++) {
+                reactor.connectTCP("127.0.0.1", port.getHost().getPort(),
+                                   sender("hi", echoed, all, nothing));
+            }
+            reactor.callLater(10, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(2, reactor.getLoopCount());
+            assertEquals(4, seen[0]);
+            assertEquals(4, seen[1]);
+            assertEquals(4, serverLost.get());
+            assertEquals(0, port.getConnections().size());
+            assertEquals(0, reactor.getLoad());
+            assertEquals(4, loops.size());
+            for (int i = 0; i < 2; i++) {
+                int on = 0;
+                for (String name: loops) {
+                    if (name.equals("reactor-loop-" + i)) {
+                        on++;
+                    }
+                }
+                assertEquals(2, on);
+            }
+        }
+
+        /**
+         * Verify that the least loaded loop gets the next connection, so
+         * that connections made one after the other, each closed by the
+         * server before the next, all land on the first loop.
+         */
+        public void testLeastLoaded() throws Throwable {
+            final Reactor reactor = new Reactor(3);
+            reactor.setLoopBalance(Reactor.LoopBalance.LEAST_LOADED);
+            final List<String> loops = new ArrayList<String>();
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new LoopRecorder(loops);
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final int portno = port.getHost().getPort();
+            final int[] made = new int[1];
+            final List<ITransport> echoed = new ArrayList<ITransport>();
+            final Runnable nothing = new Runnable() {
+                    public void run() { }
+                };
+            final Runnable next = new Runnable() {
+                    public void run() {
+                        // Wait for the server's side to be gone as well.
+                        if (port.getConnections().size() > 0) {
+                            reactor.callLater(0.01, this);
+                            return;
+                        }
+                        if (made[0]++ == 3) {
+                            reactor.stop();
+                            return;
+                        }
+                        try {
+                            reactor.connectTCP("127.0.0.1", portno,
+                                               sender("bye", echoed, nothing, this));
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            reactor.stop();
+                        }
+                    }
+                };
+            reactor.callLater(0, next);
+            reactor.callLater(10, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(4, made[0]);
+            assertEquals(3, loops.size());
+            for (String name: loops) {
+                assertEquals("reactor-loop-0", name);
+            }
+            assertEquals(0, reactor.getLoad());
+        }
+    }
+
+    public static class TLSTest extends TestCase {
+        static final int PAYLOAD = 256 * 1024;
+
+        /* The example keystore: alias importkey, password "password". */
+        static KeyStore keyStore() throws Exception {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            FileInputStream in = new FileInputStream("examples/localhost.ks");
+            try {
+                ks.load(in, "importkey".toCharArray());
+            } finally {
+                in.close();
+            }
+            return ks;
+        }
+
+        static SSLContext serverContext() throws Exception {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            kmf.init(keyStore(), "password".toCharArray());
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            return ctx;
+        }
+
+        static SSLContext clientContext() throws Exception {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore());
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, tmf.getTrustManagers(), null);
+            return ctx;
+        }
+
+        /**
+         * Verify that a TLS client gets its echo back, that a second
+         * connection resumes the first one's session, and that closing
+         * right after a large write still delivers all of it, with
+         * close_notify, before the channel is closed.
+         */
+        public void testEchoAndResume() throws Throwable {
+            final Reactor reactor = new Reactor();
+            final List<Integer> serverGot = new ArrayList<Integer>();
+            final List<String> echoed = new ArrayList<String>();
+            final List<String> reasons = new ArrayList<String>();
+            final SSLContext cctx = clientContext();
+            final Runnable finish = new Runnable() {
+                    public void run() {
+                        if (serverGot.size() == 2 && reasons.size() == 2) {
+                            reactor.stop();
+                        }
+                    }
+                };
+
+            final IListeningPort port = reactor.listenSSL(0, serverContext(), new ServerFactory() {
+                    int built = 0;
+                    public IProtocol buildProtocol(Object addr) {
+                        final boolean echo = built++ == 0;
+                        return new Protocol() {
+                            int got = 0;
+                            public void dataReceived(byte[] data) {
+                                got += data.length;
+                                if (echo) {
+                                    transport().write(data);
+                                }
+                            }
+                            public void connectionLost(Throwable reason) {
+                                serverGot.add(got);
+                                finish.run();
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final int portno = port.getHost().getPort();
+
+            final ClientFactory second = new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                List<byte[]> chunks = new ArrayList<byte[]>();
+                                for (int i = 0; i < PAYLOAD / 4096; i++) {
+                                    chunks.add(new byte[4096]);
+                                }
+                                transport().writeSequence(chunks);
+                                transport().loseConnection(new Throwable("Sent"));
+                            }
+                            public void dataReceived(byte[] data) { }
+                            public void connectionLost(Throwable reason) {
+                                reasons.add(reason.getMessage());
+                                finish.run();
+                            }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                };
+            reactor.connectSSL("127.0.0.1", portno, cctx, new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            StringBuilder got = new StringBuilder();
+                            public void connectionMade() {
+                                transport().write("hello".getBytes());
+                            }
+                            public void dataReceived(byte[] data) {
+                                got.append(new String(data));
+                                if (got.length() == 5) {
+                                    echoed.add(got.toString());
+                                    transport().loseConnection(new Throwable("Echoed"));
+                                }
+                            }
+                            public void connectionLost(Throwable reason) {
+                                reasons.add(reason.getMessage());
+                                finish.run();
+                            }
+                        };
+                    }
+                    public void clientConnectionLost(IConnector c, Throwable r) {
+                        try {
+                            reactor.connectSSL("127.0.0.1", portno, cctx, second);
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            reactor.stop();
+                        }
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            reactor.callLater(10, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(1, echoed.size());
+            assertEquals("hello", echoed.get(0));
+            assertEquals(2, reasons.size());
+            assertEquals("Echoed", reasons.get(0));
+            assertEquals("Sent", reasons.get(1));
+            assertEquals(2, serverGot.size());
+            assertEquals(5, (int) serverGot.get(0));
+            assertEquals(PAYLOAD, (int) serverGot.get(1));
+            // Both ends count; a TLS 1.3 server may not see the resumption.
+            assertEquals(4, reactor.getFullHandshakes() +
+                         reactor.getResumedHandshakes());
+            assertTrue(reactor.getResumedHandshakes() >= 1);
+        }
+
+        /**
+         * Verify that with crypto offloaded to the pool, data is echoed
+         * whole and in order, and that closing while a crypto turn is
+         * still waiting for a worker delivers what was written first.
+         */
+        public void testOffloadedEchoAndClose() throws Throwable {
+            final Reactor reactor = new Reactor();
+            reactor.setCryptoPool(new ThreadPool("tls-crypto", 1, 10000));
+            final CountDownLatch held = new CountDownLatch(1);
+            final byte[] sent = new byte[PAYLOAD];
+            new Random(4).nextBytes(sent);
+            final byte[] echoed = new byte[PAYLOAD];
+            final int[] serverGot = new int[1];
+            final int[] waiting = new int[1];
+            final List<String> reasons = new ArrayList<String>();
+            final Runnable finish = new Runnable() {
+                    public void run() {
+                        if (reasons.size() == 2) {
+                            reactor.stop();
+                        }
+                    }
+                };
+
+            final IListeningPort port = reactor.listenSSL(0, serverContext(), new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void dataReceived(byte[] data) {
+                                if (serverGot[0] < PAYLOAD) {
+                                    transport().write(data);
+                                }
+                                serverGot[0] += data.length;
+                            }
+                            public void connectionLost(Throwable reason) {
+                                reasons.add("server");
+                                finish.run();
+                            }
+                        };
+                    }
+                    public boolean offloadCrypto() { return true; }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            reactor.connectSSL("127.0.0.1", port.getHost().getPort(), clientContext(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            int got = 0;
+                            public void connectionMade() {
+                                transport().write(sent);
+                            }
+                            public void dataReceived(byte[] data) {
+                                System.arraycopy(data, 0, echoed, got,
+                                                 data.length);
+                                got += data.length;
+                                if (got < PAYLOAD) {
+                                    return;
+                                }
+                                // Hold the only worker, so that the turn
+                                // which encrypts the last write waits.
+                                reactor.getCryptoPool().callInThread(new Runnable() {
+                                        public void run() {
+                                            try {
+                                                held.await();
+                                            } catch (InterruptedException e) { }
+                                        }
+                                    });
+                                transport().write(new byte[4096]);
+                                transport().loseConnection(new Throwable("Sent"));
+                                waiting[0] = reactor.getCryptoPool().getQueueDepth();
+                                reactor.callLater(0.1, new Runnable() {
+                                        public void run() {
+                                            held.countDown();
+                                        }
+                                    });
+                            }
+                            public void connectionLost(Throwable reason) {
+                                reasons.add(reason.getMessage());
+                                finish.run();
+                            }
+                        };
+                    }
+                    public boolean offloadCrypto() { return true; }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            reactor.callLater(10, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+            reactor.run();
+            held.countDown();
+            port.loseConnection(new Throwable("Done"));
+
+            assertTrue(Arrays.equals(sent, echoed));
+            assertTrue(waiting[0] >= 1);
+            assertEquals(2, reasons.size());
+            assertTrue(reasons.contains("Sent"));
+            assertEquals(PAYLOAD + 4096, serverGot[0]);
+        }
+    }
+
+    public static class BlockingReactorTest extends TestCase {
+        BlockingReactor reactor;
+
+        /* Stops the reactor once it has been called for every event. */
+        static Runnable countdown(final Reactor reactor, int events) {
+            final AtomicInteger left = new AtomicInteger(events);
+            return new Runnable() {
+                    public void run() {
+                        if (left.decrementAndGet() == 0) {
+                            reactor.stop();
+                        }
+                    }
+                };
+        }
+
+        void stopLater(double seconds) {
+            reactor.callLater(seconds, new Runnable() {
+                    public void run() {
+                        reactor.stop();
+                    }
+                });
+        }
+
+        /**
+         * Verify that a TLS client gets its echo, and that closing right
+         * after a large write still delivers all of it, with the reason
+         * given to loseConnection.
+         */
+        public void testSSL() throws Throwable {
+            reactor = new BlockingReactor();
+            final Runnable finish = countdown(reactor, 2);
+            final List<Integer> serverGot = Collections.synchronizedList(new ArrayList<Integer>());
+            final List<String> reasons = Collections.synchronizedList(new ArrayList<String>());
+
+            final IListeningPort port = reactor.listenSSL(0, TLSTest.serverContext(), new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            int got = 0;
+                            public void dataReceived(byte[] data) {
+                                if (got == 0) {
+                                    transport().write(data);
+                                }
+                                got += data.length;
+                            }
+                            public void connectionLost(Throwable reason) {
+                                serverGot.add(got);
+                                finish.run();
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            reactor.connectSSL("127.0.0.1", port.getHost().getPort(), TLSTest.clientContext(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                transport().write("hello".getBytes());
+                            }
+                            public void dataReceived(byte[] data) {
+                                List<byte[]> chunks = new ArrayList<byte[]>();
+                                for (int i = 0; i < TLSTest.PAYLOAD / 4096; i++) {
+                                    chunks.add(new byte[4096]);
+                                }
+                                transport().writeSequence(chunks);
+                                transport().loseConnection(new Throwable("Sent"));
+                            }
+                            public void connectionLost(Throwable reason) {
+                                reasons.add(reason.getMessage());
+                                finish.run();
+                            }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            stopLater(10);
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(Arrays.asList(new String[] { "Sent" }), reasons);
+            assertEquals(Arrays.asList(new Integer[] { 5 + TLSTest.PAYLOAD }), serverGot);
+            assertEquals(2, reactor.getFullHandshakes() +
+                         reactor.getResumedHandshakes());
+        }
+
+        /**
+         * Verify that a blocking client and server talk over a unix
+         * socket, and that the socket file goes away with the port.
+         */
+        public void testUnix() throws Throwable {
+            reactor = new BlockingReactor();
+            final Path path = Files.createTempDirectory("amp").resolve("sock");
+            final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+            final IListeningPort port = reactor.listenUNIX(path, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void dataReceived(byte[] data) {
+                                transport().write(data);
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            assertNull(port.getHost());
+            assertTrue(Files.exists(path));
+
+            IConnector c = reactor.connectUNIX(path, new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                transport().write("hello".getBytes());
+                            }
+                            public void dataReceived(byte[] data) {
+                                received.add(new String(data));
+                                transport().loseConnection(new Throwable("Done"));
+                                reactor.stop();
+                            }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            assertNull(c.getDestination());
+            stopLater(10);
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(Arrays.asList(new String[] { "hello" }), received);
+            assertFalse(Files.exists(path));
+            Files.delete(path.getParent());
+        }
+
+        /**
+         * Verify that timed calls, calls from threads and the results of
+         * deferToThread, scheduled from the thread of a connection, wait
+         * for the protocol call in progress rather than racing with it.
+         */
+        public void testCallsTakeTurns() throws Throwable {
+            reactor = new BlockingReactor();
+            final Runnable finish = countdown(reactor, 3);
+            final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+            final AtomicInteger busy = new AtomicInteger();
+
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            Runnable record(final String name) {
+                                return new Runnable() {
+                                        public void run() {
+                                            events.add(name + " " + busy.get());
+                                            finish.run();
+                                        }
+                                    };
+                            }
+                            public void dataReceived(byte[] data) {
+                                busy.incrementAndGet();
+                                reactor.callLater(0, record("later"));
+                                reactor.callFromThread(record("fromThread"));
+                                reactor.deferToThread(new Callable<String>() {
+                                        public String call() {
+                                            return "deferred";
+                                        }
+                                    }).addCallback(new Deferred.Callback<String>() {
+                                            public Object callback(String name) {
+                                                record(name).run();
+                                                return null;
+                                            }
+                                        });
+                                try {
+                                    Thread.sleep(300);
+                                } catch (InterruptedException ie) { }
+                                busy.decrementAndGet();
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            final IConnector c = reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                transport().write("go".getBytes());
+                            }
+                            public void dataReceived(byte[] data) { }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            stopLater(10);
+            reactor.run();
+            c.loseConnection(new Throwable("Done"));
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(3, events.size());
+            assertTrue(events.contains("later 0"));
+            assertTrue(events.contains("fromThread 0"));
+            assertTrue(events.contains("deferred 0"));
+        }
+
+        /**
+         * Verify that an idle connection is reported to its protocol,
+         * which may write from there, rather than closed.
+         */
+        public void testIdleTimeout() throws Throwable {
+            reactor = new BlockingReactor();
+            final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void dataReceived(byte[] data) {
+                                transport().write(data);
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                transport().setIdleTimeouts(0.1, 0);
+                            }
+                            public void connectionIdle(boolean reading) {
+                                events.add("idle " + reading);
+                                if (events.size() == 1) {
+                                    transport().write("ping".getBytes());
+                                } else {
+                                    transport().loseConnection(new Throwable("Done"));
+                                }
+                            }
+                            public void dataReceived(byte[] data) {
+                                events.add(new String(data));
+                            }
+                            public void connectionLost(Throwable reason) {
+                                events.add(reason.getMessage());
+                                reactor.stop();
+                            }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            stopLater(10);
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertEquals(Arrays.asList(new String[] {
+                        "idle true", "ping", "idle true", "Done" }), events);
+        }
+
+        /**
+         * Verify that a connection paused while reading waits for
+         * resumeProducing before it reads what has arrived.
+         */
+        public void testPauseAndResume() throws Throwable {
+            reactor = new BlockingReactor();
+            final long[] times = new long[2];
+
+            final IListeningPort port = reactor.listenTCP(0, new ServerFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                final ITransport t = transport();
+                                t.pauseProducing();
+                                times[0] = System.nanoTime();
+                                reactor.callLater(0.2, new Runnable() {
+                                        public void run() {
+                                            t.resumeProducing();
+                                        }
+                                    });
+                            }
+                            public void dataReceived(byte[] data) {
+                                times[1] = System.nanoTime();
+                                transport().loseConnection(new Throwable("Done"));
+                                reactor.stop();
+                            }
+                        };
+                    }
+                    public void startedListening(IListeningPort p) { }
+                    public void connectionLost(IListeningPort p, Throwable r) { }
+                });
+            reactor.connectTCP("127.0.0.1", port.getHost().getPort(), new ClientFactory() {
+                    public IProtocol buildProtocol(Object addr) {
+                        return new Protocol() {
+                            public void connectionMade() {
+                                transport().write("hello".getBytes());
+                            }
+                            public void dataReceived(byte[] data) { }
+                        };
+                    }
+                    public void clientConnectionFailed(IConnector c, Throwable r) {
+                        reactor.stop();
+                    }
+                });
+            stopLater(10);
+            reactor.run();
+            port.loseConnection(new Throwable("Done"));
+
+            assertTrue(times[1] != 0);
+            assertTrue(times[1] - times[0] >= 150 * 1000000L);
+        }
+    }
+
     public static Test suite() {
         TestSuite suite = new TestSuite();
         suite.addTest(new TestSuite(DeferredTest.class));
+        suite.addTest(new TestSuite(BufferPoolTest.class));
+        suite.addTest(new TestSuite(TimerWheelTest.class));
+        suite.addTest(new TestSuite(CallFromThreadTest.class));
+        suite.addTest(new TestSuite(DeferToThreadTest.class));
+        suite.addTest(new TestSuite(UnixSocketTest.class));
+        suite.addTest(new TestSuite(WriteTest.class));
+        suite.addTest(new TestSuite(LoopGroupTest.class));
+        suite.addTest(new TestSuite(TLSTest.class));
+        suite.addTest(new TestSuite(BlockingReactorTest.class));
         return suite;
     }
 }
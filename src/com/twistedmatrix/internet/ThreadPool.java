@@ -0,0 +1,128 @@
+package com.twistedmatrix.internet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of worker threads for blocking work, as used by
+ * {@link Reactor#deferToThread}.  Up to a maximum number of workers are
+ * started as work arrives, and they exit again after a minute without any.
+ * Once every worker is busy, further work waits in a queue of limited
+ * length.  Work which finds the queue full as well is refused rather than
+ * letting an overloaded server accumulate unbounded backlog.
+ */
+public class ThreadPool {
+    /** Default number of workers, as in Twisted. */
+    public static final int DEFAULT_THREADS = 10;
+
+    /** Default number of calls which may wait for a worker. */
+    public static final int DEFAULT_QUEUE   = 10000;
+
+    private static final AtomicInteger _pools = new AtomicInteger(0);
+
+    private ThreadPoolExecutor _executor;
+    private AtomicInteger      _active;
+    private AtomicLong	       _rejected;
+
+    public ThreadPool() {
+	this(DEFAULT_THREADS, DEFAULT_QUEUE);
+    }
+
+    /**
+     * @param maxThreads The most workers which will run at once.
+     * @param maxQueued The most calls which may wait for a worker.
+     */
+    public ThreadPool(int maxThreads, int maxQueued) {
+	this("reactor-worker", maxThreads, maxQueued);
+    }
+
+    /**
+     * @param name The name workers are given, followed by a number.
+     * @param maxThreads The most workers which will run at once.
+     * @param maxQueued The most calls which may wait for a worker.
+     */
+    public ThreadPool(String name, int maxThreads, int maxQueued) {
+	final String prefix = name + "-" + _pools.incrementAndGet() + "-";
+	ThreadFactory factory = new ThreadFactory() {
+		private AtomicInteger _count = new AtomicInteger(0);
+
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, prefix + _count.incrementAndGet());
+		    t.setDaemon(true);
+		    return t;
+		}
+	    };
+	// Core and maximum are the same so that workers are started before
+	// anything is queued; the core workers are allowed to time out.
+	_executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+					   60, TimeUnit.SECONDS,
+					   new ArrayBlockingQueue<Runnable>(maxQueued),
+					   factory);
+	_executor.allowCoreThreadTimeOut(true);
+	_active = new AtomicInteger(0);
+	_rejected = new AtomicLong(0);
+    }
+
+    /**
+     * Run something on a worker thread.
+     * @return false if the pool is full or stopped and the work was
+     * refused.
+     */
+    public boolean callInThread(final Runnable r) {
+	try {
+	    _executor.execute(new Runnable() {
+		    public void run() {
+			_active.incrementAndGet();
+			try {
+			    r.run();
+			} finally {
+			    _active.decrementAndGet();
+			}
+		    }
+		});
+	    return true;
+	} catch (RejectedExecutionException ree) {
+	    _rejected.incrementAndGet();
+	    return false;
+	}
+    }
+
+    /** Change the most workers which will run at once. */
+    public void setMaxThreads(int maxThreads) {
+	if (maxThreads > _executor.getMaximumPoolSize()) {
+	    _executor.setMaximumPoolSize(maxThreads);
+	    _executor.setCorePoolSize(maxThreads);
+	} else {
+	    _executor.setCorePoolSize(maxThreads);
+	    _executor.setMaximumPoolSize(maxThreads);
+	}
+    }
+
+    /** Returns the most workers which will run at once. */
+    public int getMaxThreads() { return _executor.getMaximumPoolSize(); }
+
+    /** Returns the number of calls waiting for a worker. */
+    public int getQueueDepth() { return _executor.getQueue().size(); }
+
+    /** Returns the number of workers currently running a call. */
+    public int getActiveWorkers() { return _active.get(); }
+
+    /** Returns the number of workers, busy or idle. */
+    public int getWorkerCount() { return _executor.getPoolSize(); }
+
+    /** Returns the number of calls which have finished. */
+    public long getCompletedCalls() { return _executor.getCompletedTaskCount(); }
+
+    /** Returns the number of calls refused because the pool was full. */
+    public long getRejectedCalls() { return _rejected.get(); }
+
+    /** Refuse new work; queued and running calls still complete. */
+    public void stop() {
+	_executor.shutdown();
+    }
+}
@@ -0,0 +1,236 @@
+package com.twistedmatrix.internet;
+
+import java.util.List;
+
+/**
+ * A hierarchical hashed timer wheel holding the delayed calls of a reactor.
+ * Time is divided into ticks; four wheels of 256 slots each cover 256
+ * ticks, 256^2 ticks, and so on.  A call is kept in a doubly linked list in
+ * the slot of the coarsest wheel that still distinguishes its deadline,
+ * and moves down a wheel each time the finer wheel below wraps around.
+ * Scheduling and cancelling are O(1).  Calls never run early, and calls
+ * due in the same tick all run, in no particular order.
+ */
+class TimerWheel {
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS     = 4;
+
+    private long _tickNanos;
+    private long _origin;
+    private long _currentTick;	// every tick before this one is done
+    private DelayedCall[][] _slots;
+    private int[] _counts;	// calls per wheel
+    private int _size;
+
+    /**
+     * @param tickNanos The length of one tick.
+     * @param now The current time, in nanoseconds, as tick zero.
+     */
+    TimerWheel(long tickNanos, long now) {
+	_tickNanos = tickNanos;
+	_origin = now;
+	_currentTick = 0;
+	_slots = new DelayedCall[LEVELS][WHEEL_SIZE];
+	_counts = new int[LEVELS];
+	_size = 0;
+    }
+
+    /** A call scheduled on the wheel. */
+    static class DelayedCall implements IDelayedCall {
+	private TimerWheel  _wheel;
+	private Runnable    _runnable;
+	private long	    _deadline;
+	private long	    _tick;
+	private int	    _level, _slot;
+	private DelayedCall _prev, _next;
+	private boolean	    _onWheel, _called, _cancelled;
+
+	DelayedCall(TimerWheel wheel, long deadline, Runnable runnable) {
+	    _wheel = wheel;
+	    _deadline = deadline;
+	    _runnable = runnable;
+	}
+
+	public double getTime() { return _deadline / 1e9; }
+
+	public void cancel() {
+	    synchronized (_wheel) {
+		checkActive();
+		_cancelled = true;
+		_wheel.remove(this);
+	    }
+	}
+
+	public void reset(double secondsFromNow) {
+	    synchronized (_wheel) {
+		checkActive();
+		_wheel.remove(this);
+		_deadline = System.nanoTime() + (long) (secondsFromNow * 1e9);
+		_wheel.add(this);
+	    }
+	}
+
+	public void delay(double secondsLater) {
+	    synchronized (_wheel) {
+		checkActive();
+		_wheel.remove(this);
+		_deadline += (long) (secondsLater * 1e9);
+		_wheel.add(this);
+	    }
+	}
+
+	public boolean active() { return !_called && !_cancelled; }
+
+	/** Run the call, which {@link #advance} took off the wheel, unless it
+	 * was cancelled or rescheduled in the meantime. */
+	void run() {
+	    synchronized (_wheel) {
+		if (_cancelled || _onWheel) {
+		    return;
+		}
+		_called = true;
+	    }
+	    _runnable.run();
+	}
+
+	private void checkActive() {
+	    if (_called) {
+		throw new Error("Already Called!");
+	    }
+	    if (_cancelled) {
+		throw new Error("Already Cancelled!");
+	    }
+	}
+    }
+
+    /** Schedule a runnable for the given time, in nanoseconds. */
+    DelayedCall schedule(long deadline, Runnable runnable) {
+	DelayedCall c = new DelayedCall(this, deadline, runnable);
+	add(c);
+	return c;
+    }
+
+    /** Returns the number of calls waiting on the wheel. */
+    int size() { return _size; }
+
+    /**
+     * Take every call due at the given time off the wheel.
+     * @param now The current time, in nanoseconds.
+     * @param expired The list the due calls are added to, in tick order.
+     */
+    void advance(long now, List<DelayedCall> expired) {
+	long target = Math.floorDiv(now - _origin, _tickNanos);
+	while (_currentTick <= target) {
+	    long t = _currentTick;
+	    if ((t & WHEEL_MASK) == 0) {
+		cascade(t);
+	    }
+	    if (_size == 0) {
+		_currentTick = target + 1;
+		break;
+	    }
+	    if (_counts[0] == 0) {
+		// Nothing can be due before the next wheel boundary.
+		_currentTick = Math.min((t | WHEEL_MASK) + 1, target + 1);
+		continue;
+	    }
+
+	    DelayedCall c = _slots[0][(int) (t & WHEEL_MASK)];
+	    while (c != null) {
+		DelayedCall next = c._next;
+		remove(c);
+		if (c._tick <= t) {
+		    expired.add(c);
+		} else {
+		    add(c);
+		}
+		c = next;
+	    }
+	    _currentTick = t + 1;
+	}
+    }
+
+    /**
+     * Returns the earliest time, in nanoseconds, at which {@link #advance}
+     * may have something to do, or Long.MAX_VALUE if the wheel is empty.
+     */
+    long nextExpiry() {
+	if (_size == 0) {
+	    return Long.MAX_VALUE;
+	}
+	long tick;
+	if (_counts[0] > 0) {
+	    tick = _currentTick;
+	    while (_slots[0][(int) (tick & WHEEL_MASK)] == null) {
+		tick++;
+	    }
+	} else if ((_currentTick & WHEEL_MASK) == 0) {
+	    tick = _currentTick;
+	} else {
+	    tick = (_currentTick | WHEEL_MASK) + 1;
+	}
+	return _origin + tick * _tickNanos;
+    }
+
+    /* Move the calls of the coarser wheels down as the finer ones wrap. */
+    private void cascade(long t) {
+	for (int level = 1; level < LEVELS; level++) {
+	    int idx = (int) ((t >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+	    DelayedCall c = _slots[level][idx];
+	    while (c != null) {
+		DelayedCall next = c._next;
+		remove(c);
+		add(c);
+		c = next;
+	    }
+	    if (idx != 0) {
+		break;
+	    }
+	}
+    }
+
+    private void add(DelayedCall c) {
+	long tick = -Math.floorDiv(_origin - c._deadline, _tickNanos);
+	c._tick = Math.max(tick, _currentTick);
+
+	long delta = c._tick - _currentTick;
+	int level = 0;
+	while (level < LEVELS - 1 &&
+	       delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+	    level++;
+	}
+	c._level = level;
+	c._slot = (int) ((c._tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+
+	DelayedCall head = _slots[level][c._slot];
+	c._prev = null;
+	c._next = head;
+	if (head != null) {
+	    head._prev = c;
+	}
+	_slots[level][c._slot] = c;
+	_counts[level]++;
+	_size++;
+	c._onWheel = true;
+    }
+
+    private void remove(DelayedCall c) {
+	if (!c._onWheel) {
+	    return;
+	}
+	c._onWheel = false;
+	if (c._prev != null) {
+	    c._prev._next = c._next;
+	} else {
+	    _slots[c._level][c._slot] = c._next;
+	}
+	if (c._next != null) {
+	    c._next._prev = c._prev;
+	}
+	c._prev = c._next = null;
+	_counts[c._level]--;
+	_size--;
+    }
+}